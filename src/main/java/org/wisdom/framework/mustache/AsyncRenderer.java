@@ -0,0 +1,212 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.http.Context;
+import org.wisdom.api.http.Renderable;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes the asynchronous renderings on a dedicated executor, so large pages do not block the I/O threads.
+ * <p>
+ * The executor uses virtual threads when requested and supported by the JVM, or a fixed pool of platform threads.
+ * In both cases, at most {@code threads} renderings run concurrently: with virtual threads, each admitted rendering
+ * starts its own thread, which waits for a running permit before rendering.
+ * The admission is bounded: at most {@code threads + queue} renderings are running or waiting. When this limit is
+ * reached, new renderings are rejected immediately (their stage completes with a
+ * {@link java.util.concurrent.RejectedExecutionException}), which gives back-pressure under overload.
+ */
+final class AsyncRenderer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncRenderer.class);
+
+    private final ExecutorService executor;
+
+    /**
+     * The permits of the running and waiting renderings.
+     */
+    private final Semaphore admission;
+
+    /**
+     * The permits of the running renderings.
+     */
+    private final Semaphore running;
+
+    private final boolean virtual;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a renderer.
+     *
+     * @param threads the number of platform threads, or the number of renderings running concurrently on virtual
+     *                threads
+     * @param queue   the number of renderings waiting for a thread
+     * @param virtual whether or not virtual threads are used when supported
+     */
+    AsyncRenderer(int threads, int queue, boolean virtual) {
+        if (threads <= 0 || queue < 0) {
+            throw new IllegalArgumentException("The number of threads must be strictly positive, and the queue size "
+                    + "positive");
+        }
+        ExecutorService service = virtual ? createVirtualThreadExecutor() : null;
+        this.virtual = service != null;
+        if (service == null) {
+            service = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                    .setNameFormat("mustache-async-%d")
+                    .setDaemon(true)
+                    .build());
+        }
+        this.executor = service;
+        // With virtual threads there is no queue: the waiting renderings are virtual threads parked on the running
+        // permits. With platform threads, the pool size already bounds the running renderings.
+        this.admission = new Semaphore(threads + queue);
+        this.running = new Semaphore(threads);
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task, if supported by the JVM (Java 21+).
+     *
+     * @return the executor, {@code null} if virtual threads are not supported
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) { //NOSONAR
+            LOGGER.info("Virtual threads are not supported by this JVM, platform threads are used for the "
+                    + "asynchronous renderings");
+            return null;
+        }
+    }
+
+    /**
+     * Submits a rendering. The HTTP context of the calling thread is made available to the rendering.
+     *
+     * @param rendering the rendering
+     * @return the stage completed with the rendered object, or exceptionally if the rendering fails or is
+     * rejected
+     */
+    CompletionStage<Renderable<?>> submit(final Callable<Renderable<?>> rendering) {
+        final CompletableFuture<Renderable<?>> result = new CompletableFuture<>();
+        if (!admission.tryAcquire()) {
+            rejected.incrementAndGet();
+            result.completeExceptionally(new RejectedExecutionException("Too many pending renderings"));
+            return result;
+        }
+        try {
+            executor.execute(new Rendering(rendering, result, Context.CONTEXT.get()));
+        } catch (RejectedExecutionException e) {
+            // Shut down.
+            admission.release();
+            rejected.incrementAndGet();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * @return {@code true} if the renderings run on virtual threads.
+     */
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return the number of renderings rejected since the creation of the renderer.
+     */
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Stops the executor, interrupting the running renderings. The renderings still waiting for a thread are not
+     * executed: their stage completes with a {@link CancellationException}.
+     */
+    void shutdown() {
+        for (Runnable pending : executor.shutdownNow()) {
+            if (pending instanceof Rendering) {
+                ((Rendering) pending).cancel();
+            }
+        }
+    }
+
+    /**
+     * A submitted rendering, exposing its stage so it can be completed if the rendering never runs.
+     */
+    private final class Rendering implements Runnable {
+
+        private final Callable<Renderable<?>> rendering;
+
+        private final CompletableFuture<Renderable<?>> result;
+
+        private final Context context;
+
+        Rendering(Callable<Renderable<?>> rendering, CompletableFuture<Renderable<?>> result, Context context) {
+            this.rendering = rendering;
+            this.result = result;
+            this.context = context;
+        }
+
+        @Override
+        public void run() {
+            try {
+                running.acquire();
+            } catch (InterruptedException e) {
+                // Shut down while waiting.
+                admission.release();
+                result.completeExceptionally(e);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            Context.CONTEXT.set(context);
+            try {
+                result.complete(rendering.call());
+            } catch (Throwable e) { //NOSONAR
+                result.completeExceptionally(e);
+            } finally {
+                Context.CONTEXT.remove();
+                running.release();
+                admission.release();
+            }
+        }
+
+        /**
+         * Completes the stage of a rendering removed from the queue before being executed.
+         */
+        void cancel() {
+            admission.release();
+            result.completeExceptionally(new CancellationException("The asynchronous renderings have been stopped"));
+        }
+    }
+}
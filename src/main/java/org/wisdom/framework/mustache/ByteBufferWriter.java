@@ -0,0 +1,224 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * A writer encoding the output of a rendering in UTF-8 straight into byte buffers, so the buffers can be handed to
+ * the HTTP layer without encoding the output into a string first. When a buffer is full, the next one is obtained
+ * from the supplier (the chain of buffers can use direct buffers, or pooled ones).
+ * <p>
+ * The encoder is reused by the renderings of the same thread. Instances are not thread-safe.
+ */
+final class ByteBufferWriter extends Writer {
+
+    /**
+     * The encoder released by the last writer of the thread. A writer takes it, so nested renderings do not share
+     * it.
+     */
+    private static final ThreadLocal<CharsetEncoder> ENCODER = new ThreadLocal<>();
+
+    private final Supplier<ByteBuffer> buffers;
+
+    private final CharsetEncoder encoder;
+
+    /**
+     * The buffers filled so far, the last one being the current one.
+     */
+    private final List<ByteBuffer> written = new ArrayList<>();
+
+    private ByteBuffer current;
+
+    /**
+     * The high surrogate ending the previous write, encoded with the next write.
+     */
+    private final CharBuffer carry = CharBuffer.allocate(2);
+
+    private boolean closed;
+
+    /**
+     * Creates a writer.
+     *
+     * @param buffers the supplier of the buffers, called when a buffer is full. It can throw a
+     *                {@link java.nio.BufferOverflowException} to stop the rendering.
+     */
+    ByteBufferWriter(Supplier<ByteBuffer> buffers) {
+        this.buffers = buffers;
+        CharsetEncoder cached = ENCODER.get();
+        if (cached == null) {
+            this.encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        } else {
+            ENCODER.remove();
+            this.encoder = cached.reset();
+        }
+    }
+
+    /**
+     * Creates a writer filling a single buffer.
+     *
+     * @param buffer the buffer
+     * @return the writer, throwing a {@link java.nio.BufferOverflowException} if the output exceeds the remaining
+     * space of the buffer
+     */
+    static ByteBufferWriter into(final ByteBuffer buffer) {
+        return new ByteBufferWriter(new Supplier<ByteBuffer>() {
+            private boolean supplied;
+
+            @Override
+            public ByteBuffer get() {
+                if (supplied) {
+                    throw new BufferOverflowException();
+                }
+                supplied = true;
+                return buffer;
+            }
+        });
+    }
+
+    private ByteBuffer next() {
+        current = buffers.get();
+        written.add(current);
+        return current;
+    }
+
+    private ByteBuffer buffer() {
+        return current == null ? next() : current;
+    }
+
+    @Override
+    public void write(char[] chars, int off, int len) {
+        encode(CharBuffer.wrap(chars, off, len));
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        encode(CharBuffer.wrap(str, off, off + len));
+    }
+
+    @Override
+    public void write(int c) {
+        encode(CharBuffer.wrap(new char[]{(char) c}));
+    }
+
+    private void encode(CharBuffer in) {
+        if (closed) {
+            throw new IllegalStateException("The writer is closed");
+        }
+        if (carry.position() > 0 && in.hasRemaining()) {
+            // Completes the surrogate pair.
+            carry.put(in.get());
+            carry.flip();
+            encode(carry, false);
+            carry.clear();
+        }
+        encode(in, false);
+        if (in.hasRemaining()) {
+            // A high surrogate, waiting for the next write.
+            carry.put(in);
+        }
+    }
+
+    private void encode(CharBuffer in, boolean endOfInput) {
+        while (true) {
+            CoderResult result = encoder.encode(in, buffer(), endOfInput);
+            if (result.isOverflow()) {
+                next();
+            } else if (result.isUnderflow()) {
+                return;
+            } else {
+                throwException(result);
+            }
+        }
+    }
+
+    private static void throwException(CoderResult result) {
+        try {
+            result.throwException();
+        } catch (CharacterCodingException e) {
+            // Cannot happen, malformed and unmappable input are replaced.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes already encoded bytes.
+     *
+     * @param bytes the UTF-8 bytes
+     */
+    void writeBytes(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            ByteBuffer buffer = buffer().hasRemaining() ? current : next();
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do, the buffers are handed over once the rendering completes.
+    }
+
+    /**
+     * Completes the encoding.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        carry.flip();
+        // A lone high surrogate is replaced.
+        encode(carry, true);
+        while (encoder.flush(buffer()).isOverflow()) {
+            next();
+        }
+        closed = true;
+        ENCODER.set(encoder);
+    }
+
+    /**
+     * Completes the encoding, and flips the filled buffers so they can be read.
+     *
+     * @return the buffers, in order
+     */
+    List<ByteBuffer> getBuffers() {
+        close();
+        for (ByteBuffer buffer : written) {
+            buffer.flip();
+        }
+        return written;
+    }
+}
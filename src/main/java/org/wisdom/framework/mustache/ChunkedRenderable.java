@@ -0,0 +1,241 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.Mustache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.http.Context;
+import org.wisdom.api.http.Renderable;
+import org.wisdom.api.http.RenderableException;
+import org.wisdom.api.http.Result;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link org.wisdom.api.http.Renderable} rendering a template progressively. The template is executed on a
+ * background thread into a {@link org.wisdom.framework.mustache.ChunkedWriter}, and the produced chunks are sent
+ * to the client as soon as they are flushed. The execution starts when the content is first requested.
+ * <p>
+ * When the rendering has a budget, the deadline is attached to the rendering thread, and the reader of the chunks
+ * cancels the rendering once the deadline is exceeded. A client closing the stream also cancels the rendering.
+ * When the rendering is profiled, its breakdown is reported once the template has been executed.
+ * <p>
+ * When the executor rejects the rendering, the template is rendered on the thread requesting the content, and
+ * sent in one piece.
+ */
+class ChunkedRenderable implements Renderable<InputStream> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkedRenderable.class);
+
+    private final Mustache mustache;
+
+    private final Map<String, Object> scope;
+
+    private final String name;
+
+    private final String mimetype;
+
+    private final ExecutorService executor;
+
+    private final ChunkedWriter writer;
+
+    /**
+     * The HTTP context of the request, made available to the functions called during the rendering.
+     */
+    private final Context context;
+
+    /**
+     * The deadline of the rendering, {@code null} if the rendering has no budget.
+     */
+    private final RenderDeadline deadline;
+
+    /**
+     * The recorder of the rendering, {@code null} if the rendering is not profiled.
+     */
+    private final RenderRecorder recorder;
+
+    private final Charset charset;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * The content rendered on the calling thread because the executor was saturated, {@code null} otherwise.
+     */
+    private volatile InputStream inline;
+
+    /**
+     * Creates a new renderable.
+     *
+     * @param name      the template name
+     * @param mustache  the compiled template
+     * @param scope     the variables
+     * @param mimetype  the mime type of the result
+     * @param executor  the executor on which the template is executed
+     * @param threshold the number of characters triggering a flush
+     * @param charset   the charset used to encode the chunks
+     */
+    ChunkedRenderable(String name, Mustache mustache, Map<String, Object> scope, String mimetype,
+                      ExecutorService executor, int threshold, Charset charset) {
+        this(name, mustache, scope, mimetype, executor, threshold, charset, null, null);
+    }
+
+    /**
+     * Creates a new renderable.
+     *
+     * @param name      the template name
+     * @param mustache  the compiled template
+     * @param scope     the variables
+     * @param mimetype  the mime type of the result
+     * @param executor  the executor on which the template is executed
+     * @param threshold the number of characters triggering a flush
+     * @param charset   the charset used to encode the chunks
+     * @param deadline  the deadline of the rendering, {@code null} if the rendering has no budget
+     * @param recorder  the recorder of the rendering, {@code null} if the rendering is not profiled
+     */
+    ChunkedRenderable(String name, Mustache mustache, Map<String, Object> scope, String mimetype,
+                      ExecutorService executor, int threshold, Charset charset, RenderDeadline deadline,
+                      RenderRecorder recorder) {
+        this.name = name;
+        this.deadline = deadline;
+        this.recorder = recorder;
+        this.mustache = mustache;
+        this.scope = scope;
+        this.mimetype = mimetype;
+        this.executor = executor;
+        this.charset = charset;
+        this.writer = new ChunkedWriter(threshold, charset);
+        this.context = Context.CONTEXT.get();
+    }
+
+    @Override
+    public InputStream render(Context context, Result result) throws RenderableException {
+        return content();
+    }
+
+    @Override
+    public long length() {
+        // Unknown
+        return -1;
+    }
+
+    @Override
+    public String mimetype() {
+        return mimetype;
+    }
+
+    /**
+     * Starts the rendering (if not already started).
+     *
+     * @return the stream of chunks
+     */
+    @Override
+    public InputStream content() {
+        if (started.compareAndSet(false, true)) {
+            try {
+                Future<?> task = executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        execute();
+                    }
+                });
+                if (deadline != null) {
+                    writer.watch(deadline, task);
+                }
+            } catch (RejectedExecutionException e) { //NOSONAR
+                // The render executor is saturated, the template is rendered on the calling thread. As the chunks
+                // could not be read while rendering, the whole content is buffered.
+                LOGGER.debug("The render executor is saturated, rendering the template {} inline", name);
+                inline = executeInline();
+            }
+        }
+        if (inline != null) {
+            return inline;
+        }
+        return writer.getInputStream();
+    }
+
+    private InputStream executeInline() {
+        Context previousContext = Context.CONTEXT.get();
+        Context.CONTEXT.set(context);
+        RenderDeadline previous = RenderDeadline.attach(deadline);
+        RenderRecorder previousRecorder = RenderRecorder.attach(recorder);
+        try {
+            StringWriter buffer = new StringWriter();
+            mustache.execute(buffer, scope);
+            return new ByteArrayInputStream(buffer.toString().getBytes(charset));
+        } finally {
+            if (recorder != null) {
+                recorder.finish();
+            }
+            RenderRecorder.restore(previousRecorder);
+            RenderDeadline.restore(previous);
+            Context.CONTEXT.set(previousContext);
+        }
+    }
+
+    private void execute() {
+        Context.CONTEXT.set(context);
+        RenderDeadline previous = RenderDeadline.attach(deadline);
+        RenderRecorder previousRecorder = RenderRecorder.attach(recorder);
+        try {
+            mustache.execute(writer, scope);
+            writer.close();
+        } catch (Exception e) { //NOSONAR
+            if (writer.isCancelled()) {
+                // The client is gone (or the deadline has been exceeded), not an error of the template.
+                LOGGER.debug("Progressive rendering of the template {} cancelled by the reader", name, e);
+            } else {
+                LOGGER.error("Cannot render the template {} progressively", name, e);
+            }
+            writer.fail(e);
+        } finally {
+            if (recorder != null) {
+                recorder.finish();
+            }
+            RenderRecorder.restore(previousRecorder);
+            RenderDeadline.restore(previous);
+            Context.CONTEXT.remove();
+        }
+    }
+
+    @Override
+    public boolean requireSerializer() {
+        return false;
+    }
+
+    @Override
+    public void setSerializedForm(String s) {
+        // Nothing to do.
+    }
+
+    @Override
+    public boolean mustBeChunked() {
+        return true;
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import org.wisdom.framework.mustache.api.RenderTimeoutException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A writer emitting the rendered content as a sequence of chunks. The written characters are buffered and are
+ * encoded into a chunk when:
+ * <ul>
+ * <li>the writer is explicitly flushed (for instance by a {@literal {{! flush}}} comment)</li>
+ * <li>the buffer size exceeds the threshold</li>
+ * <li>the end of the {@literal <head>} element has been written, so the client can start fetching the stylesheets
+ * and scripts</li>
+ * </ul>
+ * The chunks are consumed from the stream returned by {@link #getInputStream()}, generally from another thread.
+ * At most {@link #MAX_PENDING_CHUNKS} chunks wait for the reader: beyond that, the rendering thread blocks until the
+ * reader catches up, so a slow client does not make the whole page buffer in memory. Closing the stream cancels the
+ * rendering, as the next write fails. When the rendering has a budget, the reader stops waiting once the deadline
+ * is exceeded, and cancels the rendering.
+ */
+class ChunkedWriter extends Writer {
+
+    /**
+     * The end of the HTML head element.
+     */
+    private static final String END_OF_HEAD = "</head>";
+
+    /**
+     * Marker indicating the end of the stream.
+     */
+    private static final byte[] EOF = new byte[0];
+
+    /**
+     * The time (in nanoseconds) given to the rendering thread to report an exceeded deadline (or to cancel the
+     * deferred partials) before the reader gives up.
+     */
+    private static final long GRACE = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /**
+     * The maximum number of chunks waiting for the reader.
+     */
+    static final int MAX_PENDING_CHUNKS = 16;
+
+    /**
+     * The time (in milliseconds) after which a writer waiting for the reader checks whether the stream has been
+     * closed.
+     */
+    private static final long CANCELLATION_CHECK = 100L;
+
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+
+    private final StringBuilder buffer = new StringBuilder();
+
+    private final int threshold;
+
+    private final Charset charset;
+
+    private final ChunkInputStream input = new ChunkInputStream();
+
+    /**
+     * Whether or not the end of the head element was already written.
+     */
+    private boolean headFlushed;
+
+    private volatile boolean closed;
+
+    /**
+     * Whether or not the reader has closed the stream (the client is gone, or the deadline has been exceeded).
+     */
+    private volatile boolean cancelled;
+
+    private volatile Throwable failure;
+
+    private volatile RenderDeadline deadline;
+
+    private volatile Future<?> task;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param threshold the number of buffered characters triggering a flush
+     * @param charset   the charset used to encode the chunks
+     */
+    ChunkedWriter(int threshold, Charset charset) {
+        this.threshold = threshold;
+        this.charset = charset;
+    }
+
+    /**
+     * Sets the deadline of the rendering writing into this writer. The reader waits for the chunks until the
+     * deadline, and then cancels the rendering.
+     *
+     * @param deadline the deadline
+     * @param task     the rendering
+     */
+    void watch(RenderDeadline deadline, Future<?> task) {
+        this.task = task;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return the stream from which the chunks are read.
+     */
+    InputStream getInputStream() {
+        return input;
+    }
+
+    /**
+     * @return whether or not the reader has closed the stream, cancelling the rendering.
+     */
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void write(char[] chars, int off, int len) throws IOException {
+        ensureOpen();
+        int start = buffer.length();
+        buffer.append(chars, off, len);
+        checkBuffer(start);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        ensureOpen();
+        int start = buffer.length();
+        buffer.append(str, off, off + len);
+        checkBuffer(start);
+    }
+
+    /**
+     * Writes content already encoded. If the charset is the one of the writer, the bytes are emitted as a chunk
+     * without being decoded.
+     *
+     * @param bytes    the content, must not be modified afterwards
+     * @param encoding the charset used to encode the content
+     * @throws IOException if the stream has been closed by the reader
+     */
+    void write(byte[] bytes, Charset encoding) throws IOException {
+        if (!charset.equals(encoding)) {
+            write(new String(bytes, encoding));
+            return;
+        }
+        flush();
+        if (bytes.length > 0) {
+            enqueue(bytes);
+        }
+    }
+
+    /**
+     * Hands the given chunk to the reader, waiting for space if too many chunks are pending.
+     *
+     * @param chunk the chunk
+     * @throws IOException if the stream has been closed by the reader, or if the thread is interrupted
+     */
+    private void enqueue(byte[] chunk) throws IOException {
+        try {
+            while (!chunks.offer(chunk, CANCELLATION_CHECK, TimeUnit.MILLISECONDS)) {
+                if (cancelled) {
+                    throw new IOException("The chunked stream has been closed by the reader");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the reader");
+        }
+    }
+
+    private void checkBuffer(int start) throws IOException {
+        if (buffer.length() >= threshold) {
+            flush();
+        } else if (!headFlushed
+                && buffer.indexOf(END_OF_HEAD, Math.max(0, start - END_OF_HEAD.length())) != -1) {
+            headFlushed = true;
+            flush();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed || cancelled) {
+            throw new IOException("The chunked stream has been closed");
+        }
+    }
+
+    /**
+     * Emits the buffered content as a new chunk.
+     *
+     * @throws IOException if the stream has been closed by the reader
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (buffer.length() > 0) {
+            byte[] chunk = buffer.toString().getBytes(charset);
+            buffer.setLength(0);
+            enqueue(chunk);
+        }
+    }
+
+    /**
+     * Emits the remaining content and marks the end of the stream.
+     *
+     * @throws IOException if the stream has been closed by the reader
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        enqueue(EOF);
+    }
+
+    /**
+     * Marks the end of the stream because the rendering has failed. The reader receives an {@link IOException}.
+     *
+     * @param cause the cause of the failure
+     */
+    void fail(Throwable cause) {
+        failure = cause;
+        closed = true;
+        if (!cancelled) {
+            try {
+                enqueue(EOF);
+            } catch (IOException e) { //NOSONAR
+                // The reader is gone, or the thread has been interrupted (the interruption is restored).
+            }
+        }
+    }
+
+    /**
+     * The stream reading the emitted chunks. Reads block until a chunk is available.
+     */
+    private class ChunkInputStream extends InputStream {
+
+        private byte[] current;
+
+        private int position;
+
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!next()) {
+                return -1;
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.length - position;
+        }
+
+        private boolean next() throws IOException {
+            while (!ended && (current == null || position == current.length)) {
+                try {
+                    current = take();
+                    position = 0;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the next chunk");
+                }
+                if (current == EOF) {
+                    ended = true;
+                }
+            }
+            if (ended && failure != null) {
+                throw new IOException("Cannot render the template", failure);
+            }
+            return !ended;
+        }
+
+        /**
+         * Waits for the next chunk, until the deadline of the rendering (if any).
+         *
+         * @return the chunk
+         * @throws InterruptedException if the thread is interrupted
+         * @throws IOException          if the deadline has been exceeded
+         */
+        private byte[] take() throws InterruptedException, IOException {
+            RenderDeadline current = deadline;
+            while (current != null && !current.isDisarmed()) {
+                byte[] chunk = chunks.poll(Math.max(0L, current.remaining()) + GRACE, TimeUnit.NANOSECONDS);
+                if (chunk != null) {
+                    return chunk;
+                }
+                if (!current.isDisarmed()) {
+                    RenderTimeoutException timeout = current.timeout();
+                    Future<?> rendering = task;
+                    if (rendering != null) {
+                        rendering.cancel(true);
+                    }
+                    close();
+                    throw new IOException(timeout.getMessage(), timeout);
+                }
+            }
+            return chunks.take();
+        }
+
+        /**
+         * Closing the stream cancels the rendering, as the next write fails.
+         */
+        @Override
+        public void close() {
+            cancelled = true;
+            ended = true;
+            chunks.clear();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.codes.CommentCode;
+import com.github.mustachejava.codes.DefaultCode;
+import com.github.mustachejava.codes.IterableCode;
+import com.github.mustachejava.codes.ValueCode;
+import com.github.mustachejava.codes.WriteCode;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Utility methods to analyze the code tree of compiled templates. The walk follows the sections, the partials and
+ * the inheritance blocks. As partials can be recursive, each code is visited only once.
+ */
+final class CodeTrees {
+
+    /**
+     * The field containing the text written after a code. It is not accessible from the Mustache.java API, so it
+     * is read reflectively. {@code null} if not supported by this version of Mustache.java.
+     */
+    private static final Field APPENDED;
+
+    /**
+     * The estimated shallow size of a code object (header and fields).
+     */
+    private static final long CODE_SIZE = 64L;
+
+    /**
+     * The estimated size of a string, without its characters (the string and the header of its array).
+     */
+    private static final long STRING_SIZE = 40L;
+
+    static {
+        Field field;
+        try {
+            field = DefaultCode.class.getDeclaredField("appended");
+            field.setAccessible(true);
+        } catch (Exception e) { //NOSONAR
+            // Not supported by this version of Mustache.java.
+            field = null;
+        }
+        APPENDED = field;
+    }
+
+    private CodeTrees() {
+        // Avoid direct instantiation.
+    }
+
+    /**
+     * Checks whether the given tree contains at least one code of the given type.
+     *
+     * @param root the root of the tree
+     * @param type the type of code
+     * @return {@code true} if the tree contains a code of the given type, {@code false} otherwise
+     */
+    static boolean contains(Code root, Class<? extends Code> type) {
+        return contains(root, type, Collections.newSetFromMap(new IdentityHashMap<Code, Boolean>()));
+    }
+
+    /**
+     * Checks whether the given tree is constant, {@literal i.e.} only writes static text. Such a tree contains only
+     * text and comments: no variables, sections, partials or inheritance.
+     *
+     * @param root the root of the tree (the compiled template)
+     * @return {@code true} if the output of the tree does not depend on the rendering context
+     */
+    static boolean isConstant(Code root) {
+        Code[] codes = root.getCodes();
+        if (codes == null) {
+            return true;
+        }
+        for (Code code : codes) {
+            if (!isStatic(code)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the given code only writes static text.
+     *
+     * @param code the code
+     * @return {@code true} if the code only writes text
+     */
+    static boolean isStatic(Code code) {
+        if (code instanceof WriteCode || code instanceof CommentCode) {
+            return true;
+        }
+        // Anonymous codes without children (such as the end of file code) only write their text.
+        return code.getName() == null && code.getCodes() == null;
+    }
+
+    /**
+     * Checks whether the given code is a {@literal {{! timeout <ms>}}} comment, setting the render budget of the
+     * template.
+     *
+     * @param code the code
+     * @return {@code true} if the code sets the render budget
+     */
+    static boolean isBudget(Code code) {
+        if (!(code instanceof CommentCode) || code.getName() == null) {
+            return false;
+        }
+        String comment = code.getName().trim();
+        return comment.regionMatches(true, 0, ExtendedMustacheVisitor.TIMEOUT, 0,
+                ExtendedMustacheVisitor.TIMEOUT.length())
+                && comment.length() > ExtendedMustacheVisitor.TIMEOUT.length()
+                && Character.isWhitespace(comment.charAt(ExtendedMustacheVisitor.TIMEOUT.length()));
+    }
+
+    /**
+     * Gets the render budget set by a top-level {@literal {{! timeout <ms>}}} comment.
+     *
+     * @param root the root of the tree (the compiled template)
+     * @return the budget in milliseconds, {@code -1} if the template does not set a budget
+     * @throws MustacheException if the budget is not a number
+     */
+    static long getRenderBudget(Code root) {
+        Code[] codes = root.getCodes();
+        if (codes == null) {
+            return -1L;
+        }
+        for (Code code : codes) {
+            if (isBudget(code)) {
+                String value = code.getName().trim().substring(ExtendedMustacheVisitor.TIMEOUT.length()).trim();
+                try {
+                    return Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new MustacheException("Invalid render budget '" + value + "', milliseconds expected", e);
+                }
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * @return {@code true} if the text written after the codes can be read, {@literal i.e.} {@link #getText(Code)}
+     * is supported by this version of Mustache.java.
+     */
+    static boolean isTextAccessible() {
+        return APPENDED != null;
+    }
+
+    /**
+     * Gets the static text written after the given code.
+     *
+     * @param code the code
+     * @return the text, {@code null} if none or if it cannot be read
+     */
+    static String getText(Code code) {
+        if (APPENDED == null || !(code instanceof DefaultCode)) {
+            return null;
+        }
+        try {
+            return (String) APPENDED.get(code);
+        } catch (IllegalAccessException e) {
+            // Cannot happen, the field is accessible.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Estimates the heap retained by the given tree: the code objects, their names and their static text. The
+     * codes already in the given set are not counted, so a set shared by several trees counts the shared partials
+     * once.
+     *
+     * @param root    the root of the tree
+     * @param visited the codes already counted
+     * @return the estimated size in bytes
+     */
+    static long estimateSize(Code root, Set<Code> visited) {
+        if (root == null || !visited.add(root)) {
+            return 0L;
+        }
+        long size = CODE_SIZE + estimateSize(root.getName()) + estimateSize(getText(root));
+        Code[] codes = root.getCodes();
+        if (codes != null) {
+            // The array.
+            size += 16L + 8L * codes.length;
+            for (Code child : codes) {
+                size += estimateSize(child, visited);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Estimates the size of the given string.
+     *
+     * @param text the string, may be {@code null}
+     * @return the estimated size in bytes, {@code 0} for {@code null}
+     */
+    static long estimateSize(String text) {
+        return text == null ? 0L : STRING_SIZE + 2L * text.length();
+    }
+
+    /**
+     * Checks whether the given tree contains a pure partial.
+     *
+     * @param root the root of the tree
+     * @return {@code true} if the tree contains a pure partial, {@code false} otherwise
+     */
+    static boolean containsPurePartial(Code root) {
+        return containsPurePartial(root, Collections.newSetFromMap(new IdentityHashMap<Code, Boolean>()));
+    }
+
+    /**
+     * Computes the names of the variables read by the given tree (values and sections). For dotted names, only the
+     * first segment is kept, as it is the one looked up in the rendering scopes.
+     *
+     * @param root the root of the tree
+     * @return the names of the read variables
+     */
+    static Set<String> getReadVariables(Code root) {
+        Set<String> names = new LinkedHashSet<>();
+        collectReadVariables(root, names, Collections.newSetFromMap(new IdentityHashMap<Code, Boolean>()));
+        return names;
+    }
+
+    private static void collectReadVariables(Code code, Set<String> names, Set<Code> visited) {
+        if (code == null || !visited.add(code)) {
+            return;
+        }
+        String name = code.getName();
+        if (name != null && (code instanceof ValueCode || code instanceof IterableCode)) {
+            int index = name.indexOf('.');
+            names.add(index > 0 ? name.substring(0, index) : name);
+        }
+        Code[] codes = code.getCodes();
+        if (codes != null) {
+            for (Code child : codes) {
+                collectReadVariables(child, names, visited);
+            }
+        }
+    }
+
+    private static boolean containsPurePartial(Code code, Set<Code> visited) {
+        if (code == null || !visited.add(code)) {
+            return false;
+        }
+        if (code instanceof DeferrablePartialCode && ((DeferrablePartialCode) code).isPure()) {
+            return true;
+        }
+        Code[] codes = code.getCodes();
+        if (codes != null) {
+            for (Code child : codes) {
+                if (containsPurePartial(child, visited)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(Code code, Class<? extends Code> type, Set<Code> visited) {
+        if (code == null || !visited.add(code)) {
+            return false;
+        }
+        if (type.isInstance(code)) {
+            return true;
+        }
+        Code[] codes = code.getCodes();
+        if (codes != null) {
+            for (Code child : codes) {
+                if (contains(child, type, visited)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.Mustache;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The result of the compilation of a template: the code tree, the information computed from the tree, and the
+ * partials read during the compilation. Instances are immutable, so they can be published atomically and read by
+ * the rendering threads without locks.
+ */
+final class CompiledTemplate {
+
+    private final Mustache mustache;
+
+    private final boolean progressive;
+
+    private final boolean deferring;
+
+    private final ConstantRenderable constant;
+
+    private final boolean memoizing;
+
+    private final long budget;
+
+    private final Set<String> partials;
+
+    /**
+     * The time of the compilation (epoch milliseconds).
+     */
+    private final long compiledAt = System.currentTimeMillis();
+
+    /**
+     * Creates a compiled template.
+     *
+     * @param mustache    the code tree
+     * @param progressive whether or not the template is rendered progressively
+     * @param deferring   whether or not the template writes deferred partials
+     * @param constant    the precomputed output of the template, {@code null} if the template is not constant
+     * @param memoizing   whether or not the template contains pure partials, whose output can be memoized
+     * @param budget      the render budget (in milliseconds) set by the template, negative if not set
+     * @param partials    the names of the templates read during the compilation (partials and inherited
+     *                    templates, including the nested ones)
+     */
+    CompiledTemplate(Mustache mustache, boolean progressive, boolean deferring, ConstantRenderable constant,
+                     boolean memoizing, long budget, Set<String> partials) {
+        this.mustache = mustache;
+        this.progressive = progressive;
+        this.deferring = deferring;
+        this.constant = constant;
+        this.memoizing = memoizing;
+        this.budget = budget;
+        this.partials = Collections.unmodifiableSet(partials);
+    }
+
+    Mustache getMustache() {
+        return mustache;
+    }
+
+    boolean isProgressive() {
+        return progressive;
+    }
+
+    boolean isDeferring() {
+        return deferring;
+    }
+
+    /**
+     * @return the precomputed output of the template, {@code null} if the template is not constant.
+     */
+    ConstantRenderable getConstant() {
+        return constant;
+    }
+
+    boolean isMemoizing() {
+        return memoizing;
+    }
+
+    /**
+     * @return the render budget (in milliseconds) set by the template, negative if not set.
+     */
+    long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the names of the templates read during the compilation.
+     */
+    Set<String> getPartials() {
+        return partials;
+    }
+
+    long getCompiledAt() {
+        return compiledAt;
+    }
+
+    /**
+     * Estimates the heap retained by the compiled template: the code tree and the precomputed output.
+     *
+     * @param visited the codes already counted (by other templates sharing the same partials)
+     * @return the estimated size in bytes
+     */
+    long estimateSize(Set<Code> visited) {
+        long size = CodeTrees.estimateSize(mustache, visited);
+        if (constant != null) {
+            size += constant.estimateSize();
+        }
+        return size;
+    }
+}
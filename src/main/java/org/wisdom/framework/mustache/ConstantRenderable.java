@@ -0,0 +1,220 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import org.wisdom.api.http.Context;
+import org.wisdom.api.http.EncodingNames;
+import org.wisdom.api.http.HeaderNames;
+import org.wisdom.api.http.Renderable;
+import org.wisdom.api.http.RenderableException;
+import org.wisdom.api.http.Result;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The {@link org.wisdom.api.http.Renderable} returned by constant templates, {@literal i.e.} templates without any
+ * tag. The output is computed, and encoded, once at compile time. Optionally, a gzipped version is also computed
+ * and served to the clients accepting it.
+ * <p>
+ * The instance created at compile time is immutable. Each rendering gets a lightweight copy from
+ * {@link #forRequest(Context)}, sharing the encoded forms, but knowing the bytes it actually serves, so
+ * {@link #length()} matches the returned stream when the controller requests another charset.
+ */
+class ConstantRenderable implements Renderable<String> {
+
+    private final String content;
+
+    private final String mimetype;
+
+    /**
+     * The UTF-8 encoded content.
+     */
+    private final byte[] bytes;
+
+    /**
+     * The gzipped content, {@code null} if disabled.
+     */
+    private final byte[] gzip;
+
+    /**
+     * Whether or not this instance serves the gzipped content.
+     */
+    private final boolean gzipped;
+
+    /**
+     * The bytes served by this instance: one of the pre-encoded forms, or the content encoded with the charset
+     * requested by the controller once rendered.
+     */
+    private byte[] served;
+
+    /**
+     * Creates a new constant renderable.
+     *
+     * @param content  the rendered content
+     * @param mimetype the mime type
+     * @param gzip     whether or not a gzipped version is computed
+     */
+    ConstantRenderable(String content, String mimetype, boolean gzip) {
+        this(content, mimetype, content.getBytes(StandardCharsets.UTF_8), gzip, false);
+    }
+
+    private ConstantRenderable(String content, String mimetype, byte[] bytes, boolean gzip, boolean gzipped) {
+        this(content, mimetype, bytes, gzip ? gzip(bytes) : null, gzipped);
+    }
+
+    private ConstantRenderable(String content, String mimetype, byte[] bytes, byte[] gzip, boolean gzipped) {
+        this.content = content;
+        this.mimetype = mimetype;
+        this.bytes = bytes;
+        this.gzip = gzip;
+        this.gzipped = gzipped;
+        this.served = getBytes();
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 16);
+        try (GZIPOutputStream stream = new GZIPOutputStream(out)) {
+            stream.write(bytes);
+        } catch (IOException e) {
+            // Cannot happen with in-memory streams.
+            throw new IllegalStateException("Cannot compress the template output", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates the renderable serving the given request.
+     *
+     * @param context the HTTP context, may be {@code null}
+     * @return the gzipped variant if available and accepted by the client, the identity variant otherwise.
+     */
+    ConstantRenderable forRequest(Context context) {
+        boolean accepted = gzip != null && context != null
+                && acceptsGzip(context.request().getHeader(HeaderNames.ACCEPT_ENCODING));
+        return new ConstantRenderable(content, mimetype, bytes, gzip, accepted);
+    }
+
+    /**
+     * Checks whether the given {@literal Accept-Encoding} header accepts gzip.
+     *
+     * @param header the header value, may be {@code null}
+     * @return {@code true} if gzip is accepted
+     */
+    static boolean acceptsGzip(String header) {
+        if (header == null) {
+            return false;
+        }
+        for (String encoding : header.split(",")) {
+            String[] segments = encoding.split(";");
+            if (EncodingNames.GZIP.equalsIgnoreCase(segments[0].trim())) {
+                return segments.length == 1 || !segments[1].replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the pre-encoded content: the UTF-8 bytes, or the gzipped bytes if this instance is the gzipped
+     * variant.
+     */
+    byte[] getBytes() {
+        return gzipped ? gzip : bytes;
+    }
+
+    /**
+     * @return the estimated heap retained by the output and its encoded forms, in bytes.
+     */
+    long estimateSize() {
+        long size = CodeTrees.estimateSize(content) + 16L + bytes.length;
+        if (gzip != null) {
+            size += 16L + gzip.length;
+        }
+        return size;
+    }
+
+    /**
+     * @return whether or not this instance serves the gzipped content.
+     */
+    boolean isGzipped() {
+        return gzipped;
+    }
+
+    @Override
+    public InputStream render(Context context, Result result) throws RenderableException {
+        if (result != null) {
+            if (result.getCharset() == null) {
+                result.with(StandardCharsets.UTF_8);
+            }
+            if (gzip != null) {
+                // Both variants depend on the Accept-Encoding header, caches must not mix them up.
+                result.with(HeaderNames.VARY, HeaderNames.ACCEPT_ENCODING);
+            }
+            if (!StandardCharsets.UTF_8.equals(result.getCharset())) {
+                // The controller has requested another charset, the pre-encoded forms cannot be used.
+                served = content.getBytes(result.getCharset());
+            } else {
+                served = getBytes();
+                if (gzipped) {
+                    result.with(HeaderNames.CONTENT_ENCODING, EncodingNames.GZIP);
+                }
+            }
+        }
+        return new ByteArrayInputStream(served);
+    }
+
+    /**
+     * @return the length of the served bytes, the re-encoded content if the controller has requested another
+     * charset.
+     */
+    @Override
+    public long length() {
+        return served.length;
+    }
+
+    @Override
+    public String mimetype() {
+        return mimetype;
+    }
+
+    @Override
+    public String content() {
+        return content;
+    }
+
+    @Override
+    public boolean requireSerializer() {
+        return false;
+    }
+
+    @Override
+    public void setSerializedForm(String s) {
+        // Nothing to do, the content is already serialized.
+    }
+
+    @Override
+    public boolean mustBeChunked() {
+        return false;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.Binding;
+import com.github.mustachejava.Code;
+import com.github.mustachejava.DeferringMustacheFactory;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.CommentCode;
+import com.github.mustachejava.codes.PartialCode;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A partial that can be deferred. When the value bound to the partial name is
+ * {@link com.github.mustachejava.DeferringMustacheFactory#DEFERRED}, and the rendering tracks the deferred
+ * partials, a placeholder is written and the partial is executed concurrently. Otherwise,
+ * the partial is executed inline.
+ * <p>
+ * Partials containing a top-level {@literal {{! pure}}} comment are pure: their output only depends on the
+ * variables they read. When memoization is enabled, their output is memoized, keyed on the values of these
+ * variables.
+ * <p>
+ * When the rendering has a budget, partials executed inline are recorded as the running section, and check the
+ * deadline. When the rendering is profiled, their execution time is recorded.
+ */
+class DeferrablePartialCode extends PartialCode {
+
+    /**
+     * A scope hiding the deferred partial tracker, so partials nested in a deferred partial are executed inline.
+     */
+    private static final Object NOT_DEFERRED = Collections.singletonMap(ExtendedMustacheVisitor.DEFERRED, false);
+
+    /**
+     * The comment marking pure partials.
+     */
+    static final String PURE = "pure";
+
+    private final Binding deferredBinding;
+
+    private final Binding memoBinding;
+
+    private final ExtendedMustacheFactory factory;
+
+    /**
+     * The bindings of the variables read by the partial, {@code null} if the partial is not pure.
+     */
+    private Binding[] readBindings;
+
+    /**
+     * The name of the template of the partial, the first element of the memoization keys.
+     */
+    private String memoName;
+
+    /**
+     * The version of the memoized outputs of the partial when it was compiled, the second element of the
+     * memoization keys.
+     */
+    private long memoVersion;
+
+    /**
+     * Creates a new partial code.
+     *
+     * @param tc       the template context
+     * @param factory  the factory
+     * @param variable the partial name
+     */
+    DeferrablePartialCode(TemplateContext tc, ExtendedMustacheFactory factory, String variable) {
+        super(tc, factory, variable);
+        this.deferredBinding = oh.createBinding(ExtendedMustacheVisitor.DEFERRED, tc, this);
+        this.memoBinding = oh.createBinding(PartialMemo.KEY, tc, this);
+        this.factory = factory;
+    }
+
+    @Override
+    public synchronized void init() {
+        super.init();
+        readBindings = null;
+        if (isPure(partial)) {
+            Set<String> variables = CodeTrees.getReadVariables(partial);
+            Binding[] bindings = new Binding[variables.size()];
+            int i = 0;
+            for (String variable : variables) {
+                bindings[i++] = oh.createBinding(variable, tc, this);
+            }
+            readBindings = bindings;
+            memoName = ExtendedMustacheFactory.simplify(partial.getName());
+            memoVersion = factory.getMemoVersion(memoName);
+        }
+    }
+
+    /**
+     * @return whether or not the partial is pure.
+     */
+    boolean isPure() {
+        return readBindings != null;
+    }
+
+    private static boolean isPure(Mustache partial) {
+        Code[] codes = partial.getCodes();
+        if (codes == null) {
+            return false;
+        }
+        for (Code code : codes) {
+            if (code instanceof CommentCode && code.getName() != null && PURE.equalsIgnoreCase(code.getName().trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+        Object deferred = deferredBinding.get(scopes);
+        if (deferred instanceof DeferredPartials && get(scopes) == DeferringMustacheFactory.DEFERRED) {
+            try {
+                ((DeferredPartials) deferred).defer(writer, name, partial, addScope(scopes, NOT_DEFERRED));
+            } catch (IOException e) {
+                throw new MustacheException("Cannot write the placeholder of " + name, e, tc);
+            }
+            return appendText(writer);
+        }
+        RenderDeadline deadline = RenderDeadline.current();
+        RenderRecorder recorder = factory.isProfiling() ? RenderRecorder.current() : null;
+        if (deadline == null && recorder == null) {
+            return executeInline(writer, scopes);
+        }
+        String section = ">" + name;
+        String previous = deadline == null ? null : deadline.enter(section);
+        long start = recorder == null ? 0L : recorder.enter(section);
+        try {
+            return executeInline(writer, scopes);
+        } finally {
+            if (recorder != null) {
+                recorder.exit(start);
+            }
+            if (deadline != null) {
+                deadline.exit(previous);
+            }
+        }
+    }
+
+    private Writer executeInline(Writer writer, Object[] scopes) {
+        if (readBindings != null) {
+            PartialMemo memo = getMemo(scopes);
+            if (memo != null) {
+                return executeMemoized(memo, writer, scopes);
+            }
+        }
+        return super.execute(writer, scopes);
+    }
+
+    private PartialMemo getMemo(Object[] scopes) {
+        Object memo = memoBinding.get(scopes);
+        if (memo instanceof PartialMemo) {
+            return (PartialMemo) memo;
+        }
+        return factory.getGlobalMemo();
+    }
+
+    private Writer executeMemoized(PartialMemo memo, Writer writer, Object[] scopes) {
+        Object[] key = new Object[readBindings.length + 2];
+        key[0] = memoName;
+        key[1] = memoVersion;
+        for (int i = 0; i < readBindings.length; i++) {
+            Object value = readBindings[i].get(scopes);
+            if (!memo.accepts(value)) {
+                return super.execute(writer, scopes);
+            }
+            key[i + 2] = value;
+        }
+        List<Object> memoKey = Arrays.asList(key);
+        String output = memo.get(memoKey);
+        if (output == null) {
+            StringWriter buffer = new StringWriter();
+            partial.execute(buffer, scopes);
+            output = buffer.toString();
+            memo.put(memoKey, output);
+        }
+        try {
+            writer.write(output);
+        } catch (IOException e) {
+            throw new MustacheException("Cannot write the output of " + name, e, tc);
+        }
+        return appendText(writer);
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.Mustache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.http.Context;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the deferred partials of one rendering. Deferred partials are executed concurrently on the render
+ * executor, while the page shell (containing placeholders) continues to be rendered. The results are written, in
+ * their completion order, where the template uses {@literal {{{deferred}}}}, with a small inline script replacing
+ * the placeholder. When the template is rendered progressively, each result is sent to the client as soon as it
+ * is available. The partials beyond the maximum number of deferred partials, and the ones rejected by the executor,
+ * are rendered in place, on the rendering thread.
+ * <p>
+ * When the rendering has a budget, the results are awaited until the deadline. The partials still pending are
+ * then cancelled and replaced by the fallback fragment, and the rest of the page is written.
+ */
+class DeferredPartials {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeferredPartials.class);
+
+    /**
+     * The prefix of the placeholder identifiers.
+     */
+    private static final String ID_PREFIX = "mustache-deferred-";
+
+    private final ExecutorService executor;
+
+    private final BlockingQueue<Result> completed = new LinkedBlockingQueue<>();
+
+    /**
+     * The number of submitted partials whose result has not been written yet.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicInteger ids = new AtomicInteger();
+
+    /**
+     * The number of partials whose deferral has been requested, including the ones rendered in place.
+     */
+    private final AtomicInteger deferred = new AtomicInteger();
+
+    /**
+     * The executions of the submitted partials whose result has not been written yet, indexed by placeholder id.
+     */
+    private final Map<String, Future<?>> tasks = new LinkedHashMap<>();
+
+    /**
+     * The deadline of the rendering, {@code null} if the rendering has no budget.
+     */
+    private final RenderDeadline deadline;
+
+    /**
+     * The fragment replacing the placeholders of the failed and cancelled partials, empty to leave them empty.
+     */
+    private final String fallback;
+
+    /**
+     * The maximum number of partials deferred by the rendering, the additional ones are rendered in place.
+     */
+    private final int max;
+
+    /**
+     * Creates a new instance, without render budget.
+     *
+     * @param executor the executor running the partials
+     */
+    DeferredPartials(ExecutorService executor) {
+        this(executor, null, "", ExtendedMustacheFactory.DEFAULT_MAX_DEFERRED);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param executor the executor running the partials
+     * @param deadline the deadline of the rendering, {@code null} if the rendering has no budget
+     * @param fallback the fragment replacing the placeholders of the failed and cancelled partials
+     * @param max      the maximum number of deferred partials, the additional ones are rendered in place
+     */
+    DeferredPartials(ExecutorService executor, RenderDeadline deadline, String fallback, int max) {
+        this.executor = executor;
+        this.deadline = deadline;
+        this.fallback = fallback == null ? "" : fallback;
+        this.max = max;
+    }
+
+    /**
+     * Writes the placeholder of the given partial and submits its execution.
+     *
+     * @param writer  the writer receiving the placeholder
+     * @param name    the partial name
+     * @param partial the partial
+     * @param scopes  the scopes used to execute the partial
+     * @throws IOException if the placeholder cannot be written
+     */
+    void defer(Writer writer, String name, Mustache partial, Object[] scopes) throws IOException {
+        String id = ID_PREFIX + ids.incrementAndGet();
+        RenderRecorder recorder = RenderRecorder.current();
+        Execution execution = new Execution(id, name, partial, scopes,
+                deadline == null ? null : deadline.fork(">" + name),
+                recorder == null ? null : recorder.fork(">" + name + " (deferred)"));
+        boolean submitted = false;
+        if (deferred.incrementAndGet() > max) {
+            LOGGER.debug("{} partials already deferred, rendering the deferred partial {} inline", max, name);
+        } else {
+            synchronized (tasks) {
+                try {
+                    tasks.put(id, executor.submit(execution));
+                    pending.incrementAndGet();
+                    submitted = true;
+                } catch (RejectedExecutionException e) { //NOSONAR
+                    LOGGER.debug("The render executor is saturated, rendering the deferred partial {} inline", name);
+                }
+            }
+        }
+        if (!submitted) {
+            // Too many partials deferred, or the render executor is saturated: the partial is rendered in place.
+            execution.executeInline(writer);
+            return;
+        }
+        writer.write("<div id=\"");
+        writer.write(id);
+        writer.write("\"></div>");
+    }
+
+    /**
+     * Writes the results of the deferred partials in their completion order. This method blocks until all
+     * deferred partials have been completed, or until the deadline of the rendering. The writer is flushed before
+     * waiting for each result.
+     *
+     * @param writer the writer
+     * @throws IOException if the results cannot be written
+     */
+    void writeTo(Writer writer) throws IOException {
+        while (pending.get() > 0) {
+            writer.flush();
+            Result result;
+            try {
+                if (deadline == null) {
+                    result = completed.take();
+                } else {
+                    result = completed.poll(Math.max(0L, deadline.remaining()), TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the deferred partials");
+            }
+            if (result == null) {
+                cancel(writer);
+                break;
+            }
+            pending.decrementAndGet();
+            synchronized (tasks) {
+                tasks.remove(result.id);
+            }
+            if (result.content != null) {
+                writeReplacement(writer, result.id, result.content);
+            } else if (!fallback.isEmpty()) {
+                writeReplacement(writer, result.id, fallback);
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Cancels the pending partials because the render budget has run out, and replaces their placeholder by the
+     * fallback fragment. The deadline is then disarmed, so the rest of the page is written.
+     *
+     * @param writer the writer
+     * @throws IOException if the fallback fragments cannot be written
+     */
+    private void cancel(Writer writer) throws IOException {
+        List<String> cancelled;
+        synchronized (tasks) {
+            cancelled = new ArrayList<>(tasks.keySet());
+            for (Future<?> task : tasks.values()) {
+                task.cancel(true);
+            }
+            tasks.clear();
+        }
+        pending.set(0);
+        completed.clear();
+        deadline.disarm();
+        LOGGER.warn("The render budget of {} has run out, {} deferred partial(s) cancelled",
+                deadline.getTemplate(), cancelled.size());
+        if (!fallback.isEmpty()) {
+            for (String id : cancelled) {
+                writeReplacement(writer, id, fallback);
+            }
+        }
+    }
+
+    private static void writeReplacement(Writer writer, String id, String content) throws IOException {
+        writer.write("<script>document.getElementById(\"");
+        writer.write(id);
+        writer.write("\").outerHTML=\"");
+        writer.write(escape(content));
+        writer.write("\";</script>");
+    }
+
+    /**
+     * Escapes the given content to be used as a Javascript string literal in a {@literal script} element. The
+     * {@literal </} and {@literal <!} sequences are broken, so the content cannot close the element or open a
+     * comment in it.
+     *
+     * @param content the content
+     * @return the escaped content
+     */
+    static String escape(String content) {
+        StringBuilder builder = new StringBuilder(content.length() + 16);
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\u2028':
+                    builder.append("\\u2028");
+                    break;
+                case '\u2029':
+                    builder.append("\\u2029");
+                    break;
+                case '/':
+                    // Avoid closing the script element with '</script>'
+                    if (i > 0 && content.charAt(i - 1) == '<') {
+                        builder.append("\\/");
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+                case '!':
+                    // Avoid '<!--', switching the parser to the escaped state of the script element
+                    if (i > 0 && content.charAt(i - 1) == '<') {
+                        builder.append("\\x21");
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The execution of a deferred partial on the render executor.
+     */
+    private class Execution implements Runnable {
+        private final String id;
+        private final String name;
+        private final Mustache partial;
+        private final Object[] scopes;
+        private final Context context;
+        private final RenderDeadline deadline;
+        private final RenderRecorder recorder;
+
+        Execution(String id, String name, Mustache partial, Object[] scopes, RenderDeadline deadline,
+                  RenderRecorder recorder) {
+            this.id = id;
+            this.name = name;
+            this.partial = partial;
+            this.scopes = scopes;
+            this.context = Context.CONTEXT.get();
+            this.deadline = deadline;
+            this.recorder = recorder;
+        }
+
+        @Override
+        public void run() {
+            Context.CONTEXT.set(context);
+            RenderDeadline previous = RenderDeadline.attach(deadline);
+            RenderRecorder previousRecorder = RenderRecorder.attach(recorder);
+            try {
+                StringWriter result = new StringWriter();
+                partial.execute(result, scopes);
+                completed.add(new Result(id, result.toString()));
+            } catch (Exception e) { //NOSONAR
+                if (deadline != null && deadline.isExpired()) {
+                    LOGGER.debug("The deferred partial {} has exceeded the render budget", name, e);
+                } else {
+                    LOGGER.error("Cannot render the deferred partial {}", name, e);
+                }
+                completed.add(new Result(id, null));
+            } finally {
+                if (recorder != null) {
+                    recorder.complete();
+                }
+                RenderRecorder.restore(previousRecorder);
+                RenderDeadline.restore(previous);
+                Context.CONTEXT.remove();
+            }
+        }
+
+        /**
+         * Executes the partial on the calling thread, in place of its placeholder.
+         *
+         * @param writer the writer
+         */
+        void executeInline(Writer writer) {
+            RenderRecorder previousRecorder = RenderRecorder.attach(recorder);
+            try {
+                partial.execute(writer, scopes);
+            } finally {
+                if (recorder != null) {
+                    recorder.complete();
+                }
+                RenderRecorder.restore(previousRecorder);
+            }
+        }
+    }
+
+    /**
+     * The result of a deferred partial.
+     */
+    private static class Result {
+        final String id;
+        final String content;
+
+        Result(String id, String content) {
+            this.id = id;
+            this.content = content;
+        }
+    }
+}
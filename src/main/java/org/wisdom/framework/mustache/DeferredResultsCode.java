@@ -0,0 +1,59 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.TemplateContext;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Code created for {@literal {{{deferred}}}}. It writes the result of the deferred partials as soon as they are
+ * completed. When the {@literal deferred} variable is not the tracker of the deferred partials (for instance a
+ * variable named {@literal deferred} given by the controller), it is written as any other value.
+ */
+class DeferredResultsCode extends SafeAwareValueCode {
+
+    /**
+     * Creates a new code.
+     *
+     * @param tc      the template context
+     * @param factory the factory
+     * @param encoded whether or not the value is escaped when it is not the tracker of the deferred partials
+     */
+    DeferredResultsCode(TemplateContext tc, ExtendedMustacheFactory factory, boolean encoded) {
+        super(tc, factory, ExtendedMustacheVisitor.DEFERRED, encoded);
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+        Object deferred = get(scopes);
+        if (!(deferred instanceof DeferredPartials)) {
+            return super.execute(writer, scopes);
+        }
+        try {
+            ((DeferredPartials) deferred).writeTo(writer);
+        } catch (IOException e) {
+            throw new MustacheException("Cannot write the deferred partials", e, tc);
+        }
+        return appendText(writer);
+    }
+}
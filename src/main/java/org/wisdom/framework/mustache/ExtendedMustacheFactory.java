@@ -19,20 +19,40 @@
  */
 package org.wisdom.framework.mustache;
 
+import com.github.mustachejava.DefaultMustacheVisitor;
 import com.github.mustachejava.DeferringMustacheFactory;
 import com.github.mustachejava.FragmentKey;
 import com.github.mustachejava.Mustache;
 import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.MustacheVisitor;
 import com.google.common.io.Files;
-import org.apache.commons.io.IOUtils;
-import org.wisdom.api.templates.Template;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.wisdom.framework.mustache.api.MemoStats;
+import org.wisdom.framework.mustache.api.Memoizable;
+import org.wisdom.framework.mustache.api.RenderProfile;
+import org.wisdom.framework.mustache.api.TextFootprint;
 
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
-import java.util.Map;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static org.wisdom.framework.mustache.TemplateEvents.EVENTS;
 
 /**
  * Extends the default {@link com.github.mustachejava.DefaultMustacheFactory} to customize the cache system and the
@@ -43,11 +63,213 @@ import java.util.concurrent.ConcurrentMap;
  */
 public class ExtendedMustacheFactory extends DeferringMustacheFactory {
 
+    /**
+     * The default number of buffered characters triggering a flush when templates are rendered progressively.
+     */
+    public static final int DEFAULT_CHUNK_THRESHOLD = 8192;
+
+    /**
+     * The default maximum number of memoized outputs of pure partials.
+     */
+    public static final int DEFAULT_MEMO_SIZE = 1000;
+
+    /**
+     * The default time-to-live (in milliseconds) of the output of pure partials memoized globally.
+     */
+    public static final long DEFAULT_MEMO_TTL = 60000L;
+
+    /**
+     * The default maximum staleness (in milliseconds) of the templates recompiled in background.
+     */
+    public static final long DEFAULT_MAX_STALENESS = 10000L;
+
+    /**
+     * The default render budget (in milliseconds): no budget.
+     */
+    public static final long DEFAULT_RENDER_TIMEOUT = -1L;
+
+    /**
+     * The default number of threads executing the renderings with a budget.
+     */
+    public static final int DEFAULT_BUDGET_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The default number of threads rendering templates progressively and executing the deferred partials.
+     */
+    public static final int DEFAULT_PROGRESSIVE_THREADS = 8 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The default number of progressive renderings and deferred partials waiting for a thread.
+     */
+    public static final int DEFAULT_PROGRESSIVE_QUEUE = 64;
+
+    /**
+     * The default maximum number of partials deferred by one rendering.
+     */
+    public static final int DEFAULT_MAX_DEFERRED = 32;
+
+    /**
+     * The default number of reported render profiles kept in memory.
+     */
+    public static final int DEFAULT_PROFILE_BUFFER = 100;
+
+    /**
+     * The default number of threads running the asynchronous renderings.
+     */
+    public static final int DEFAULT_ASYNC_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The default number of asynchronous renderings waiting for a thread.
+     */
+    public static final int DEFAULT_ASYNC_QUEUE = 256;
+
     /**
      * The collector used to resolve partials.
      */
     MustacheTemplateCollector collector;
 
+    /**
+     * The number of buffered characters triggering a flush when templates are rendered progressively.
+     */
+    private int chunkThreshold = DEFAULT_CHUNK_THRESHOLD;
+
+    /**
+     * The executor used to render templates progressively and to execute the deferred partials. Created on demand.
+     */
+    private ThreadPoolExecutor renderExecutor;
+
+    private int progressiveThreads = DEFAULT_PROGRESSIVE_THREADS;
+
+    private int progressiveQueue = DEFAULT_PROGRESSIVE_QUEUE;
+
+    /**
+     * The executor of the renderings with a budget. Created on demand.
+     */
+    private ThreadPoolExecutor budgetExecutor;
+
+    private int budgetThreads = DEFAULT_BUDGET_THREADS;
+
+    /**
+     * The executor of the asynchronous renderings. Created on demand.
+     */
+    private AsyncRenderer asyncRenderer;
+
+    private int asyncThreads = DEFAULT_ASYNC_THREADS;
+
+    private int asyncQueue = DEFAULT_ASYNC_QUEUE;
+
+    private boolean asyncVirtual;
+
+    /**
+     * Whether or not a gzipped version of the output of constant templates is computed.
+     */
+    private boolean gzipConstants;
+
+    /**
+     * Whether or not the compiled templates are optimized (partials inlined, static text merged...).
+     */
+    private boolean optimize = true;
+
+    /**
+     * The charset of the template sources without byte order mark.
+     */
+    private volatile Charset charset = StandardCharsets.UTF_8;
+
+    /**
+     * The pool sharing the identical static text segments of the compiled templates.
+     */
+    private final TextPool textPool = new TextPool();
+
+    /**
+     * Whether or not the static text segments are interned in the pool.
+     */
+    private volatile boolean internText = true;
+
+    /**
+     * The maximum time (in milliseconds) during which a stale template is rendered while being recompiled in
+     * background. Negative values mean no limit.
+     */
+    private volatile long maxStaleness = DEFAULT_MAX_STALENESS;
+
+    /**
+     * The render budget (in milliseconds) of the templates not setting their own budget. Zero or negative values
+     * mean no budget.
+     */
+    private volatile long renderTimeout = DEFAULT_RENDER_TIMEOUT;
+
+    /**
+     * The fragment replacing the deferred partials that have failed or have been cancelled.
+     */
+    private volatile String renderFallback = "";
+
+    /**
+     * The maximum number of partials deferred by one rendering, the additional ones are rendered in place.
+     */
+    private volatile int maxDeferred = DEFAULT_MAX_DEFERRED;
+
+    /**
+     * The sampling profiler of the renderings.
+     */
+    private final RenderProfiler profiler = new RenderProfiler();
+
+    /**
+     * The scope of the memoization of the output of pure partials.
+     */
+    private volatile PartialMemo.Scope memoScope = PartialMemo.Scope.REQUEST;
+
+    /**
+     * The maximum number of memoized outputs.
+     */
+    private volatile int memoSize = DEFAULT_MEMO_SIZE;
+
+    /**
+     * The global cache of the output of pure partials, {@code null} unless the scope is global.
+     */
+    private volatile PartialMemo globalMemo;
+
+    /**
+     * The version of the memoized outputs of each template, incremented when the template (or a template it reads)
+     * is updated or deleted. The pure partials capture it when they are compiled, and add it to their memoization
+     * keys, so the outputs of a previous version are never served.
+     */
+    private final ConcurrentMap<String, AtomicLong> memoVersions = new ConcurrentHashMap<>();
+
+    /**
+     * The scope of the memoization of the results of the memoizable functions.
+     */
+    private volatile PartialMemo.Scope functionMemoScope = PartialMemo.Scope.REQUEST;
+
+    /**
+     * The maximum number of memoized function results.
+     */
+    private volatile int functionMemoSize = DEFAULT_MEMO_SIZE;
+
+    /**
+     * The global cache of the results of the memoizable functions, {@code null} unless the scope is global.
+     */
+    private volatile FunctionMemo globalFunctionMemo;
+
+    /**
+     * The hit and miss counters of the function caches.
+     */
+    private final FunctionMemo.Counters functionMemoCounters = new FunctionMemo.Counters();
+
+    /**
+     * The keys of the cached fragments, indexed by the name of the template containing them.
+     */
+    private final ConcurrentMap<String, Set<FragmentKey>> fragments = new ConcurrentHashMap<>();
+
+    /**
+     * The names of the partials that were not found, with the error reported. Lookups of these names fail fast,
+     * until a template with this name is added.
+     */
+    private final ConcurrentMap<String, MustacheException> missingTemplates = new ConcurrentHashMap<>();
+
+    /**
+     * The set receiving the names of the templates read by the compilation running in the current thread.
+     */
+    private final ThreadLocal<Set<String>> readTemplates = new ThreadLocal<>();
+
     /**
      * Creates an instance of {@link org.wisdom.framework.mustache.ExtendedMustacheFactory}.
      *
@@ -57,26 +279,615 @@ public class ExtendedMustacheFactory extends DeferringMustacheFactory {
         this.collector = collector;
     }
 
+    /**
+     * Creates the visitor building the code tree. It extends the default visitor with the support of the
+     * {@literal {{! flush}}} comments and of the deferred partials streamed with {@literal {{{deferred}}}}.
+     *
+     * @return the visitor
+     */
+    @Override
+    public MustacheVisitor createMustacheVisitor() {
+        return new ExtendedMustacheVisitor(this, new DefaultMustacheVisitor(this));
+    }
+
+    /**
+     * @return the number of buffered characters triggering a flush when templates are rendered progressively.
+     */
+    public int getChunkThreshold() {
+        return chunkThreshold;
+    }
+
+    /**
+     * Sets the number of buffered characters triggering a flush when templates are rendered progressively.
+     *
+     * @param threshold the threshold, must be strictly positive
+     */
+    public void setChunkThreshold(int threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("The chunk threshold must be strictly positive");
+        }
+        this.chunkThreshold = threshold;
+    }
+
+    /**
+     * Compiles the template, and records the names of the templates read during the compilation (partials and
+     * inherited templates) in the given set.
+     *
+     * @param reader   the reader on the template's source
+     * @param name     the template name
+     * @param partials the set receiving the names of the templates read during the compilation
+     * @return the compiled template
+     */
+    Mustache compile(Reader reader, String name, Set<String> partials) {
+        Set<String> previous = readTemplates.get();
+        readTemplates.set(partials);
+        try {
+            return compile(reader, name);
+        } finally {
+            readTemplates.set(previous);
+        }
+    }
+
+    /**
+     * Compiles the template, and optimizes the resulting code tree (unless disabled). Partials that are not
+     * recursive, and inheritance blocks, are inlined, and adjacent static text segments are merged. Templates writing
+     * deferred partials are not optimized, as the partials must be kept to be deferred.
+     *
+     * @param reader the reader on the template's source
+     * @param file   the template name
+     * @param sm     the start mark
+     * @param em     the end mark
+     * @return the compiled template
+     */
+    @Override
+    public Mustache compile(Reader reader, String file, String sm, String em) {
+        Mustache mustache = super.compile(reader, file, sm, em);
+        if (optimize && !CodeTrees.contains(mustache, DeferredResultsCode.class)) {
+            new TemplateOptimizer(this, file).optimize(mustache);
+        }
+        return mustache;
+    }
+
+    /**
+     * @return the maximum time (in milliseconds) during which a stale template is rendered while being recompiled
+     * in background, negative if there is no limit.
+     */
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    /**
+     * Sets the maximum time (in milliseconds) during which a stale template is rendered while being recompiled in
+     * background. Once exceeded, the template is recompiled by the rendering thread.
+     *
+     * @param maxStaleness the maximum staleness, negative for no limit
+     */
+    public void setMaxStaleness(long maxStaleness) {
+        this.maxStaleness = maxStaleness;
+    }
+
+    /**
+     * @return the render budget (in milliseconds) of the templates not setting their own budget, zero or negative
+     * if there is no budget.
+     */
+    public long getRenderTimeout() {
+        return renderTimeout;
+    }
+
+    /**
+     * Sets the render budget of the templates not setting their own budget with a {@literal {{! timeout <ms>}}}
+     * comment. When the budget runs out, the pending deferred partials are cancelled, or the rendering is aborted.
+     * This budget is checked on the thread of the request, it does not use the executor of the renderings with a
+     * budget.
+     *
+     * @param timeout the budget in milliseconds, zero or negative for no budget
+     */
+    public void setRenderTimeout(long timeout) {
+        this.renderTimeout = timeout;
+    }
+
+    /**
+     * @return the fragment replacing the deferred partials that have failed or have been cancelled.
+     */
+    public String getRenderFallback() {
+        return renderFallback;
+    }
+
+    /**
+     * Sets the fragment replacing the deferred partials that have failed, or have been cancelled because the
+     * render budget has run out.
+     *
+     * @param fallback the fragment (HTML), empty to leave the placeholders empty
+     */
+    public void setRenderFallback(String fallback) {
+        this.renderFallback = fallback == null ? "" : fallback;
+    }
+
+    /**
+     * @return the maximum number of partials deferred by one rendering.
+     */
+    public int getMaxDeferred() {
+        return maxDeferred;
+    }
+
+    /**
+     * Sets the maximum number of partials deferred by one rendering. The additional partials are rendered in
+     * place, so a page cannot occupy all the threads of the render executor.
+     *
+     * @param max the maximum number of deferred partials, zero to render them all in place
+     */
+    public void setMaxDeferred(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("The maximum number of deferred partials must be positive");
+        }
+        this.maxDeferred = max;
+    }
+
+    /**
+     * Configures the sampling profiler of the renderings. The sections, partials and values of the profiled
+     * renderings are timed, and the breakdown of the renderings lasting at least the threshold is logged and kept.
+     *
+     * @param sampling  one rendering out of {@code sampling} is profiled, zero or negative to disable the profiler
+     * @param threshold the minimal duration (in milliseconds) of the reported renderings, zero or negative to
+     *                  report all the profiled renderings
+     * @param capacity  the number of reported profiles kept
+     */
+    public void setProfiling(int sampling, long threshold, int capacity) {
+        profiler.configure(sampling, threshold, capacity);
+    }
+
+    /**
+     * @return the last reported profiles, the oldest first.
+     */
+    public List<RenderProfile> getRenderProfiles() {
+        return profiler.getProfiles();
+    }
+
+    /**
+     * @return {@code true} if renderings are profiled. When {@code false}, the codes do not look for a recorder.
+     */
+    boolean isProfiling() {
+        return profiler.isEnabled();
+    }
+
+    RenderProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Configures the memoization of the output of the pure partials ({@literal i.e.} partials containing a
+     * {@literal {{! pure}}} comment).
+     *
+     * @param scope the scope: {@code none}, {@code request} (memoized during a rendering), or {@code global}
+     *              (shared by all the renderings, with a time-to-live)
+     * @param size  the maximum number of memoized outputs (per rendering or globally)
+     * @param ttl   the time-to-live (in milliseconds) of the outputs memoized globally
+     */
+    public void setMemoization(String scope, int size, long ttl) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("The memoization size must be strictly positive");
+        }
+        PartialMemo.Scope parsed = PartialMemo.Scope.parse(scope);
+        this.memoSize = size;
+        this.globalMemo = parsed == PartialMemo.Scope.GLOBAL ? PartialMemo.global(size, ttl) : null;
+        this.memoScope = parsed;
+    }
+
+    PartialMemo.Scope getMemoScope() {
+        return memoScope;
+    }
+
+    int getMemoSize() {
+        return memoSize;
+    }
+
+    /**
+     * @return the global cache of the output of pure partials, {@code null} if the memoization is not global.
+     */
+    PartialMemo getGlobalMemo() {
+        return globalMemo;
+    }
+
+    /**
+     * @param name the template name
+     * @return the current version of the memoized outputs of the template
+     */
+    long getMemoVersion(String name) {
+        AtomicLong version = memoVersions.get(name);
+        return version == null ? 0L : version.get();
+    }
+
+    /**
+     * Invalidates the memoized outputs of the given templates: their version is incremented, and their entries are
+     * removed from the global cache.
+     *
+     * @param templates the updated or deleted templates, and the templates reading them
+     */
+    void invalidateMemo(Collection<MustacheTemplate> templates) {
+        Set<String> names = new HashSet<>();
+        for (MustacheTemplate template : templates) {
+            String name = template.name();
+            AtomicLong version = memoVersions.get(name);
+            if (version == null) {
+                AtomicLong created = new AtomicLong();
+                version = memoVersions.putIfAbsent(name, created);
+                if (version == null) {
+                    version = created;
+                }
+            }
+            version.incrementAndGet();
+            names.add(name);
+        }
+        PartialMemo memo = globalMemo;
+        if (memo != null) {
+            memo.invalidate(names);
+        }
+    }
+
+    /**
+     * Configures the memoization of the results of the functions implementing
+     * {@link org.wisdom.framework.mustache.api.Memoizable}.
+     *
+     * @param scope the scope: {@code none}, {@code request} (memoized during a rendering), or {@code global}
+     *              (shared by all the renderings, with a time-to-live)
+     * @param size  the maximum number of memoized results (per rendering or globally)
+     * @param ttl   the time-to-live (in milliseconds) of the results memoized globally
+     */
+    public void setFunctionMemoization(String scope, int size, long ttl) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("The memoization size must be strictly positive");
+        }
+        PartialMemo.Scope parsed = PartialMemo.Scope.parse(scope);
+        this.functionMemoSize = size;
+        this.globalFunctionMemo = parsed == PartialMemo.Scope.GLOBAL
+                ? FunctionMemo.global(size, ttl, functionMemoCounters) : null;
+        this.functionMemoScope = parsed;
+    }
+
+    /**
+     * @return the hit and miss counts of the memoized functions, since the creation of the factory.
+     */
+    public MemoStats getFunctionMemoStats() {
+        return functionMemoCounters.snapshot();
+    }
+
+    /**
+     * @return a cache of the function results for a new rendering, {@code null} unless the scope is
+     * {@code request}. Only used when the partials of the rendering are rendered concurrently, otherwise the cache is
+     * created on the first memoized call.
+     */
+    FunctionMemo createRequestFunctionMemo() {
+        if (functionMemoScope != PartialMemo.Scope.REQUEST) {
+            return null;
+        }
+        return FunctionMemo.forRequest(functionMemoSize, functionMemoCounters);
+    }
+
+    /**
+     * Wraps the given function if it is memoizable and memoization is enabled. With the {@code request} scope, the
+     * cache of the rendering is created on the first memoized call.
+     *
+     * @param function    the function
+     * @param requestMemo the value bound to {@link FunctionMemo#KEY} in the rendering scopes
+     * @param scopes      the rendering scopes
+     * @return the function to call
+     */
+    Function<?, ?> memoize(Function<?, ?> function, Object requestMemo, Object[] scopes) {
+        if (!(function instanceof Memoizable)) {
+            return function;
+        }
+        FunctionMemo memo;
+        if (requestMemo instanceof FunctionMemo) {
+            memo = (FunctionMemo) requestMemo;
+        } else if (functionMemoScope == PartialMemo.Scope.REQUEST) {
+            memo = FunctionMemo.bind(scopes, functionMemoSize, functionMemoCounters);
+        } else {
+            memo = globalFunctionMemo;
+        }
+        return memo == null ? function : memo.wrap(function);
+    }
+
+    /**
+     * @return whether or not the compiled templates are optimized.
+     */
+    public boolean isOptimize() {
+        return optimize;
+    }
+
+    /**
+     * Enables or disables the optimization of the compiled templates.
+     *
+     * @param optimize {@code true} to optimize the compiled templates
+     */
+    public void setOptimize(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    /**
+     * @return the charset of the template sources without byte order mark.
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the charset of the template sources. Sources starting with a byte order mark (UTF-8 or UTF-16) are
+     * decoded with the charset it indicates.
+     *
+     * @param charset the charset
+     */
+    public void setCharset(Charset charset) {
+        if (charset == null) {
+            throw new IllegalArgumentException("The charset must not be null");
+        }
+        this.charset = charset;
+    }
+
+    /**
+     * Enables or disables the interning of the static text segments. Identical segments of the templates compiled
+     * while enabled share the same string.
+     *
+     * @param internText {@code true} to intern the static text segments
+     */
+    public void setInternText(boolean internText) {
+        this.internText = internText;
+    }
+
+    /**
+     * @return the number of compiled trees cached by the factory (templates and partials).
+     */
+    public int getMustacheCacheSize() {
+        return mustacheCache.size();
+    }
+
+    /**
+     * @return the number of compiled fragments (lambdas) cached by the factory.
+     */
+    public int getFragmentCacheSize() {
+        return templateCache.size();
+    }
+
+    /**
+     * @return the footprint of the interned static text segments.
+     */
+    public TextFootprint getTextFootprint() {
+        return textPool.getFootprint();
+    }
+
+    /**
+     * Gets the shared instance of the given static text segment, if the interning is enabled.
+     *
+     * @param text the segment
+     * @return the shared segment
+     */
+    String intern(String text) {
+        return internText ? textPool.intern(text) : text;
+    }
+
+    /**
+     * Filters the static text segments when the templates are initialized: the segments are interned.
+     *
+     * @param appended    the segment
+     * @param startOfLine whether or not the segment starts a line
+     * @return the filtered segment
+     */
+    @Override
+    public String filterText(String appended, boolean startOfLine) {
+        return intern(super.filterText(appended, startOfLine));
+    }
+
+    /**
+     * @return whether or not a gzipped version of the output of constant templates is computed.
+     */
+    public boolean isGzipConstants() {
+        return gzipConstants;
+    }
+
+    /**
+     * Enables or disables the computation of a gzipped version of the output of constant templates. The gzipped
+     * version is served to the clients accepting it.
+     *
+     * @param gzip {@code true} to enable the compression
+     */
+    public void setGzipConstants(boolean gzip) {
+        this.gzipConstants = gzip;
+    }
+
+    /**
+     * Gets the executor used to render templates progressively and to execute the deferred partials. It is created
+     * on the first call. It has at most {@link #setProgressiveRendering(int, int)} threads and waiting tasks, and
+     * rejects the additional ones: the callers then render inline, on their own thread.
+     *
+     * @return the executor
+     */
+    public synchronized ExecutorService getRenderExecutor() {
+        if (renderExecutor == null) {
+            renderExecutor = new ThreadPoolExecutor(progressiveThreads, progressiveThreads, 60L, TimeUnit.SECONDS,
+                    progressiveQueue == 0 ? new SynchronousQueue<Runnable>()
+                            : new ArrayBlockingQueue<Runnable>(progressiveQueue), new ThreadFactoryBuilder()
+                    .setNameFormat("mustache-renderer-%d")
+                    .setDaemon(true)
+                    .build());
+            renderExecutor.allowCoreThreadTimeOut(true);
+        }
+        return renderExecutor;
+    }
+
+    /**
+     * Configures the executor rendering templates progressively and executing the deferred partials. The current
+     * executor (if any) is stopped, a new one is created on demand.
+     *
+     * @param threads the number of threads, strictly positive
+     * @param queue   the number of tasks waiting for a thread, additional tasks are executed by the caller
+     */
+    public synchronized void setProgressiveRendering(int threads, int queue) {
+        if (threads <= 0 || queue < 0) {
+            throw new IllegalArgumentException("The number of threads must be strictly positive, and the queue size "
+                    + "positive");
+        }
+        this.progressiveThreads = threads;
+        this.progressiveQueue = queue;
+        if (renderExecutor != null) {
+            renderExecutor.shutdownNow();
+            renderExecutor = null;
+        }
+    }
+
+    /**
+     * Gets the executor of the renderings of the templates setting their own budget. It is created on the first
+     * call. It has at most {@link #setBudgetThreads(int)} threads, and as many waiting renderings: threads blocked in
+     * data methods ignoring interruptions do not make it grow. The renderings it rejects are executed by the caller.
+     *
+     * @return the executor
+     */
+    synchronized ThreadPoolExecutor getBudgetExecutor() {
+        if (budgetExecutor == null) {
+            budgetExecutor = new ThreadPoolExecutor(budgetThreads, budgetThreads, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(budgetThreads), new ThreadFactoryBuilder()
+                    .setNameFormat("mustache-budget-%d")
+                    .setDaemon(true)
+                    .build());
+            budgetExecutor.allowCoreThreadTimeOut(true);
+        }
+        return budgetExecutor;
+    }
+
+    /**
+     * Sets the number of threads executing the renderings with a budget. The current executor (if any) is
+     * stopped, a new one is created on demand.
+     *
+     * @param threads the number of threads, strictly positive
+     */
+    public synchronized void setBudgetThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("The number of threads must be strictly positive");
+        }
+        this.budgetThreads = threads;
+        if (budgetExecutor != null) {
+            budgetExecutor.shutdownNow();
+            budgetExecutor = null;
+        }
+    }
+
+    /**
+     * Releases the resources held by the factory, such as the rendering threads. The factory can still be used
+     * afterwards, resources are recreated on demand.
+     */
+    public synchronized void shutdown() {
+        if (renderExecutor != null) {
+            renderExecutor.shutdownNow();
+            renderExecutor = null;
+        }
+        if (budgetExecutor != null) {
+            budgetExecutor.shutdownNow();
+            budgetExecutor = null;
+        }
+        if (asyncRenderer != null) {
+            asyncRenderer.shutdown();
+            asyncRenderer = null;
+        }
+    }
+
+    /**
+     * Configures the executor of the asynchronous renderings. The current executor (if any) is stopped, a new one
+     * is created on demand.
+     *
+     * @param threads the number of threads (or of concurrent renderings when virtual threads are used)
+     * @param queue   the number of renderings waiting for a thread, additional renderings are rejected
+     * @param virtual whether or not virtual threads are used, when supported by the JVM
+     */
+    public synchronized void setAsyncRendering(int threads, int queue, boolean virtual) {
+        if (threads <= 0 || queue < 0) {
+            throw new IllegalArgumentException("The number of threads must be strictly positive, and the queue size "
+                    + "positive");
+        }
+        this.asyncThreads = threads;
+        this.asyncQueue = queue;
+        this.asyncVirtual = virtual;
+        if (asyncRenderer != null) {
+            asyncRenderer.shutdown();
+            asyncRenderer = null;
+        }
+    }
+
+    /**
+     * Gets the executor of the asynchronous renderings. It is created on demand.
+     *
+     * @return the executor
+     */
+    synchronized AsyncRenderer getAsyncRenderer() {
+        if (asyncRenderer == null) {
+            asyncRenderer = new AsyncRenderer(asyncThreads, asyncQueue, asyncVirtual);
+        }
+        return asyncRenderer;
+    }
+
+    /**
+     * @return the number of asynchronous renderings rejected because too many renderings were pending, since the
+     * executor was created.
+     */
+    public synchronized long getRejectedRenderings() {
+        return asyncRenderer == null ? 0L : asyncRenderer.getRejectedCount();
+    }
+
+    /**
+     * Gets the compiled fragment (text of a section given to a function). The key is recorded in the index of
+     * fragments of the template containing the fragment, so it can be invalidated without scanning the cache.
+     *
+     * @param key the fragment key
+     * @return the compiled fragment
+     */
+    @Override
+    public Mustache getFragment(FragmentKey key) {
+        Mustache mustache = super.getFragment(key);
+        String file = key.tc.file();
+        Set<FragmentKey> keys = fragments.get(file);
+        if (keys == null) {
+            Set<FragmentKey> set = Collections.newSetFromMap(new ConcurrentHashMap<FragmentKey, Boolean>());
+            keys = fragments.putIfAbsent(file, set);
+            if (keys == null) {
+                keys = set;
+            }
+        }
+        keys.add(key);
+        return mustache;
+    }
+
     /**
      * Removes the template from the cache.
      *
      * @param template the template
      */
     public void clear(MustacheTemplate template) {
-        mustacheCache.remove(template.name());
-        if (template.compiled != null) {
-            ConcurrentMap<FragmentKey, Mustache> map = new ConcurrentHashMap<>(templateCache);
-            for (Map.Entry<FragmentKey, Mustache> entry : map.entrySet()) {
-                if (entry.getValue().equals(template.compiled)) {
-                    templateCache.remove(entry.getKey());
+        clear(Collections.singleton(template));
+    }
+
+    /**
+     * Removes the given templates from the cache. Only the cache entries related to these templates are visited.
+     *
+     * @param templates the templates
+     */
+    public void clear(Collection<MustacheTemplate> templates) {
+        Object event = EVENTS.beginInvalidation();
+        int removed = 0;
+        for (MustacheTemplate template : templates) {
+            mustacheCache.remove(template.name());
+            Set<FragmentKey> keys = fragments.remove(template.name());
+            if (keys != null) {
+                for (FragmentKey key : keys) {
+                    if (templateCache.remove(key) != null) {
+                        removed++;
+                    }
                 }
             }
         }
+        EVENTS.endInvalidation(event, templates.size(), removed);
     }
 
     /**
      * Gets a {@link java.io.Reader} object on the source of the template having the given name. This method is used
-     * to resolved partials.
+     * to resolved partials. Missing templates are remembered: the next lookups of the same name fail fast with the
+     * same error, until a template with this name is added.
      *
      * @param name the name of the template
      * @return a reader to read the template's source.
@@ -84,6 +895,39 @@ public class ExtendedMustacheFactory extends DeferringMustacheFactory {
      */
     @Override
     public Reader getReader(String name) {
+        String simplified = simplify(name);
+        // The missing templates are recorded too, so the including template is recompiled once they are added.
+        Set<String> read = readTemplates.get();
+        if (read != null) {
+            read.add(simplified);
+        }
+        MustacheException missing = missingTemplates.get(simplified);
+        if (missing != null) {
+            throw missing;
+        }
+        Object event = EVENTS.beginPartialResolution();
+        MustacheTemplate template = collector.getTemplateByName(simplified);
+        EVENTS.endPartialResolution(event, simplified, template != null);
+        if (template != null) {
+            try {
+                return new StringReader(TemplateSource.read(template.getURL(), charset).getText());
+            } catch (IOException e) {
+                throw new MustacheException("Cannot read the template " + name, e);
+            }
+        }
+
+        missing = new MustacheException("Template \'" + name + "\' not found");
+        MustacheException previous = missingTemplates.putIfAbsent(simplified, missing);
+        throw previous == null ? missing : previous;
+    }
+
+    /**
+     * Computes the name of the template read for the given partial name.
+     *
+     * @param name the partial name, as resolved by the including template
+     * @return the template name
+     */
+    static String simplify(String name) {
         // On windows the path containing '..' are not stripped from the path, so we ensure they are.
         String simplified = name;
         if (name.contains("..")) {
@@ -93,18 +937,30 @@ public class ExtendedMustacheFactory extends DeferringMustacheFactory {
         if (simplified.startsWith("/") && simplified.length() > 1) {
             simplified = simplified.substring(1, simplified.length());
         }
-        for (Template t : collector.getTemplates()) {
-            MustacheTemplate template = (MustacheTemplate) t;
-            if (template.name().equals(simplified)) {
-                try {
-                    return IOUtils.toBufferedReader(new StringReader(IOUtils.toString(template.getURL())));
-                } catch (IOException e) {
-                    throw new MustacheException("Cannot read the template " + name, e);
-                }
-            }
-        }
+        return simplified;
+    }
+
+    /**
+     * Notifies the factory that a template has been added, so it is not considered as missing anymore.
+     *
+     * @param name the template name
+     * @return {@code true} if the template was considered as missing
+     */
+    boolean templateAdded(String name) {
+        return missingTemplates.remove(name) != null;
+    }
 
-        throw new MustacheException("Template \'" + name + "\' not found");
+    /**
+     * Notifies the collector of the templates read by the compilation of the given template, so the partial graph
+     * of its registry is kept up to date.
+     *
+     * @param template the compiled template
+     * @param partials the names of the templates read by the compilation
+     */
+    void partialsRead(MustacheTemplate template, Set<String> partials) {
+        if (collector != null) {
+            collector.partialsRead(template, partials);
+        }
     }
 
 }
@@ -0,0 +1,182 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.DefaultMustacheVisitor;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheVisitor;
+import com.github.mustachejava.PragmaHandler;
+import com.github.mustachejava.TemplateContext;
+
+/**
+ * The visitor used by the {@link org.wisdom.framework.mustache.ExtendedMustacheFactory} to build the code tree of
+ * the templates. It wraps the default visitor and adds the Wisdom specific constructions:
+ * <ul>
+ * <li>{@literal {{! flush}}} - flushes the output written so far when the template is rendered progressively</li>
+ * <li>{@literal {{> partial}}} - partials can be deferred by setting their name to
+ * {@link com.github.mustachejava.DeferringMustacheFactory#DEFERRED}</li>
+ * <li>{@literal {{{deferred}}}} - writes the result of the deferred partials as soon as they are completed</li>
+ * <li>{@literal {{value}}} - {@link org.wisdom.framework.mustache.api.SafeContent} values are not escaped</li>
+ * <li>{@literal {{#section}}} and {@literal {{^section}}} - sections check the render budget of the rendering</li>
+ * </ul>
+ * <p>
+ * As the list of codes of the wrapped visitor is not accessible, the custom codes are inserted using a pragma
+ * handler.
+ */
+class ExtendedMustacheVisitor implements MustacheVisitor {
+
+    /**
+     * The comment used to request a flush of the output.
+     */
+    public static final String FLUSH = "flush";
+
+    /**
+     * The comment setting the render budget of a template, followed by the budget in milliseconds.
+     */
+    public static final String TIMEOUT = "timeout";
+
+    /**
+     * The variable where the deferred partials are written.
+     */
+    public static final String DEFERRED = "deferred";
+
+    /**
+     * The internal pragma used to insert codes in the wrapped visitor.
+     */
+    private static final String INSERT = "wisdom-insert";
+
+    private final ExtendedMustacheFactory factory;
+
+    private final DefaultMustacheVisitor delegate;
+
+    /**
+     * The code to insert, returned by the pragma handler.
+     */
+    private Code inserted;
+
+    /**
+     * The flush code created for the last visited comment. The parser notifies the text written before a comment
+     * just after the comment itself, so this text is attached to the flush code instead of being appended to it.
+     */
+    private FlushCode pendingFlush;
+
+    /**
+     * Creates a new visitor.
+     *
+     * @param factory  the factory
+     * @param delegate the wrapped visitor
+     */
+    ExtendedMustacheVisitor(ExtendedMustacheFactory factory, DefaultMustacheVisitor delegate) {
+        this.factory = factory;
+        this.delegate = delegate;
+        this.delegate.addPragmaHandler(INSERT, new PragmaHandler() {
+            @Override
+            public Code handle(TemplateContext tc, String pragma, String args) {
+                // Returns null when the pragma is used directly in a template, so nothing is inserted.
+                Code code = inserted;
+                inserted = null;
+                return code;
+            }
+        });
+    }
+
+    /**
+     * Inserts the given code in the code list of the wrapped visitor.
+     *
+     * @param tc   the template context
+     * @param code the code
+     */
+    private void insert(TemplateContext tc, Code code) {
+        inserted = code;
+        delegate.pragma(tc, INSERT, null);
+    }
+
+    @Override
+    public Mustache mustache(TemplateContext templateContext) {
+        return delegate.mustache(templateContext);
+    }
+
+    @Override
+    public void iterable(TemplateContext templateContext, String variable, Mustache mustache) {
+        insert(templateContext, new TrackedIterableCode(templateContext, factory, mustache, variable));
+    }
+
+    @Override
+    public void notIterable(TemplateContext templateContext, String variable, Mustache mustache) {
+        insert(templateContext, new TrackedNotIterableCode(templateContext, factory, mustache, variable));
+    }
+
+    @Override
+    public void partial(TemplateContext templateContext, String variable) {
+        TemplateContext partialTC = new TemplateContext("{{", "}}", templateContext.file(), templateContext.line(),
+                templateContext.startOfLine());
+        insert(templateContext, new DeferrablePartialCode(partialTC, factory, variable));
+    }
+
+    @Override
+    public void value(TemplateContext templateContext, String variable, boolean encoded) {
+        if (DEFERRED.equals(variable)) {
+            insert(templateContext, new DeferredResultsCode(templateContext, factory, encoded));
+            return;
+        }
+        insert(templateContext, new SafeAwareValueCode(templateContext, factory, variable, encoded));
+    }
+
+    @Override
+    public void write(TemplateContext templateContext, String text) {
+        if (pendingFlush != null) {
+            pendingFlush.precede(text);
+            pendingFlush = null;
+            return;
+        }
+        delegate.write(templateContext, text);
+    }
+
+    @Override
+    public void pragma(TemplateContext templateContext, String pragma, String args) {
+        delegate.pragma(templateContext, pragma, args);
+    }
+
+    @Override
+    public void eof(TemplateContext templateContext) {
+        delegate.eof(templateContext);
+    }
+
+    @Override
+    public void extend(TemplateContext templateContext, String variable, Mustache mustache) {
+        delegate.extend(templateContext, variable, mustache);
+    }
+
+    @Override
+    public void name(TemplateContext templateContext, String variable, Mustache mustache) {
+        delegate.name(templateContext, variable, mustache);
+    }
+
+    @Override
+    public void comment(TemplateContext templateContext, String comment) {
+        if (FLUSH.equalsIgnoreCase(comment.trim())) {
+            pendingFlush = new FlushCode(templateContext, factory);
+            insert(templateContext, pendingFlush);
+            return;
+        }
+        delegate.comment(templateContext, comment);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.DefaultCode;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Code created for the {@literal {{! flush}}} comments. When executed, it writes the text located before the
+ * comment and then flushes the writer. When the template is rendered into a {@link java.io.StringWriter}, flushing
+ * has no effect. When the template is rendered progressively, the content written so far is sent to the client.
+ */
+class FlushCode extends DefaultCode {
+
+    /**
+     * The text located before the comment.
+     */
+    private String preceding;
+
+    /**
+     * Creates a new flush code.
+     *
+     * @param tc the template context
+     * @param df the factory
+     */
+    FlushCode(TemplateContext tc, DefaultMustacheFactory df) {
+        super(tc, df, null, ExtendedMustacheVisitor.FLUSH, "!");
+    }
+
+    /**
+     * Sets the text written before the flush.
+     *
+     * @param text the text
+     */
+    void precede(String text) {
+        if (text != null && text.length() > 0) {
+            preceding = text;
+        }
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+        try {
+            if (preceding != null) {
+                writer.write(preceding);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new MustacheException("Cannot flush the rendered content", e, tc);
+        }
+        return appendText(writer);
+    }
+
+    @Override
+    public void identity(Writer writer) {
+        try {
+            if (preceding != null) {
+                writer.write(preceding);
+            }
+        } catch (IOException e) {
+            throw new MustacheException(e);
+        }
+        super.identity(writer);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.TemplateFunction;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.wisdom.framework.mustache.api.MemoStats;
+import org.wisdom.framework.mustache.api.Memoizable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A bounded cache storing the result of the {@link org.wisdom.framework.mustache.api.Memoizable} template
+ * functions, keyed on the function and its input text. As for {@link PartialMemo}, the cache is either scoped to a
+ * rendering (stored in the rendering context), or global to the factory with a time-to-live.
+ * <p>
+ * The rendering-scoped caches are created on the first memoized call, and bound to the {@link RenderingContext}, so
+ * renderings not calling memoizable functions do not pay for them.
+ */
+final class FunctionMemo {
+
+    /**
+     * The key of the rendering-scoped cache in the rendering context.
+     */
+    static final String KEY = "__functions";
+
+    /**
+     * Stored for the functions returning {@code null}, as the cache does not accept {@code null} values. Functions
+     * returning an empty string or {@code null} produce the same output.
+     */
+    private static final String NULL = "";
+
+    private final int size;
+
+    private final long ttl;
+
+    private final Counters counters;
+
+    private volatile Cache<List<Object>, String> cache;
+
+    private FunctionMemo(int size, long ttl, Counters counters) {
+        this.size = size;
+        this.ttl = ttl;
+        this.counters = counters;
+    }
+
+    /**
+     * Creates a cache for a single rendering.
+     *
+     * @param size     the maximum number of entries
+     * @param counters the counters updated by the cache
+     * @return the cache
+     */
+    static FunctionMemo forRequest(int size, Counters counters) {
+        return new FunctionMemo(size, -1L, counters);
+    }
+
+    /**
+     * Creates the cache of the current rendering, and binds it to the rendering context so the next calls reuse it.
+     * Called on the first memoized call of the rendering.
+     *
+     * @param scopes   the rendering scopes, the first one being the rendering context
+     * @param size     the maximum number of entries
+     * @param counters the counters updated by the cache
+     * @return the cache, {@code null} if the scopes do not start with a rendering context
+     */
+    static FunctionMemo bind(Object[] scopes, int size, Counters counters) {
+        if (scopes.length == 0 || !(scopes[0] instanceof RenderingContext)) {
+            return null;
+        }
+        FunctionMemo memo = forRequest(size, counters);
+        ((RenderingContext) scopes[0]).put(KEY, memo);
+        return memo;
+    }
+
+    /**
+     * Creates a global cache.
+     *
+     * @param size     the maximum number of entries
+     * @param ttl      the time (in milliseconds) during which an entry is kept
+     * @param counters the counters updated by the cache
+     * @return the cache
+     */
+    static FunctionMemo global(int size, long ttl, Counters counters) {
+        FunctionMemo memo = new FunctionMemo(size, ttl, counters);
+        memo.getCache();
+        return memo;
+    }
+
+    /**
+     * Wraps the given function if it is memoizable.
+     *
+     * @param function the function
+     * @return the function memoizing the results of the given function, or the given function if it is not
+     * memoizable. The wrapper is a {@link com.github.mustachejava.TemplateFunction} if the given function is one,
+     * so its result is still rendered as a template.
+     */
+    Function<?, ?> wrap(Function<?, ?> function) {
+        if (!(function instanceof Memoizable)) {
+            return function;
+        }
+        // Mustache calls the functions with the text of their section.
+        @SuppressWarnings("unchecked")
+        Function<String, ?> delegate = (Function<String, ?>) function;
+        if (function instanceof TemplateFunction) {
+            return new MemoizingTemplateFunction(delegate);
+        }
+        return new MemoizingFunction(delegate);
+    }
+
+    private Cache<List<Object>, String> getCache() {
+        Cache<List<Object>, String> current = cache;
+        if (current == null) {
+            synchronized (this) {
+                current = cache;
+                if (current == null) {
+                    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(size);
+                    if (ttl > 0) {
+                        builder.expireAfterWrite(ttl, TimeUnit.MILLISECONDS);
+                    }
+                    current = builder.build();
+                    cache = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private String apply(Function<String, ?> function, String input) {
+        List<Object> key = Arrays.<Object>asList(function, input);
+        Cache<List<Object>, String> current = getCache();
+        String result = current.getIfPresent(key);
+        if (result != null) {
+            counters.hits.incrementAndGet();
+            return result;
+        }
+        counters.misses.incrementAndGet();
+        Object output = function.apply(input);
+        result = output == null ? NULL : output.toString();
+        current.put(key, result);
+        return result;
+    }
+
+    /**
+     * @return the number of memoized results.
+     */
+    long size() {
+        Cache<List<Object>, String> current = cache;
+        return current == null ? 0L : current.size();
+    }
+
+    /**
+     * The hit and miss counters, shared by the caches of a factory.
+     */
+    static final class Counters {
+
+        private final AtomicLong hits = new AtomicLong();
+
+        private final AtomicLong misses = new AtomicLong();
+
+        /**
+         * @return a snapshot of the counters.
+         */
+        MemoStats snapshot() {
+            return new MemoStats(hits.get(), misses.get());
+        }
+    }
+
+    /**
+     * The wrapper of the memoizable functions.
+     */
+    private class MemoizingFunction implements Function<String, String> {
+
+        private final Function<String, ?> delegate;
+
+        MemoizingFunction(Function<String, ?> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String apply(String input) {
+            return FunctionMemo.this.apply(delegate, input);
+        }
+    }
+
+    /**
+     * The wrapper of the memoizable template functions, whose result is rendered as a template.
+     */
+    private class MemoizingTemplateFunction extends MemoizingFunction implements TemplateFunction {
+
+        MemoizingTemplateFunction(Function<String, ?> delegate) {
+            super(delegate);
+        }
+    }
+}
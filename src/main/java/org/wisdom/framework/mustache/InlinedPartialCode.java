@@ -0,0 +1,95 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.DefaultCode;
+import com.github.mustachejava.codes.DefaultMustache;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Code replacing a partial inlined by the {@link org.wisdom.framework.mustache.TemplateOptimizer}. It executes the
+ * optimized codes of the partial directly, but keeps the partial boundary: when the rendering has a budget, the
+ * partial is recorded as the running section, and when the rendering is profiled, its execution time is recorded,
+ * as for the {@link org.wisdom.framework.mustache.DeferrablePartialCode} it replaces.
+ * <p>
+ * The text written after the partial is not attached to this code, the optimizer merges it with the following
+ * text.
+ */
+class InlinedPartialCode extends DefaultCode {
+
+    private final ExtendedMustacheFactory factory;
+
+    private final String section;
+
+    /**
+     * Creates a new inlined partial.
+     *
+     * @param tc      the template context
+     * @param factory the factory
+     * @param name    the partial name
+     * @param codes   the optimized codes of the partial
+     */
+    InlinedPartialCode(TemplateContext tc, ExtendedMustacheFactory factory, String name, Code[] codes) {
+        super(tc, factory, new DefaultMustache(tc, factory, codes, name), name, ">");
+        this.factory = factory;
+        this.section = ">" + name;
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+        RenderDeadline deadline = RenderDeadline.current();
+        RenderRecorder recorder = factory.isProfiling() ? RenderRecorder.current() : null;
+        if (deadline == null && recorder == null) {
+            return super.execute(writer, scopes);
+        }
+        String previous = deadline == null ? null : deadline.enter(section);
+        long start = recorder == null ? 0L : recorder.enter(section);
+        try {
+            return super.execute(writer, scopes);
+        } finally {
+            if (recorder != null) {
+                recorder.exit(start);
+            }
+            if (deadline != null) {
+                deadline.exit(previous);
+            }
+        }
+    }
+
+    /**
+     * Writes the partial tag, as the partial it replaces, so lambdas receive the original section text.
+     *
+     * @param writer the writer
+     */
+    @Override
+    public void identity(Writer writer) {
+        try {
+            tag(writer, type);
+        } catch (IOException e) {
+            throw new MustacheException(e);
+        }
+        appendText(writer);
+    }
+}
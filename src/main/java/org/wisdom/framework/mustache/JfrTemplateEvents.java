@@ -0,0 +1,165 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The {@link TemplateEvents} emitting Java Flight Recorder events. This class is only loaded when JFR is available.
+ */
+final class JfrTemplateEvents extends TemplateEvents {
+
+    @Override
+    Object beginRender() {
+        return begin(new RenderEvent());
+    }
+
+    @Override
+    void endRender(Object event, String template, boolean cached, long outputSize, int contextSize) {
+        RenderEvent render = (RenderEvent) event;
+        if (render != null && end(render)) {
+            render.template = template;
+            render.cached = cached;
+            render.outputSize = outputSize;
+            render.contextSize = contextSize;
+            render.commit();
+        }
+    }
+
+    @Override
+    Object beginCompile() {
+        return begin(new CompileEvent());
+    }
+
+    @Override
+    void endCompile(Object event, String template, int partials, boolean success) {
+        CompileEvent compile = (CompileEvent) event;
+        if (compile != null && end(compile)) {
+            compile.template = template;
+            compile.partials = partials;
+            compile.success = success;
+            compile.commit();
+        }
+    }
+
+    @Override
+    Object beginPartialResolution() {
+        return begin(new PartialResolutionEvent());
+    }
+
+    @Override
+    void endPartialResolution(Object event, String partial, boolean found) {
+        PartialResolutionEvent resolution = (PartialResolutionEvent) event;
+        if (resolution != null && end(resolution)) {
+            resolution.partial = partial;
+            resolution.found = found;
+            resolution.commit();
+        }
+    }
+
+    @Override
+    Object beginInvalidation() {
+        return begin(new InvalidationEvent());
+    }
+
+    @Override
+    void endInvalidation(Object event, int templates, int fragments) {
+        InvalidationEvent invalidation = (InvalidationEvent) event;
+        if (invalidation != null && end(invalidation)) {
+            invalidation.templates = templates;
+            invalidation.fragments = fragments;
+            invalidation.commit();
+        }
+    }
+
+    private static Event begin(Event event) {
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    private static boolean end(Event event) {
+        event.end();
+        return event.shouldCommit();
+    }
+
+    @Name("org.wisdom.mustache.Render")
+    @Label("Template Rendering")
+    @Category({"Wisdom", "Mustache"})
+    static class RenderEvent extends Event {
+        @Label("Template")
+        String template;
+
+        @Label("Cached")
+        @Description("Whether the compiled template was reused")
+        boolean cached;
+
+        @Label("Output Size")
+        @Description("The number of rendered characters, -1 for progressive renderings")
+        long outputSize;
+
+        @Label("Context Size")
+        int contextSize;
+    }
+
+    @Name("org.wisdom.mustache.Compile")
+    @Label("Template Compilation")
+    @Category({"Wisdom", "Mustache"})
+    static class CompileEvent extends Event {
+        @Label("Template")
+        String template;
+
+        @Label("Partials")
+        @Description("The number of templates read during the compilation")
+        int partials;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("org.wisdom.mustache.PartialResolution")
+    @Label("Partial Resolution")
+    @Category({"Wisdom", "Mustache"})
+    static class PartialResolutionEvent extends Event {
+        @Label("Partial")
+        String partial;
+
+        @Label("Found")
+        boolean found;
+    }
+
+    @Name("org.wisdom.mustache.Invalidation")
+    @Label("Template Invalidation")
+    @Category({"Wisdom", "Mustache"})
+    static class InvalidationEvent extends Event {
+        @Label("Templates")
+        int templates;
+
+        @Label("Fragments")
+        @Description("The number of cached fragments removed")
+        int fragments;
+    }
+}
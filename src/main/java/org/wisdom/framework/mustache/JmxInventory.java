@@ -0,0 +1,77 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import org.wisdom.framework.mustache.api.TemplateInfo;
+import org.wisdom.framework.mustache.api.TemplateInventoryMXBean;
+
+import java.util.List;
+
+/**
+ * Exposes the inventory of the templates through JMX. Each attribute computes a new inventory.
+ */
+final class JmxInventory implements TemplateInventoryMXBean {
+
+    private final MustacheTemplateCollector collector;
+
+    JmxInventory(MustacheTemplateCollector collector) {
+        this.collector = collector;
+    }
+
+    @Override
+    public int getTemplateCount() {
+        return collector.getInventory().getTemplateCount();
+    }
+
+    @Override
+    public int getCompiledCount() {
+        return collector.getInventory().getCompiledCount();
+    }
+
+    @Override
+    public int getFailedCount() {
+        return collector.getInventory().getFailedCount();
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        return collector.getInventory().getEstimatedSize();
+    }
+
+    @Override
+    public int getMustacheCacheSize() {
+        return collector.getInventory().getMustacheCacheSize();
+    }
+
+    @Override
+    public int getFragmentCacheSize() {
+        return collector.getInventory().getFragmentCacheSize();
+    }
+
+    @Override
+    public List<TemplateInfo> getTemplates() {
+        return collector.getInventory().getTemplates();
+    }
+
+    @Override
+    public List<String> getUnusedTemplates() {
+        return collector.getInventory().getUnusedTemplates();
+    }
+}
@@ -19,47 +19,120 @@
  */
 package org.wisdom.framework.mustache;
 
-import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.Code;
 import com.github.mustachejava.Mustache;
+import com.google.common.io.CharStreams;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.wisdom.api.Controller;
 import org.wisdom.api.bodies.RenderableString;
 import org.wisdom.api.http.Context;
 import org.wisdom.api.http.MimeTypes;
 import org.wisdom.api.http.Renderable;
-import org.wisdom.api.templates.Template;
+import org.wisdom.framework.mustache.api.MustacheRendering;
+import org.wisdom.framework.mustache.api.TemplateInfo;
 
 import java.io.*;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.wisdom.framework.mustache.TemplateEvents.EVENTS;
 
 /**
  * Implementation of {@link org.wisdom.api.templates.Template} for Mustache.
  * <p>
  * It computes the mime-type from the template's extensions. Are supported: mst.json, mst.xml,
  * mst.plain and mst.html. In all the other case, {@literal text/plain} is used.
+ * <p>
+ * Templates containing a {@literal {{! flush}}} comment are rendered progressively: the result is sent to the
+ * client in chunks while the template is being executed. Templates containing {@literal {{{deferred}}}} are also
+ * rendered progressively: partials whose name is bound to
+ * {@link com.github.mustachejava.DeferringMustacheFactory#DEFERRED} are executed concurrently and streamed as soon as
+ * they are completed.
+ * <p>
+ * Renderings can have a budget, set globally or by a top-level {@literal {{! timeout <ms>}}} comment. Templates
+ * with a budget are executed on the render executor. When the budget runs out, the pending deferred partials are
+ * replaced by the fallback fragment, or the rendering is aborted with a
+ * {@link org.wisdom.framework.mustache.api.RenderTimeoutException}.
+ * <p>
+ * When the sampling profiler is enabled, the sampled renderings record the time spent in each section, partial and
+ * value (see {@link org.wisdom.framework.mustache.api.RenderProfile}).
  */
-public class MustacheTemplate implements Template {
+public class MustacheTemplate implements MustacheRendering {
 
     /**
      * The template location.
      */
     public static final String TEMPLATES = "/templates/";
 
+    private static final long UNKNOWN_CHECKSUM = -1L;
+
+    private static final long FRESH = 0L;
+
+    /**
+     * The value of {@link #staleSince} while a thread recompiles the stale template.
+     */
+    private static final long REVALIDATING = -1L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MustacheTemplate.class);
+
     private final URL url;
-    private final DefaultMustacheFactory msf;
-    protected Mustache compiled;
+    private final ExtendedMustacheFactory msf;
+    /**
+     * The compiled template, {@code null} if not compiled yet. It is replaced atomically when the template is
+     * reloaded, so a rendering always uses a consistent version of the template and its partials.
+     */
+    private volatile CompiledTemplate compiled;
+    /**
+     * The failure of the last compilation, {@code null} if the last compilation succeeded. While set (and the
+     * template is not compiled), the renderings fail fast with the same error instead of compiling the template
+     * again. It is cleared when the template, or one of the templates it reads, is added or updated.
+     */
+    private volatile Failure failure;
+    /**
+     * The checksum of the last known source, {@link #UNKNOWN_CHECKSUM} if the source has not been read yet.
+     */
+    private volatile long checksum = UNKNOWN_CHECKSUM;
+    /**
+     * The time (in milliseconds) since which the compiled version is stale, {@link #FRESH} if it is not stale, and
+     * {@link #REVALIDATING} while a thread recompiles it. The recompilation is claimed by swapping the time with
+     * {@link #REVALIDATING}, so a single thread recompiles the template.
+     */
+    private final AtomicLong staleSince = new AtomicLong(FRESH);
+    /**
+     * Incremented every time the template is marked as stale.
+     */
+    private long staleGeneration;
     private final String path;
     private final String mime;
 
+    /**
+     * The number of renderings (the warm-up renderings are not counted).
+     */
+    private final AtomicLong renders = new AtomicLong();
+
+    /**
+     * The time of the last rendering (epoch milliseconds), {@code -1} if never rendered.
+     */
+    private volatile long lastRender = -1L;
+
     /**
      * Creates the template object.
      *
      * @param msf         the factory used to compile the template
      * @param templateURL the template url
      */
-    public MustacheTemplate(DefaultMustacheFactory msf, URL templateURL) {
+    public MustacheTemplate(ExtendedMustacheFactory msf, URL templateURL) {
         this.url = templateURL;
         this.msf = msf;
         String externalForm = templateURL.toExternalForm();
@@ -75,16 +148,280 @@ public class MustacheTemplate implements Template {
         mime = getMimeTypeForURL(externalForm);
     }
 
-    private void compile() {
-        InputStream stream = null;
+    private CompiledTemplate compile() {
+        Object event = EVENTS.beginCompile();
+        int partialCount = 0;
+        boolean success = false;
+        Set<String> partials = new LinkedHashSet<>();
         try {
-            stream = this.url.openStream();
-            Reader reader = new InputStreamReader(stream);
-            this.compiled = msf.compile(reader, path);
+            TemplateSource source = TemplateSource.read(url, msf.getCharset());
+            this.checksum = source.getChecksum();
+            Mustache mustache = msf.compile(new StringReader(source.getText()), path, partials);
+            boolean deferring = CodeTrees.contains(mustache, DeferredResultsCode.class);
+            boolean progressive = deferring || CodeTrees.contains(mustache, FlushCode.class);
+            ConstantRenderable constant = null;
+            if (CodeTrees.isConstant(mustache)) {
+                StringWriter writer = new StringWriter();
+                mustache.execute(writer, Collections.emptyMap());
+                constant = new ConstantRenderable(writer.toString(), mimetype(), msf.isGzipConstants());
+            }
+            CompiledTemplate result = new CompiledTemplate(mustache, progressive, deferring, constant,
+                    CodeTrees.containsPurePartial(mustache), CodeTrees.getRenderBudget(mustache), partials);
+            partialCount = partials.size();
+            success = true;
+            failure = null;
+            return result;
         } catch (IOException e) {
-            throw new IllegalStateException("Cannot read template " + url.toExternalForm(), e);
+            IllegalStateException error = new IllegalStateException("Cannot read template " + url.toExternalForm(),
+                    e);
+            failure = new Failure(error, partials);
+            throw error;
+        } catch (RuntimeException e) {
+            failure = new Failure(e, partials);
+            throw e;
         } finally {
-            IOUtils.closeQuietly(stream);
+            msf.partialsRead(this, partials);
+            EVENTS.endCompile(event, path, partialCount, success);
+        }
+    }
+
+    /**
+     * Gets the compiled template, compiling it if needed.
+     *
+     * @return the compiled template
+     */
+    private CompiledTemplate getCompiled() {
+        CompiledTemplate current = compiled;
+        if (current == null) {
+            Failure failed = failure;
+            if (failed != null) {
+                // Fail fast, the template has not changed since the last compilation.
+                throw failed.error;
+            }
+            // To support partials, we compile at the last minute.
+            current = compile();
+            compiled = current;
+        } else {
+            long since = staleSince.get();
+            long max = msf.getMaxStaleness();
+            if (since != FRESH && since != REVALIDATING && max >= 0 && System.currentTimeMillis() - since > max
+                    && staleSince.compareAndSet(since, REVALIDATING)) {
+                // The background recompilation is late, don't serve the stale version any longer. The other
+                // threads keep serving it until this one has recompiled the template.
+                revalidate(since);
+                current = compiled;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Marks the compiled version of the template as stale. It is still used for the renderings until
+     * {@link #revalidate()} is called, or until it has been stale for longer than the maximum staleness.
+     *
+     * @return {@code true} if the template needs to be revalidated, {@code false} if it has not been compiled yet.
+     */
+    boolean markStale() {
+        if (compiled == null) {
+            return false;
+        }
+        synchronized (this) {
+            staleGeneration++;
+            staleSince.compareAndSet(FRESH, System.currentTimeMillis());
+        }
+        return true;
+    }
+
+    /**
+     * Recompiles a stale template. Unlike {@link #recompile()}, if the compilation fails the previous version stays
+     * in service, and the error is logged. Nothing is done if the template is not stale, or is already being
+     * recompiled by another thread.
+     */
+    void revalidate() {
+        long since = staleSince.get();
+        while (since != FRESH && since != REVALIDATING) {
+            if (staleSince.compareAndSet(since, REVALIDATING)) {
+                revalidate(since);
+                return;
+            }
+            since = staleSince.get();
+        }
+    }
+
+    /**
+     * Recompiles a stale template, once the recompilation has been claimed.
+     *
+     * @param since the time since which the template is stale, restored if the template has been marked stale
+     *              again during the compilation
+     */
+    private void revalidate(long since) {
+        long generation;
+        synchronized (this) {
+            generation = staleGeneration;
+        }
+        CompiledTemplate result = null;
+        try {
+            result = compile();
+        } catch (RuntimeException e) {
+            LOGGER.error("Cannot recompile the Mustache template {}, the previous version stays in service",
+                    fullName(), e);
+        }
+        synchronized (this) {
+            if (result != null) {
+                compiled = result;
+            } else {
+                // The previous version stays in service, and so do the templates it reads.
+                msf.partialsRead(this, getPartials());
+            }
+            // If the template has been marked stale again during the compilation, it stays stale.
+            staleSince.set(generation == staleGeneration ? FRESH : since);
+        }
+    }
+
+    private void touch() {
+        renders.incrementAndGet();
+        lastRender = System.currentTimeMillis();
+    }
+
+    /**
+     * Describes the current state of the template.
+     *
+     * @param visited the codes already counted by the estimation of the retained size (use an empty set to count
+     *                all the codes of the template, including its partials)
+     * @return the description
+     */
+    TemplateInfo describe(Set<Code> visited) {
+        CompiledTemplate current = compiled;
+        TemplateInfo.State state;
+        if (current != null) {
+            state = isStale() ? TemplateInfo.State.STALE : TemplateInfo.State.COMPILED;
+        } else if (failure != null) {
+            state = TemplateInfo.State.FAILED;
+        } else {
+            state = TemplateInfo.State.NOT_COMPILED;
+        }
+        return new TemplateInfo(name(), fullName(), mimetype(), state,
+                current == null ? 0L : current.estimateSize(visited), getRenderCount(), lastRender,
+                current == null ? -1L : current.getCompiledAt(), new ArrayList<>(getPartials()));
+    }
+
+    /**
+     * @return the number of renderings of the template, the warm-up renderings excluded.
+     */
+    long getRenderCount() {
+        return renders.get();
+    }
+
+    /**
+     * Compiles the template if not compiled yet, so its first rendering does not pay for it. Compilation errors
+     * are recorded, and reported by the renderings.
+     */
+    void precompile() {
+        if (compiled != null || failure != null) {
+            return;
+        }
+        try {
+            getCompiled();
+        } catch (RuntimeException e) {
+            LOGGER.debug("Cannot precompile the Mustache template {}", fullName(), e);
+        }
+    }
+
+    /**
+     * Estimates the heap retained by the compiled template.
+     *
+     * @param visited the codes already counted
+     * @return the estimated size in bytes, {@code 0} if not compiled
+     */
+    long estimateSize(Set<Code> visited) {
+        CompiledTemplate current = compiled;
+        return current == null ? 0L : current.estimateSize(visited);
+    }
+
+    /**
+     * @return {@code true} if the compiled version of the template is stale.
+     */
+    boolean isStale() {
+        return staleSince.get() != FRESH;
+    }
+
+    /**
+     * Recompiles the template if it has already been compiled, and replaces the compiled version atomically. If
+     * the template has not been compiled yet, it will be on the first rendering. If the compilation fails, the
+     * template is left uncompiled, so the error is reported by the next rendering.
+     *
+     * @return {@code true} if the template has been recompiled, {@code false} if it was not compiled.
+     */
+    boolean recompile() {
+        if (compiled == null) {
+            return false;
+        }
+        try {
+            compiled = compile();
+            return true;
+        } catch (RuntimeException e) {
+            compiled = null;
+            throw e;
+        }
+    }
+
+    /**
+     * @return the code tree of the template, {@code null} if not compiled yet.
+     */
+    Mustache getMustache() {
+        CompiledTemplate current = compiled;
+        return current == null ? null : current.getMustache();
+    }
+
+    /**
+     * @return the names of the templates read during the last compilation (partials, inherited templates...), empty
+     * if the template has not been compiled yet. If the last compilation has failed, the names of the templates
+     * read (or not found) by this compilation.
+     */
+    Set<String> getPartials() {
+        CompiledTemplate current = compiled;
+        if (current != null) {
+            return current.getPartials();
+        }
+        Failure failed = failure;
+        return failed == null ? Collections.<String>emptySet() : failed.partials;
+    }
+
+    /**
+     * @return {@code true} if the last compilation has failed, and the renderings fail fast.
+     */
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Forgets the failure of the last compilation, so the next rendering compiles the template again.
+     *
+     * @return {@code true} if the last compilation had failed
+     */
+    boolean clearFailure() {
+        boolean failed = failure != null;
+        failure = null;
+        return failed;
+    }
+
+    /**
+     * Reads the current source of the template and checks whether it differs from the last known source. The
+     * checksum of the current source becomes the last known one. If the source has never been read, or cannot be
+     * read, the template is considered as changed.
+     *
+     * @return {@code true} if the source has changed, {@code false} if the content is the same.
+     */
+    boolean updateChecksum() {
+        try {
+            long current = TemplateSource.checksum(url);
+            long previous = checksum;
+            checksum = current;
+            return previous == UNKNOWN_CHECKSUM || previous != current;
+        } catch (IOException e) { //NOSONAR
+            // Cannot read the source (deleted ?), consider it as changed.
+            checksum = UNKNOWN_CHECKSUM;
+            return true;
         }
     }
 
@@ -158,6 +495,29 @@ public class MustacheTemplate implements Template {
         return mime;
     }
 
+    /**
+     * Checks whether the template is rendered progressively, {@literal i.e.} contains at least one
+     * {@literal {{! flush}}} comment or writes the deferred partials. This information is only available once the
+     * template has been compiled.
+     *
+     * @return {@code true} if the template is rendered progressively, {@code false} otherwise.
+     */
+    public boolean isProgressive() {
+        CompiledTemplate current = compiled;
+        return current != null && current.isProgressive();
+    }
+
+    /**
+     * Checks whether the template is constant, {@literal i.e.} does not contain any tag. The output of constant
+     * templates is computed once. This information is only available once the template has been compiled.
+     *
+     * @return {@code true} if the template is constant, {@code false} otherwise.
+     */
+    public boolean isConstant() {
+        CompiledTemplate current = compiled;
+        return current != null && current.getConstant() != null;
+    }
+
     /**
      * Renders the template.
      *
@@ -167,14 +527,284 @@ public class MustacheTemplate implements Template {
      */
     @Override
     public Renderable render(Controller controller, Map<String, Object> variables) {
+        return render(variables, true);
+    }
 
-        // Check whether we already have compiled the template.
-        // To support partials, we do that at the last minute.
-        if (compiled == null) {
-            compile();
+    /**
+     * Renders the template.
+     *
+     * @param variables   the parameters
+     * @param progressive whether or not progressive templates return a {@link ChunkedRenderable} executed later on
+     *                    the render executor. If {@code false}, they are rendered entirely in the current thread.
+     * @return the rendered object.
+     */
+    private Renderable<?> render(Map<String, Object> variables, boolean progressive) {
+        Object event = EVENTS.beginRender();
+        touch();
+        boolean cached = compiled != null;
+
+        // The same compiled version is used for the whole rendering.
+        CompiledTemplate current = getCompiled();
+
+        // Constant templates do not depend on the context.
+        ConstantRenderable output = current.getConstant();
+        if (output != null) {
+            Renderable<String> renderable = output.forRequest(Context.CONTEXT.get());
+            EVENTS.endRender(event, path, cached, renderable.length(), 0);
+            return renderable;
+        }
+
+        long budget = current.getBudget() >= 0 ? current.getBudget() : msf.getRenderTimeout();
+        RenderDeadline deadline = budget > 0 ? new RenderDeadline(path, budget) : null;
+        RenderRecorder recorder = msf.isProfiling() ? msf.getProfiler().sample(path) : null;
+        Map<String, Object> context = createContext(variables);
+        int contextSize = context.size();
+        addRenderingState(current, context, deadline);
+
+        if (progressive && current.isProgressive()) {
+            EVENTS.endRender(event, path, cached, -1, contextSize);
+            return new ChunkedRenderable(name(), current.getMustache(), context, mimetype(),
+                    msf.getRenderExecutor(), msf.getChunkThreshold(), StandardCharsets.UTF_8, deadline, recorder);
+        }
+
+        StringWriter writer = new StringWriter();
+        execute(current, writer, context, deadline, recorder);
+        String result = writer.toString();
+        EVENTS.endRender(event, path, cached, result.length(), contextSize);
+        return new RenderableString(result, mimetype());
+    }
+
+    /**
+     * Renders the template into byte buffers, encoding the output in UTF-8 as it is written. The buffers are
+     * obtained from the given supplier as the previous one is full, so they can be direct or pooled buffers, and
+     * can be handed to the HTTP layer without copy. The output of progressive templates is written entirely, and the
+     * output of constant templates is copied from its pre-encoded form.
+     * <p>
+     * If the rendering fails, the content of the buffers is undefined.
+     *
+     * @param controller the controller having requested the rendering.
+     * @param variables  the parameters
+     * @param buffers    the supplier of the buffers
+     * @return the filled buffers, flipped so they can be read
+     */
+    @Override
+    public List<ByteBuffer> renderTo(Controller controller, Map<String, Object> variables,
+                                     Supplier<ByteBuffer> buffers) {
+        return renderTo(variables, new ByteBufferWriter(buffers));
+    }
+
+    /**
+     * Renders the template into the given buffer, encoding the output in UTF-8.
+     *
+     * @param controller the controller having requested the rendering.
+     * @param variables  the parameters
+     * @param buffer     the buffer
+     * @return the given buffer, flipped so it can be read
+     * @throws java.nio.BufferOverflowException if the output exceeds the remaining space of the buffer
+     * @see #renderTo(org.wisdom.api.Controller, java.util.Map, java.util.function.Supplier)
+     */
+    @Override
+    public ByteBuffer renderTo(Controller controller, Map<String, Object> variables, ByteBuffer buffer) {
+        renderTo(variables, ByteBufferWriter.into(buffer));
+        return buffer;
+    }
+
+    private List<ByteBuffer> renderTo(Map<String, Object> variables, ByteBufferWriter writer) {
+        Object event = EVENTS.beginRender();
+        touch();
+        boolean cached = compiled != null;
+        CompiledTemplate current = getCompiled();
+
+        ConstantRenderable output = current.getConstant();
+        if (output != null) {
+            writer.writeBytes(output.getBytes());
+            List<ByteBuffer> buffers = writer.getBuffers();
+            EVENTS.endRender(event, path, cached, output.length(), 0);
+            return buffers;
         }
 
-        Map<String, Object> context = new HashMap<>();
+        long budget = current.getBudget() >= 0 ? current.getBudget() : msf.getRenderTimeout();
+        RenderDeadline deadline = budget > 0 ? new RenderDeadline(path, budget) : null;
+        RenderRecorder recorder = msf.isProfiling() ? msf.getProfiler().sample(path) : null;
+        Map<String, Object> context = createContext(variables);
+        int contextSize = context.size();
+        addRenderingState(current, context, deadline);
+
+        execute(current, writer, context, deadline, recorder);
+        List<ByteBuffer> buffers = writer.getBuffers();
+        long length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        EVENTS.endRender(event, path, cached, length, contextSize);
+        return buffers;
+    }
+
+    /**
+     * Renders the template asynchronously, on the executor of the asynchronous renderings. The calling thread (an
+     * I/O thread for instance) is not blocked. When too many renderings are pending, the rendering is rejected and
+     * the returned stage completes with a {@link java.util.concurrent.RejectedExecutionException}.
+     * <p>
+     * Progressive templates are not sent in chunks: they are rendered entirely on the executor, waiting for their
+     * deferred partials, so the stage completes with the whole output.
+     *
+     * @param controller the controller having requested the rendering.
+     * @param variables  the parameters
+     * @return the stage completed with the rendered object
+     */
+    @Override
+    public CompletionStage<Renderable<?>> renderAsync(final Controller controller,
+                                                     final Map<String, Object> variables) {
+        return msf.getAsyncRenderer().submit(new Callable<Renderable<?>>() {
+            @Override
+            public Renderable<?> call() {
+                return render(variables, false);
+            }
+        });
+    }
+
+    /**
+     * Renders the template asynchronously without explicit variables.
+     *
+     * @param controller the controller having requested the rendering.
+     * @return the stage completed with the rendered object
+     * @see #renderAsync(org.wisdom.api.Controller, java.util.Map)
+     */
+    @Override
+    public CompletionStage<Renderable<?>> renderAsync(Controller controller) {
+        return renderAsync(controller, Collections.<String, Object>emptyMap());
+    }
+
+    /**
+     * Renders the template in the current thread, discarding the output. Used to warm up the template: the HTTP
+     * context is ignored, no rendering events are fired, and the rendering has no budget and is not profiled.
+     *
+     * @param variables the sample variables
+     */
+    void warmUp(Map<String, Object> variables) {
+        CompiledTemplate current = getCompiled();
+        if (current.getConstant() != null) {
+            // Nothing to execute.
+            return;
+        }
+        Map<String, Object> context = new RenderingContext(variables);
+        addRenderingState(current, context, null);
+        current.getMustache().execute(CharStreams.nullWriter(), context);
+    }
+
+    /**
+     * Executes the template. Templates setting their own budget (with a {@literal {{! timeout <ms>}}} comment) are
+     * executed on the executor of the renderings with a budget, so a data method blocked past the deadline does not
+     * hold the calling thread. The other renderings, including the ones with the global budget, and the budgeted
+     * renderings rejected by the saturated executor, are executed in the current thread, the deadline being checked
+     * cooperatively.
+     *
+     * @param current  the compiled template
+     * @param writer   the writer receiving the output
+     * @param context  the context
+     * @param deadline the deadline, {@code null} if the rendering has no budget
+     * @param recorder the recorder of the rendering, {@code null} if the rendering is not profiled
+     */
+    private void execute(CompiledTemplate current, Writer writer, Map<String, Object> context,
+                         RenderDeadline deadline, RenderRecorder recorder) {
+        Mustache mustache = current.getMustache();
+        if (deadline == null) {
+            execute(mustache, writer, context, recorder);
+            return;
+        }
+        if (current.getBudget() > 0 && executeWithDeadline(mustache, writer, context, deadline, recorder)) {
+            return;
+        }
+        RenderDeadline previous = RenderDeadline.attach(deadline);
+        try {
+            execute(mustache, writer, context, recorder);
+            deadline.checkCompleted();
+        } finally {
+            RenderDeadline.restore(previous);
+        }
+    }
+
+    /**
+     * Executes the template in the current thread.
+     *
+     * @param mustache the compiled template
+     * @param writer   the writer receiving the output
+     * @param context  the context
+     * @param recorder the recorder of the rendering, {@code null} if the rendering is not profiled
+     */
+    private static void execute(Mustache mustache, Writer writer, Map<String, Object> context,
+                                RenderRecorder recorder) {
+        if (recorder == null) {
+            mustache.execute(writer, context);
+            return;
+        }
+        RenderRecorder previous = RenderRecorder.attach(recorder);
+        try {
+            mustache.execute(writer, context);
+        } finally {
+            recorder.finish();
+            RenderRecorder.restore(previous);
+        }
+    }
+
+    /**
+     * Executes the template on the executor of the renderings with a budget, and waits for its completion until
+     * the deadline. If the deadline is exceeded, the rendering thread is interrupted.
+     *
+     * @param mustache the compiled template
+     * @param writer   the writer receiving the output
+     * @param context  the context
+     * @param deadline the deadline
+     * @param recorder the recorder of the rendering, {@code null} if the rendering is not profiled
+     * @return {@code true} if the template has been executed, {@code false} if the executor has rejected it
+     * because all its threads are busy, and too many renderings are waiting
+     * @throws org.wisdom.framework.mustache.api.RenderTimeoutException if the deadline is exceeded
+     */
+    private boolean executeWithDeadline(final Mustache mustache, final Writer writer,
+                                        final Map<String, Object> context, final RenderDeadline deadline,
+                                        final RenderRecorder recorder) {
+        final Context http = Context.CONTEXT.get();
+        ThreadPoolExecutor executor = msf.getBudgetExecutor();
+        FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                Context.CONTEXT.set(http);
+                RenderDeadline previous = RenderDeadline.attach(deadline);
+                try {
+                    execute(mustache, writer, context, recorder);
+                    return null;
+                } finally {
+                    RenderDeadline.restore(previous);
+                    Context.CONTEXT.remove();
+                }
+            }
+        });
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) { //NOSONAR
+            LOGGER.debug("Too many renderings with a budget are pending, rendering the template {} inline", name());
+            return false;
+        }
+        try {
+            deadline.await(task);
+            return true;
+        } finally {
+            if (task.isCancelled()) {
+                // Frees the slot of the queue if the rendering was still waiting for a thread.
+                executor.remove(task);
+            }
+        }
+    }
+
+    /**
+     * Builds the context used to render the template. It contains the data from the current HTTP context (if any)
+     * and the given variables.
+     *
+     * @param variables the variables given by the controller
+     * @return the context
+     */
+    private Map<String, Object> createContext(Map<String, Object> variables) {
+        Map<String, Object> context = new RenderingContext();
 
         // If we have a HTTP context, extract data.
         Context ctx = org.wisdom.api.http.Context.CONTEXT.get();
@@ -204,10 +834,38 @@ public class MustacheTemplate implements Template {
 
         // 4) the variables given by the controller.
         context.putAll(variables);
+        return context;
+    }
 
-        StringWriter writer = new StringWriter();
-        compiled.execute(writer, context);
-        return new RenderableString(writer.toString(), mimetype());
+    /**
+     * Adds the state of the rendering to the context: the tracker of the deferred partials and the memoization
+     * caches.
+     *
+     * @param current  the compiled template
+     * @param context  the context
+     * @param deadline the deadline of the rendering, {@code null} if the rendering has no budget
+     */
+    private void addRenderingState(CompiledTemplate current, Map<String, Object> context, RenderDeadline deadline) {
+        // 5) the tracker of the deferred partials
+        if (current.isDeferring() && !context.containsKey(ExtendedMustacheVisitor.DEFERRED)) {
+            context.put(ExtendedMustacheVisitor.DEFERRED, new DeferredPartials(msf.getRenderExecutor(), deadline,
+                    msf.getRenderFallback(), msf.getMaxDeferred()));
+        }
+
+        // 6) the cache of the output of the pure partials, for this rendering
+        if (current.isMemoizing() && msf.getMemoScope() == PartialMemo.Scope.REQUEST
+                && !context.containsKey(PartialMemo.KEY)) {
+            context.put(PartialMemo.KEY, PartialMemo.forRequest(msf.getMemoSize()));
+        }
+
+        // 7) the cache of the results of the memoizable functions, for this rendering. It is created on the first
+        // memoized call (see FunctionMemo#bind), unless partials are rendered concurrently.
+        if (current.isDeferring() && !context.containsKey(FunctionMemo.KEY)) {
+            FunctionMemo functions = msf.createRequestFunctionMemo();
+            if (functions != null) {
+                context.put(FunctionMemo.KEY, functions);
+            }
+        }
     }
 
     /**
@@ -233,4 +891,22 @@ public class MustacheTemplate implements Template {
         props.put("engine", engine());
         return props;
     }
+
+    /**
+     * The failure of a compilation.
+     */
+    private static final class Failure {
+
+        final RuntimeException error;
+
+        /**
+         * The names of the templates read, or not found, before the failure.
+         */
+        final Set<String> partials;
+
+        Failure(RuntimeException error, Set<String> partials) {
+            this.error = error;
+            this.partials = Collections.unmodifiableSet(partials);
+        }
+    }
 }
@@ -19,22 +19,55 @@
  */
 package org.wisdom.framework.mustache;
 
+import com.github.mustachejava.Code;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.Validate;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wisdom.api.annotations.Service;
+import org.wisdom.api.configuration.ApplicationConfiguration;
 import org.wisdom.api.templates.Template;
+import org.wisdom.framework.mustache.api.MemoStats;
+import org.wisdom.framework.mustache.api.MustacheEngine;
+import org.wisdom.framework.mustache.api.RenderProfile;
+import org.wisdom.framework.mustache.api.TemplateInfo;
+import org.wisdom.framework.mustache.api.TemplateInventory;
+import org.wisdom.framework.mustache.api.TemplateInventoryMXBean;
+import org.wisdom.framework.mustache.api.TextFootprint;
 import org.wisdom.api.templates.TemplateEngine;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 /**
  * The main entry point of the Mustasche Template engine.
@@ -42,14 +75,211 @@ import java.util.concurrent.ConcurrentHashMap;
  * <p>
  * Mustache supports "mst.*" templates such as {@literal foo.mst} or {@literal foo.mst.plain}. The extension is
  * used to determine the mime-type of the template (are supported: xml, json, html and plain).
+ * <p>
+ * By default, the {@link Template} services are registered when the templates are added. When
+ * {@literal mustache.registration.batched} is enabled, templates are available immediately (to resolve partials),
+ * but their services are registered in batches from a background thread. This avoids firing thousands of service
+ * events from the bundle-event thread when bundles containing lots of templates are started.
  */
-@Service({TemplateEngine.class, MustacheTemplateCollector.class})
-public class MustacheTemplateCollector implements TemplateEngine {
+@Service({TemplateEngine.class, MustacheEngine.class, MustacheTemplateCollector.class})
+public class MustacheTemplateCollector implements TemplateEngine, MustacheEngine {
 
     /**
      * The extension of the file managed by this template engine.
      */
     public static final String EXTENSION = "mst.*";
+
+    /**
+     * The configuration key defining the number of buffered characters triggering a flush when templates are
+     * rendered progressively.
+     */
+    public static final String CHUNK_THRESHOLD = "mustache.chunk.threshold";
+
+    /**
+     * The configuration key enabling the registration of the template services in batches from a background thread.
+     */
+    public static final String BATCHED_REGISTRATION = "mustache.registration.batched";
+
+    /**
+     * The configuration key enabling the computation of a gzipped version of the output of constant templates.
+     */
+    public static final String GZIP_CONSTANTS = "mustache.constant.gzip";
+
+    /**
+     * The configuration key enabling the optimization of the compiled templates (inlining of partials...).
+     */
+    public static final String OPTIMIZE = "mustache.optimize";
+
+    /**
+     * The configuration key setting the scope of the memoization of the output of pure partials: {@code none},
+     * {@code request} or {@code global}.
+     */
+    public static final String MEMO_SCOPE = "mustache.memoize.scope";
+
+    /**
+     * The configuration key setting the maximum number of memoized outputs of pure partials.
+     */
+    public static final String MEMO_SIZE = "mustache.memoize.size";
+
+    /**
+     * The configuration key setting the time-to-live (in milliseconds) of the outputs memoized globally.
+     */
+    public static final String MEMO_TTL = "mustache.memoize.ttl";
+
+    /**
+     * The configuration key setting the scope of the memoization of the results of the
+     * {@link org.wisdom.framework.mustache.api.Memoizable} functions: {@code none}, {@code request} or
+     * {@code global}. The size and the time-to-live are the ones of the partials.
+     */
+    public static final String MEMO_FUNCTIONS = "mustache.memoize.functions";
+
+    /**
+     * The configuration key enabling the recompilation of the updated templates in background. Until recompiled,
+     * the previous version is rendered.
+     */
+    public static final String BACKGROUND_RELOAD = "mustache.reload.background";
+
+    /**
+     * The configuration key setting the maximum time (in milliseconds) during which the previous version of an
+     * updated template is rendered when the templates are recompiled in background.
+     */
+    public static final String MAX_STALENESS = "mustache.reload.max-staleness";
+
+    /**
+     * The configuration key setting the render budget (in milliseconds) of the templates not setting their own
+     * budget with a {@literal {{! timeout <ms>}}} comment.
+     */
+    public static final String RENDER_TIMEOUT = "mustache.render.timeout";
+
+    /**
+     * The configuration key setting the fragment replacing the deferred partials that have failed or have been
+     * cancelled.
+     */
+    public static final String RENDER_FALLBACK = "mustache.render.fallback";
+
+    /**
+     * The configuration key setting the maximum number of partials deferred by one rendering. The additional ones
+     * are rendered in place.
+     */
+    public static final String MAX_DEFERRED = "mustache.render.max-deferred";
+
+    /**
+     * The configuration key setting the number of threads executing the templates setting their own budget.
+     */
+    public static final String RENDER_THREADS = "mustache.render.threads";
+
+    /**
+     * The configuration key setting the number of threads rendering templates progressively and executing the
+     * deferred partials.
+     */
+    public static final String PROGRESSIVE_THREADS = "mustache.progressive.threads";
+
+    /**
+     * The configuration key setting the number of progressive renderings and deferred partials waiting for a
+     * thread. Additional ones are executed on the thread of the request.
+     */
+    public static final String PROGRESSIVE_QUEUE = "mustache.progressive.queue";
+
+    /**
+     * The configuration key enabling the sampling profiler: one rendering out of this value is profiled (0 to
+     * disable the profiler).
+     */
+    public static final String PROFILE_SAMPLING = "mustache.profile.sampling";
+
+    /**
+     * The configuration key setting the minimal duration (in milliseconds) of the profiled renderings that are
+     * reported.
+     */
+    public static final String PROFILE_THRESHOLD = "mustache.profile.threshold";
+
+    /**
+     * The configuration key setting the number of reported profiles kept in memory.
+     */
+    public static final String PROFILE_BUFFER = "mustache.profile.buffer";
+
+    /**
+     * The configuration key setting the number of threads running the asynchronous renderings.
+     */
+    public static final String ASYNC_THREADS = "mustache.async.threads";
+
+    /**
+     * The configuration key setting the number of asynchronous renderings waiting for a thread. Additional
+     * renderings are rejected.
+     */
+    public static final String ASYNC_QUEUE = "mustache.async.queue";
+
+    /**
+     * The configuration key enabling the virtual threads for the asynchronous renderings (when supported by the
+     * JVM).
+     */
+    public static final String ASYNC_VIRTUAL = "mustache.async.virtual";
+
+    /**
+     * The configuration key enabling the interning of the static text segments, so identical segments are shared
+     * by all the compiled templates.
+     */
+    public static final String INTERN_TEXT = "mustache.text.intern";
+
+    /**
+     * The configuration key enabling the warm-up of the templates after their deployment.
+     */
+    public static final String WARMUP = "mustache.warmup";
+
+    /**
+     * The configuration key setting the number of renderings of each template (with each sample) during the
+     * warm-up.
+     */
+    public static final String WARMUP_ITERATIONS = "mustache.warmup.iterations";
+
+    /**
+     * The configuration key setting the number of threads warming up the templates.
+     */
+    public static final String WARMUP_THREADS = "mustache.warmup.threads";
+
+    /**
+     * The configuration key setting the directory receiving the pre-rendered templates. The export is disabled if
+     * not set.
+     */
+    public static final String EXPORT_DIRECTORY = "mustache.export.directory";
+
+    /**
+     * The configuration key setting the number of threads pre-rendering the templates.
+     */
+    public static final String EXPORT_THREADS = "mustache.export.threads";
+
+    /**
+     * The configuration key enabling the registration of the template inventory as a JMX bean (disabled by
+     * default).
+     */
+    public static final String JMX = "mustache.jmx";
+
+    /**
+     * Distinguishes the JMX beans of the collectors living in the same JVM.
+     */
+    private static final AtomicLong JMX_INSTANCES = new AtomicLong();
+
+    /**
+     * The configuration key enabling the background compilation of the templates after the startup, the hot
+     * templates of the previous run first.
+     */
+    public static final String PRECOMPILE = "mustache.precompile";
+
+    /**
+     * The configuration key setting the file listing the hot templates, relative to the base directory.
+     */
+    public static final String PRECOMPILE_FILE = "mustache.precompile.file";
+
+    /**
+     * The configuration key setting the number of hot templates saved.
+     */
+    public static final String PRECOMPILE_SIZE = "mustache.precompile.size";
+
+    /**
+     * The configuration key setting the charset of the template sources (UTF-8 by default). Sources starting with
+     * a byte order mark use the charset it indicates.
+     */
+    public static final String CHARSET = "mustache.charset";
+
     /**
      * The bundle context.
      */
@@ -62,11 +292,94 @@ public class MustacheTemplateCollector implements TemplateEngine {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MustacheTemplateCollector.class.getName());
 
+    /**
+     * The snapshot of the templates managed by the collector, registered or not. Modifications publish a new
+     * snapshot.
+     */
+    private final AtomicReference<TemplateRegistry> registry = new AtomicReference<>(TemplateRegistry.EMPTY);
+
+    /**
+     * The partials read by the compilations of the current thread, while it recompiles a batch of templates.
+     * {@code null} outside of the batches.
+     */
+    private final ThreadLocal<Map<MustacheTemplate, Set<String>>> batchedPartials = new ThreadLocal<>();
+
     /**
      * The registration map.
      */
     private Map<MustacheTemplate, ServiceRegistration<Template>> registrations = new ConcurrentHashMap<>();
 
+    /**
+     * The templates waiting for the registration of their service (batched mode only).
+     */
+    private final Queue<MustacheTemplate> pendingRegistrations = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Whether or not a registration batch is already scheduled.
+     */
+    private final AtomicBoolean registrationScheduled = new AtomicBoolean();
+
+    /**
+     * Whether or not the services are registered in batches.
+     */
+    private boolean batchedRegistration;
+
+    /**
+     * The executor registering the batches. Created on demand.
+     */
+    private ExecutorService registrationExecutor;
+
+    /**
+     * Whether or not the updated templates are recompiled in background.
+     */
+    private boolean backgroundReload;
+
+    /**
+     * The executor recompiling the updated templates in background. Created on demand.
+     */
+    private ExecutorService reloadExecutor;
+
+    /**
+     * The number of template updates that have invalidated the caches.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * The number of template updates ignored because the content has not changed.
+     */
+    private final AtomicLong skippedInvalidations = new AtomicLong();
+
+    /**
+     * Warms up the deployed templates.
+     */
+    private final TemplateWarmer warmer = new TemplateWarmer();
+
+    /**
+     * Pre-renders templates to static files.
+     */
+    private final StaticExporter exporter = new StaticExporter(new Function<String, MustacheTemplate>() {
+        @Override
+        public MustacheTemplate apply(String name) {
+            return registry.get().getByName(name);
+        }
+    });
+
+    /**
+     * Compiles the templates in background, {@code null} if disabled.
+     */
+    private volatile TemplatePrecompiler precompiler;
+
+    /**
+     * The name of the registered JMX bean, {@code null} if not registered.
+     */
+    private ObjectName jmxName;
+
+    /**
+     * The application configuration.
+     */
+    @Requires
+    ApplicationConfiguration configuration;
+
     /**
      * Creates a new instance of {@link org.wisdom.framework.mustache.MustacheTemplateCollector}.
      *
@@ -77,6 +390,157 @@ public class MustacheTemplateCollector implements TemplateEngine {
         this.msf = new ExtendedMustacheFactory(this);
     }
 
+    /**
+     * Gets the last reported profiles of the renderings, when the sampling profiler is enabled.
+     *
+     * @return the profiles, the oldest first
+     */
+    @Override
+    public List<RenderProfile> getRenderProfiles() {
+        return msf.getRenderProfiles();
+    }
+
+    /**
+     * @return the hit and miss counts of the memoized functions.
+     */
+    @Override
+    public MemoStats getFunctionMemoStats() {
+        return msf.getFunctionMemoStats();
+    }
+
+    /**
+     * @return the number of asynchronous renderings rejected because too many renderings were pending.
+     */
+    @Override
+    public long getRejectedRenderings() {
+        return msf.getRejectedRenderings();
+    }
+
+    /**
+     * @return the footprint of the static text of the compiled templates, including the memory saved by sharing
+     * the identical segments.
+     */
+    @Override
+    public TextFootprint getTextFootprint() {
+        return msf.getTextFootprint();
+    }
+
+    /**
+     * Registers sample variables used to warm up the template with the given name, when the warm-up is enabled
+     * ({@literal mustache.warmup}). Samples should look like the variables given by the controllers, so the
+     * warm-up exercises the same sections and accessors as the actual renderings. If the template is already
+     * deployed, it is warmed up again.
+     *
+     * @param template  the template name
+     * @param variables the sample variables
+     */
+    @Override
+    public void addWarmUpSample(String template, Map<String, Object> variables) {
+        warmer.addSample(template, variables);
+        MustacheTemplate deployed = registry.get().getByName(template);
+        if (deployed != null) {
+            warmer.schedule(deployed);
+        }
+    }
+
+    /**
+     * Takes an inventory of the templates: their compilation state, estimated memory footprint, usage and
+     * dependencies, with the totals for the whole engine.
+     *
+     * @return the inventory
+     */
+    @Override
+    public TemplateInventory getInventory() {
+        List<TemplateInfo> templates = new ArrayList<>();
+        // Shared by all the templates, so the partials are counted once in the total.
+        Set<Code> counted = Collections.newSetFromMap(new IdentityHashMap<Code, Boolean>());
+        long total = 0L;
+        for (Template template : registry.get().getTemplates()) {
+            MustacheTemplate mustache = (MustacheTemplate) template;
+            templates.add(mustache.describe(Collections.newSetFromMap(new IdentityHashMap<Code, Boolean>())));
+            total += mustache.estimateSize(counted);
+        }
+        return new TemplateInventory(System.currentTimeMillis(), templates, total, msf.getMustacheCacheSize(),
+                msf.getFragmentCacheSize());
+    }
+
+    private synchronized void registerInventoryBean() {
+        if (jmxName != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(TemplateInventoryMXBean.OBJECT_NAME + ",instance="
+                    + JMX_INSTANCES.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new JmxInventory(this), name);
+            jmxName = name;
+        } catch (JMException e) {
+            LOGGER.warn("Cannot register the inventory of the Mustache templates in JMX", e);
+        }
+    }
+
+    private synchronized void unregisterInventoryBean() {
+        if (jmxName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+        } catch (JMException e) { //NOSONAR
+            // Already unregistered.
+        }
+        jmxName = null;
+    }
+
+    /**
+     * Pre-renders the given template with the given variables to a file of the export directory
+     * ({@literal mustache.export.directory}), and writes its gzipped variant ({@literal .gz}) next to it. The file is
+     * regenerated when the template, or one of the templates it reads (partials, inherited templates), changes.
+     *
+     * @param template  the template name
+     * @param variables the variables
+     * @param path      the path of the file, relative to the export directory
+     * @return a future completed once the file is written
+     * @throws IllegalStateException    if the export directory is not configured
+     * @throws IllegalArgumentException if the path is not in the export directory
+     */
+    @Override
+    public CompletableFuture<Void> export(String template, Map<String, Object> variables, String path) {
+        return exporter.add(template, variables, path);
+    }
+
+    /**
+     * Pre-renders all the exported files again.
+     *
+     * @return a future completed once all the files are written
+     */
+    @Override
+    public CompletableFuture<Void> exportAll() {
+        return exporter.exportAll();
+    }
+
+    /**
+     * Checks whether the deployed templates are warmed up. Health checks can use this method so the instance only
+     * receives traffic once hot. It always returns {@code true} when the warm-up is disabled.
+     *
+     * @return {@code true} if no template is being warmed up
+     */
+    @Override
+    public boolean isWarmedUp() {
+        return warmer.isWarm();
+    }
+
+    /**
+     * Waits until the deployed templates are warmed up.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of the timeout
+     * @return {@code true} if the warm-up has completed, {@code false} if the timeout has elapsed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    @Override
+    public boolean awaitWarmUp(long timeout, TimeUnit unit) throws InterruptedException {
+        return warmer.await(timeout, unit);
+    }
+
     /**
      * Gets the current list of templates.
      *
@@ -84,7 +548,31 @@ public class MustacheTemplateCollector implements TemplateEngine {
      */
     @Override
     public Collection<Template> getTemplates() {
-        return new ArrayList<Template>(registrations.keySet());
+        return registry.get().getTemplates();
+    }
+
+    /**
+     * @return the current snapshot of the templates.
+     */
+    TemplateRegistry getRegistry() {
+        return registry.get();
+    }
+
+    /**
+     * @return the factory compiling the templates.
+     */
+    ExtendedMustacheFactory getMustacheFactory() {
+        return msf;
+    }
+
+    /**
+     * Gets the template having the given name.
+     *
+     * @param name the name
+     * @return the template, {@literal null} if not found
+     */
+    MustacheTemplate getTemplateByName(String name) {
+        return registry.get().getByName(name);
     }
 
 
@@ -109,11 +597,95 @@ public class MustacheTemplateCollector implements TemplateEngine {
         return EXTENSION;
     }
 
+    /**
+     * Starts the collector. This method configures the Mustache factory from the application configuration.
+     */
+    @Validate
+    public void start() {
+        if (configuration == null) {
+            // Not injected (unit tests), keep the defaults.
+            return;
+        }
+        msf.setCharset(Charset.forName(configuration.getWithDefault(CHARSET, StandardCharsets.UTF_8.name())));
+        msf.setChunkThreshold(configuration.getIntegerWithDefault(CHUNK_THRESHOLD,
+                ExtendedMustacheFactory.DEFAULT_CHUNK_THRESHOLD));
+        batchedRegistration = configuration.getBooleanWithDefault(BATCHED_REGISTRATION, false);
+        msf.setGzipConstants(configuration.getBooleanWithDefault(GZIP_CONSTANTS, false));
+        msf.setOptimize(configuration.getBooleanWithDefault(OPTIMIZE, true));
+        msf.setInternText(configuration.getBooleanWithDefault(INTERN_TEXT, true));
+        msf.setMemoization(configuration.getWithDefault(MEMO_SCOPE, PartialMemo.Scope.REQUEST.name()),
+                configuration.getIntegerWithDefault(MEMO_SIZE, ExtendedMustacheFactory.DEFAULT_MEMO_SIZE),
+                configuration.getLongWithDefault(MEMO_TTL, ExtendedMustacheFactory.DEFAULT_MEMO_TTL));
+        msf.setFunctionMemoization(configuration.getWithDefault(MEMO_FUNCTIONS, PartialMemo.Scope.REQUEST.name()),
+                configuration.getIntegerWithDefault(MEMO_SIZE, ExtendedMustacheFactory.DEFAULT_MEMO_SIZE),
+                configuration.getLongWithDefault(MEMO_TTL, ExtendedMustacheFactory.DEFAULT_MEMO_TTL));
+        backgroundReload = configuration.getBooleanWithDefault(BACKGROUND_RELOAD, false);
+        msf.setMaxStaleness(configuration.getLongWithDefault(MAX_STALENESS,
+                ExtendedMustacheFactory.DEFAULT_MAX_STALENESS));
+        msf.setRenderTimeout(configuration.getLongWithDefault(RENDER_TIMEOUT,
+                ExtendedMustacheFactory.DEFAULT_RENDER_TIMEOUT));
+        msf.setRenderFallback(configuration.getWithDefault(RENDER_FALLBACK, ""));
+        msf.setMaxDeferred(configuration.getIntegerWithDefault(MAX_DEFERRED,
+                ExtendedMustacheFactory.DEFAULT_MAX_DEFERRED));
+        msf.setBudgetThreads(configuration.getIntegerWithDefault(RENDER_THREADS,
+                ExtendedMustacheFactory.DEFAULT_BUDGET_THREADS));
+        msf.setProgressiveRendering(configuration.getIntegerWithDefault(PROGRESSIVE_THREADS,
+                ExtendedMustacheFactory.DEFAULT_PROGRESSIVE_THREADS),
+                configuration.getIntegerWithDefault(PROGRESSIVE_QUEUE,
+                        ExtendedMustacheFactory.DEFAULT_PROGRESSIVE_QUEUE));
+        msf.setAsyncRendering(configuration.getIntegerWithDefault(ASYNC_THREADS,
+                ExtendedMustacheFactory.DEFAULT_ASYNC_THREADS),
+                configuration.getIntegerWithDefault(ASYNC_QUEUE, ExtendedMustacheFactory.DEFAULT_ASYNC_QUEUE),
+                configuration.getBooleanWithDefault(ASYNC_VIRTUAL, false));
+        exporter.configure(configuration.getFileWithDefault(EXPORT_DIRECTORY, (File) null),
+                configuration.getIntegerWithDefault(EXPORT_THREADS, 2));
+        if (configuration.getBooleanWithDefault(PRECOMPILE, false)) {
+            precompiler = new TemplatePrecompiler(
+                    configuration.getFileWithDefault(PRECOMPILE_FILE, "mustache-hot-templates.txt"),
+                    configuration.getIntegerWithDefault(PRECOMPILE_SIZE, TemplatePrecompiler.DEFAULT_SIZE));
+        }
+        if (configuration.getBooleanWithDefault(JMX, false)) {
+            registerInventoryBean();
+        }
+        warmer.configure(configuration.getBooleanWithDefault(WARMUP, false),
+                configuration.getIntegerWithDefault(WARMUP_ITERATIONS, TemplateWarmer.DEFAULT_ITERATIONS),
+                configuration.getIntegerWithDefault(WARMUP_THREADS, 1));
+        msf.setProfiling(configuration.getIntegerWithDefault(PROFILE_SAMPLING, 0),
+                configuration.getLongWithDefault(PROFILE_THRESHOLD, 0L),
+                configuration.getIntegerWithDefault(PROFILE_BUFFER, ExtendedMustacheFactory.DEFAULT_PROFILE_BUFFER));
+    }
+
     /**
      * Stops the collector. This methods clear all registered {@link org.wisdom.api.templates.Template} services.
      */
     @Invalidate
     public void stop() {
+        synchronized (this) {
+            if (registrationExecutor != null) {
+                registrationExecutor.shutdownNow();
+                registrationExecutor = null;
+            }
+            if (reloadExecutor != null) {
+                reloadExecutor.shutdownNow();
+                reloadExecutor = null;
+            }
+        }
+        TemplatePrecompiler compiler = precompiler;
+        if (compiler != null) {
+            precompiler = null;
+            compiler.shutdown();
+            List<MustacheTemplate> deployed = new ArrayList<>();
+            for (Template template : registry.get().getTemplates()) {
+                deployed.add((MustacheTemplate) template);
+            }
+            compiler.save(deployed);
+        }
+        warmer.shutdown();
+        exporter.shutdown();
+        unregisterInventoryBean();
+        pendingRegistrations.clear();
+        registrationScheduled.set(false);
+        registry.set(TemplateRegistry.EMPTY);
         for (ServiceRegistration<Template> reg : registrations.values()) {
             try {
                 reg.unregister();
@@ -122,6 +694,7 @@ public class MustacheTemplateCollector implements TemplateEngine {
             }
         }
         registrations.clear();
+        msf.shutdown();
     }
 
     /**
@@ -165,13 +738,7 @@ public class MustacheTemplateCollector implements TemplateEngine {
      * @return the template object, {@literal null} if not found
      */
     private MustacheTemplate getTemplateByURL(URL url) {
-        Collection<MustacheTemplate> list = registrations.keySet();
-        for (MustacheTemplate template : list) {
-            if (template.getURL().sameFile(url)) {
-                return template;
-            }
-        }
-        return null;
+        return registry.get().getByURL(url);
     }
 
     /**
@@ -193,26 +760,339 @@ public class MustacheTemplateCollector implements TemplateEngine {
      * @return the added template. IF the given url is already used by another template, return this other template.
      */
     public MustacheTemplate addTemplate(URL templateURL) {
-        MustacheTemplate template = getTemplateByURL(templateURL);
-        if (template != null) {
+        return addTemplates(Collections.singletonList(templateURL)).get(0);
+    }
+
+    /**
+     * Adds the templates from the given urls, publishing a single snapshot of the registry.
+     *
+     * @param templateURLs the urls
+     * @return the added templates, in the order of the urls. When an url is already used by another template, this
+     * other template is returned.
+     */
+    public List<MustacheTemplate> addTemplates(Collection<URL> templateURLs) {
+        // Created once, even if the snapshot has to be rebuilt.
+        Map<String, MustacheTemplate> created = new HashMap<>();
+        List<MustacheTemplate> templates;
+        Collection<MustacheTemplate> added;
+        TemplateRegistry snapshot;
+        do {
+            snapshot = registry.get();
+            templates = new ArrayList<>(templateURLs.size());
+            Map<String, MustacheTemplate> missing = new LinkedHashMap<>();
+            for (URL templateURL : templateURLs) {
+                MustacheTemplate template = snapshot.getByURL(templateURL);
+                if (template == null) {
+                    String key = templateURL.toExternalForm();
+                    template = created.get(key);
+                    if (template == null) {
+                        template = new MustacheTemplate(msf, templateURL);
+                        created.put(key, template);
+                    }
+                    missing.put(key, template);
+                }
+                templates.add(template);
+            }
+            added = missing.values();
+        } while (!added.isEmpty() && !registry.compareAndSet(snapshot, snapshot.withAll(added)));
+        if (added.isEmpty()) {
             // Already existing.
-            return template;
+            return templates;
+        }
+
+        // The templates that failed because these ones were missing can be compiled again.
+        List<MustacheTemplate> missing = new ArrayList<>();
+        for (MustacheTemplate template : added) {
+            if (msf.templateAdded(template.name())) {
+                missing.add(template);
+            }
+        }
+        if (!missing.isEmpty()) {
+            clearFailures(registry.get().getAffectedTemplates(missing));
+        }
+        TemplatePrecompiler compiler = precompiler;
+        for (MustacheTemplate template : added) {
+            if (batchedRegistration) {
+                pendingRegistrations.add(template);
+            } else {
+                register(template);
+            }
+            if (compiler != null) {
+                compiler.schedule(template);
+            }
+            warmer.schedule(template);
+            LOGGER.info("Mustache template added for {}", template.getURL().toExternalForm());
+        }
+        if (batchedRegistration) {
+            scheduleRegistrations();
         }
-        template = new MustacheTemplate(msf, templateURL);
+        // The exported files waiting for these templates (or rendered without them) are regenerated.
+        exporter.changed(names(added));
+        return templates;
+    }
+
+    /**
+     * Registers the service of the given template, unless the template has been deleted in the meantime.
+     *
+     * @param template the template
+     */
+    private void register(MustacheTemplate template) {
         ServiceRegistration<Template> reg = context.registerService(Template.class, template,
                 template.getServiceProperties());
         registrations.put(template, reg);
-        LOGGER.info("Mustache template added for {}", templateURL.toExternalForm());
-        return template;
+        // The template may have been deleted concurrently.
+        if (!registry.get().contains(template) && registrations.remove(template) != null) {
+            unregisterQuietly(reg);
+        }
+    }
+
+    /**
+     * Schedules the registration of the pending templates, if not already scheduled.
+     */
+    private void scheduleRegistrations() {
+        if (registrationScheduled.compareAndSet(false, true)) {
+            getRegistrationExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    registerPendingTemplates();
+                }
+            });
+        }
     }
 
     /**
-     * Clears the cache for the given template.
+     * Registers all the pending templates. Templates added during the batch are registered in the same batch.
+     */
+    private void registerPendingTemplates() {
+        int count = 0;
+        do {
+            MustacheTemplate template;
+            while ((template = pendingRegistrations.poll()) != null) {
+                if (registry.get().contains(template)) {
+                    register(template);
+                    count++;
+                }
+            }
+            registrationScheduled.set(false);
+            // Templates may have been added after the end of the loop but before the flag reset.
+        } while (!pendingRegistrations.isEmpty() && registrationScheduled.compareAndSet(false, true));
+        LOGGER.debug("{} Mustache template services registered", count);
+    }
+
+    private synchronized ExecutorService getReloadExecutor() {
+        if (reloadExecutor == null) {
+            reloadExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("mustache-reload-%d")
+                    .setDaemon(true)
+                    .build());
+        }
+        return reloadExecutor;
+    }
+
+    private synchronized ExecutorService getRegistrationExecutor() {
+        if (registrationExecutor == null) {
+            registrationExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("mustache-registration-%d")
+                    .setDaemon(true)
+                    .build());
+        }
+        return registrationExecutor;
+    }
+
+    private static void unregisterQuietly(ServiceRegistration<?> reg) {
+        try {
+            reg.unregister();
+        } catch (Exception e) { //NOSONAR
+            // May already have been unregistered during the shutdown sequence.
+        }
+    }
+
+    /**
+     * Clears the cache for the given template. The caches are not cleared if the content of the template has not
+     * changed (the file may just have been touched or rewritten with the same content).
      *
      * @param template the template
      */
     public void updatedTemplate(MustacheTemplate template) {
-        msf.clear(template);
+        updatedTemplates(Collections.singleton(template));
+    }
+
+    /**
+     * Clears the cache for the given templates, in a single pass. Templates whose content has not changed are
+     * ignored.
+     *
+     * @param updated the updated templates
+     */
+    public void updatedTemplates(Collection<MustacheTemplate> updated) {
+        TemplateRegistry snapshot = registry.get();
+        List<MustacheTemplate> changed = new ArrayList<>(updated.size());
+        for (MustacheTemplate template : updated) {
+            if (template.updateChecksum()) {
+                changed.add(template);
+            } else {
+                skippedInvalidations.incrementAndGet();
+                LOGGER.debug("Mustache template {} not invalidated, the content has not changed",
+                        template.fullName());
+            }
+        }
+        invalidations.addAndGet(changed.size());
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        // The templates including the changed ones must be recompiled too.
+        Set<MustacheTemplate> affected = snapshot.getAffectedTemplates(changed);
+        msf.clear(affected);
+        msf.invalidateMemo(affected);
+        clearFailures(affected);
+        List<String> names = names(changed);
+        if (backgroundReload) {
+            revalidateInBackground(affected, names);
+        } else {
+            recompile(affected);
+            exporter.changed(names);
+        }
+    }
+
+    private static List<String> names(Collection<MustacheTemplate> templates) {
+        List<String> names = new ArrayList<>(templates.size());
+        for (MustacheTemplate template : templates) {
+            names.add(template.name());
+        }
+        return names;
+    }
+
+    /**
+     * Marks the given templates as stale and recompiles them in background. The stale versions are rendered until
+     * the recompilation completes (or the maximum staleness is exceeded). If the recompilation of a template fails,
+     * the previous version stays in service.
+     *
+     * @param affected the templates
+     * @param changed  the names of the changed templates, whose dependent exported files are regenerated once the
+     *                 templates are recompiled
+     */
+    private void revalidateInBackground(Collection<MustacheTemplate> affected, final Collection<String> changed) {
+        final List<MustacheTemplate> stale = new ArrayList<>(affected.size());
+        for (MustacheTemplate template : affected) {
+            if (template.markStale()) {
+                stale.add(template);
+            }
+        }
+        if (stale.isEmpty()) {
+            // Already being recompiled.
+            exporter.changed(changed);
+            return;
+        }
+        getReloadExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                Map<MustacheTemplate, Set<String>> read = beginPartialsBatch();
+                try {
+                    for (MustacheTemplate template : stale) {
+                        template.revalidate();
+                    }
+                } finally {
+                    endPartialsBatch(read);
+                }
+                exporter.changed(changed);
+            }
+        });
+    }
+
+    /**
+     * Forgets the compilation failures of the given templates, so they are compiled again by their next rendering.
+     *
+     * @param templates the templates
+     */
+    private static void clearFailures(Collection<MustacheTemplate> templates) {
+        for (MustacheTemplate template : templates) {
+            if (template.clearFailure()) {
+                LOGGER.debug("Compilation failure of the Mustache template {} cleared", template.fullName());
+            }
+        }
+    }
+
+    /**
+     * Recompiles the given templates (the ones not compiled yet are compiled on their first rendering), so the
+     * rendering threads do not pay for it.
+     *
+     * @param affected the templates
+     */
+    private void recompile(Collection<MustacheTemplate> affected) {
+        Map<MustacheTemplate, Set<String>> read = beginPartialsBatch();
+        try {
+            for (MustacheTemplate template : affected) {
+                try {
+                    template.recompile();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Cannot recompile the Mustache template {}", template.fullName(), e);
+                }
+            }
+        } finally {
+            endPartialsBatch(read);
+        }
+    }
+
+    /**
+     * Starts collecting the partials read by the compilations done by the current thread, so they are recorded
+     * in a single snapshot by {@link #endPartialsBatch(java.util.Map)}.
+     *
+     * @return the collected partials, indexed by compiled template
+     */
+    private Map<MustacheTemplate, Set<String>> beginPartialsBatch() {
+        Map<MustacheTemplate, Set<String>> read = new IdentityHashMap<>();
+        batchedPartials.set(read);
+        return read;
+    }
+
+    /**
+     * Stops collecting the partials read by the compilations done by the current thread, and records them.
+     *
+     * @param read the collected partials
+     */
+    private void endPartialsBatch(Map<MustacheTemplate, Set<String>> read) {
+        batchedPartials.remove();
+        TemplateRegistry snapshot;
+        TemplateRegistry updated;
+        do {
+            snapshot = registry.get();
+            updated = snapshot.withPartials(read);
+        } while (updated != snapshot && !registry.compareAndSet(snapshot, updated));
+    }
+
+    /**
+     * Records the names of the templates read by the last compilation of the given template in the partial graph
+     * of the registry. A new snapshot is published if they have changed.
+     *
+     * @param template the compiled template
+     * @param partials the names of the templates read by the compilation
+     */
+    void partialsRead(MustacheTemplate template, Set<String> partials) {
+        Map<MustacheTemplate, Set<String>> batch = batchedPartials.get();
+        if (batch != null) {
+            batch.put(template, partials);
+            return;
+        }
+        TemplateRegistry snapshot;
+        TemplateRegistry updated;
+        do {
+            snapshot = registry.get();
+            updated = snapshot.withPartials(template, partials);
+        } while (updated != snapshot && !registry.compareAndSet(snapshot, updated));
+    }
+
+    /**
+     * @return the number of template updates that have invalidated the caches.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return the number of template updates ignored because the content of the template has not changed.
+     */
+    public long getSkippedInvalidationCount() {
+        return skippedInvalidations.get();
     }
 
     /**
@@ -221,17 +1101,39 @@ public class MustacheTemplateCollector implements TemplateEngine {
      * @param template the template
      */
     public void deleteTemplate(MustacheTemplate template) {
-        // 1 - unregister the service
-        try {
+        deleteTemplates(Collections.singleton(template));
+    }
+
+    /**
+     * Deletes the given templates. The services are unregistered, and the cache is cleared in a single pass.
+     *
+     * @param deleted the templates
+     */
+    public void deleteTemplates(Collection<MustacheTemplate> deleted) {
+        // 1 - remove the templates from the registry
+        TemplateRegistry snapshot;
+        do {
+            snapshot = registry.get();
+        } while (!registry.compareAndSet(snapshot, snapshot.without(deleted)));
+
+        // 2 - unregister the services (or cancel the pending registrations)
+        for (MustacheTemplate template : deleted) {
+            pendingRegistrations.remove(template);
             ServiceRegistration reg = registrations.remove(template);
             if (reg != null) {
-                reg.unregister();
+                unregisterQuietly(reg);
             }
-        } catch (Exception e) { //NOSONAR
-            // May already have been unregistered during the shutdown sequence.
         }
 
-        // 2 - remove the result from the cache
-        msf.clear(template);
+        // 3 - remove the results from the cache, and recompile the templates including the deleted ones
+        Set<MustacheTemplate> affected = snapshot.getAffectedTemplates(deleted);
+        msf.clear(affected);
+        msf.invalidateMemo(affected);
+        affected.removeAll(deleted);
+        clearFailures(affected);
+        if (!affected.isEmpty()) {
+            recompile(affected);
+        }
+        exporter.changed(names(deleted));
     }
 }
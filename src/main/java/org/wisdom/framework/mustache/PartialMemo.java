@@ -0,0 +1,154 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache storing the output of pure partials, {@literal i.e.} partials containing a {@literal {{! pure}}}
+ * comment. The output of such partials only depends on the values of the variables they read, so it is keyed on the
+ * name and version of the partial, and these values.
+ * <p>
+ * The cache is either scoped to a rendering (stored in the rendering context), or global to the factory with a
+ * time-to-live. The global cache only keeps the outputs computed from immutable values (strings, numbers,
+ * booleans, characters and enums), so it does not retain the data models of the renderings.
+ */
+final class PartialMemo {
+
+    /**
+     * The key of the rendering-scoped cache in the rendering context.
+     */
+    static final String KEY = "__memo";
+
+    /**
+     * The scope of the cache.
+     */
+    enum Scope {
+        /**
+         * The output of pure partials is not memoized.
+         */
+        NONE,
+        /**
+         * The output of pure partials is memoized during a rendering.
+         */
+        REQUEST,
+        /**
+         * The output of pure partials is memoized globally, for a limited time.
+         */
+        GLOBAL;
+
+        /**
+         * Parses a scope name (case insensitive).
+         *
+         * @param name the name
+         * @return the scope
+         * @throws IllegalArgumentException if the name is not a scope name
+         */
+        static Scope parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    private final Cache<List<Object>, String> cache;
+
+    private final boolean global;
+
+    private PartialMemo(Cache<List<Object>, String> cache, boolean global) {
+        this.cache = cache;
+        this.global = global;
+    }
+
+    /**
+     * Creates a cache for a single rendering.
+     *
+     * @param size the maximum number of entries
+     * @return the cache
+     */
+    static PartialMemo forRequest(int size) {
+        return new PartialMemo(CacheBuilder.newBuilder().maximumSize(size).<List<Object>, String>build(), false);
+    }
+
+    /**
+     * Creates a global cache.
+     *
+     * @param size the maximum number of entries
+     * @param ttl  the time (in milliseconds) during which an entry is kept
+     * @return the cache
+     */
+    static PartialMemo global(int size, long ttl) {
+        return new PartialMemo(CacheBuilder.newBuilder().maximumSize(size)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS).<List<Object>, String>build(), true);
+    }
+
+    /**
+     * @param value the value of a variable read by a pure partial
+     * @return {@code true} if an output computed from the given value can be memoized
+     */
+    boolean accepts(Object value) {
+        return !global || value == null || value instanceof String || value instanceof Number
+                || value instanceof Boolean || value instanceof Character || value instanceof Enum;
+    }
+
+    /**
+     * @param key the key (the partial name and version followed by the values of the variables it reads)
+     * @return the memoized output, {@code null} if none
+     */
+    String get(List<Object> key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * Stores an output.
+     *
+     * @param key    the key (the partial name and version followed by the values of the variables it reads)
+     * @param output the output
+     */
+    void put(List<Object> key, String output) {
+        cache.put(key, output);
+    }
+
+    /**
+     * Removes the outputs of the given partials.
+     *
+     * @param names the partial names
+     */
+    void invalidate(Set<String> names) {
+        Iterator<List<Object>> keys = cache.asMap().keySet().iterator();
+        while (keys.hasNext()) {
+            if (names.contains(keys.next().get(0))) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of memoized outputs.
+     */
+    long size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.MustacheException;
+import org.wisdom.framework.mustache.api.RenderTimeoutException;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The render budget of one rendering. The deadline is attached to the threads executing the template, so the
+ * sections and partials can check it, and record the section being executed. When the budget runs out, the next
+ * check throws a {@link org.wisdom.framework.mustache.api.RenderTimeoutException}.
+ * <p>
+ * Checks are cooperative: a data method blocking forever is not interrupted by a check. Templates setting their own
+ * budget are therefore executed by another thread when possible, and the thread waiting for the result (the
+ * request thread, or the reader of a progressive rendering) also watches the deadline, and cancels the rendering
+ * when it is exceeded.
+ */
+final class RenderDeadline {
+
+    /**
+     * The deadline of the rendering executed by the current thread.
+     */
+    private static final ThreadLocal<RenderDeadline> CURRENT = new ThreadLocal<>();
+
+    private final String template;
+
+    private final long budget;
+
+    /**
+     * The deadline, in the {@link System#nanoTime()} time base.
+     */
+    private final long deadline;
+
+    /**
+     * The path of the section being executed, {@code null} for the top-level content.
+     */
+    private volatile String section;
+
+    /**
+     * The deepest section left after the budget had run out, {@code null} if none. Reported by
+     * {@link #checkCompleted()}, when no check has failed during the rendering.
+     */
+    private volatile String overrun;
+
+    /**
+     * Whether or not the deadline has been disarmed, because the deferred partials have been cancelled.
+     */
+    private volatile boolean disarmed;
+
+    /**
+     * Creates a deadline starting now.
+     *
+     * @param template the name of the template
+     * @param budget   the budget in milliseconds, strictly positive
+     */
+    RenderDeadline(String template, long budget) {
+        this(template, budget, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget), null);
+    }
+
+    private RenderDeadline(String template, long budget, long deadline, String section) {
+        this.template = template;
+        this.budget = budget;
+        this.deadline = deadline;
+        this.section = section;
+    }
+
+    /**
+     * @return the deadline attached to the current thread, {@code null} if none.
+     */
+    static RenderDeadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Attaches the given deadline to the current thread.
+     *
+     * @param deadline the deadline, may be {@code null}
+     * @return the deadline previously attached, to be given to {@link #restore(RenderDeadline)}
+     */
+    static RenderDeadline attach(RenderDeadline deadline) {
+        RenderDeadline previous = CURRENT.get();
+        if (deadline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(deadline);
+        }
+        return previous;
+    }
+
+    /**
+     * Restores the deadline attached to the current thread before {@link #attach(RenderDeadline)}.
+     *
+     * @param previous the previous deadline, may be {@code null}
+     */
+    static void restore(RenderDeadline previous) {
+        attach(previous);
+    }
+
+    /**
+     * Creates a deadline with the same expiration, for a part of the rendering executed by another thread (a
+     * deferred partial). Disarming one of them does not disarm the other.
+     *
+     * @param name the name of the part, appended to the current section path
+     * @return the new deadline
+     */
+    RenderDeadline fork(String name) {
+        return new RenderDeadline(template, budget, deadline, path(name));
+    }
+
+    /**
+     * @return the name of the template.
+     */
+    String getTemplate() {
+        return template;
+    }
+
+    /**
+     * Records the entrance in a section, and checks the deadline.
+     *
+     * @param name the name of the section, such as {@literal #items} or {@literal >card}
+     * @return the previous section path, to be given to {@link #exit(String)}
+     * @throws RenderTimeoutException if the budget has run out
+     */
+    String enter(String name) {
+        String previous = section;
+        section = path(name);
+        check();
+        return previous;
+    }
+
+    /**
+     * Records the exit of a section.
+     *
+     * @param previous the section path returned by {@link #enter(String)}
+     */
+    void exit(String previous) {
+        if (overrun == null && isExpired()) {
+            overrun = section;
+        }
+        section = previous;
+    }
+
+    private String path(String name) {
+        String current = section;
+        return current == null ? name : current + "/" + name;
+    }
+
+    /**
+     * Checks the deadline.
+     *
+     * @throws RenderTimeoutException if the budget has run out
+     */
+    void check() {
+        if (isExpired()) {
+            throw timeout();
+        }
+    }
+
+    /**
+     * Checks the deadline once the template has been executed on the calling thread. The budget may have run out
+     * in the last sections, with no check after them.
+     *
+     * @throws RenderTimeoutException if the budget has run out, reporting the section that has exceeded it
+     */
+    void checkCompleted() {
+        if (isExpired()) {
+            throw new RenderTimeoutException(template, section != null ? section : overrun, budget);
+        }
+    }
+
+    /**
+     * @return {@code true} if the budget has run out and the deadline is not disarmed.
+     */
+    boolean isExpired() {
+        return !disarmed && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * @return the remaining time in nanoseconds, negative if the budget has run out.
+     */
+    long remaining() {
+        return deadline - System.nanoTime();
+    }
+
+    /**
+     * Disarms the deadline: the checks do not fail anymore. It is used once the deferred partials have been
+     * cancelled, so the rest of the page can be written.
+     */
+    void disarm() {
+        disarmed = true;
+    }
+
+    boolean isDisarmed() {
+        return disarmed;
+    }
+
+    /**
+     * @return the exception reporting that the budget has run out, with the section being executed.
+     */
+    RenderTimeoutException timeout() {
+        return new RenderTimeoutException(template, section, budget);
+    }
+
+    /**
+     * Waits for the result of a rendering executed by another thread. If the budget runs out, the rendering is
+     * cancelled (its thread is interrupted).
+     *
+     * @param future the rendering
+     * @param <T>    the type of result
+     * @return the result
+     * @throws RenderTimeoutException if the budget has run out
+     */
+    <T> T await(Future<T> future) {
+        try {
+            return future.get(Math.max(0L, remaining()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) { //NOSONAR
+            // Built before the cancellation, while the section is still the one that was running.
+            RenderTimeoutException timeout = timeout();
+            future.cancel(true);
+            throw timeout;
+        } catch (CancellationException e) {
+            throw new MustacheException("The rendering of the template " + template + " has been cancelled", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new MustacheException("Interrupted while rendering the template " + template, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new MustacheException("Cannot render the template " + template, cause);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.framework.mustache.api.RenderProfile;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sampling profiler of the renderings. One rendering out of {@code sampling} is profiled: its sections,
+ * partials and values are timed. The breakdown of the profiled renderings lasting at least the threshold is
+ * written to the log, and kept in a ring buffer.
+ * <p>
+ * When the profiler is disabled, the codes only read a volatile flag, so it can stay configured in production
+ * with a low sampling rate.
+ */
+final class RenderProfiler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenderProfiler.class);
+
+    /**
+     * Whether or not renderings are profiled, read by the codes before looking for a recorder.
+     */
+    private volatile boolean enabled;
+
+    /**
+     * One rendering out of {@code sampling} is profiled.
+     */
+    private volatile int sampling;
+
+    /**
+     * The minimal duration (in nanoseconds) of the reported renderings.
+     */
+    private volatile long threshold;
+
+    /**
+     * The last reported profiles, the oldest first.
+     */
+    private final Deque<RenderProfile> profiles = new ArrayDeque<>();
+
+    private int capacity = ExtendedMustacheFactory.DEFAULT_PROFILE_BUFFER;
+
+    /**
+     * Configures the profiler.
+     *
+     * @param sampling  one rendering out of {@code sampling} is profiled, zero or negative to disable the profiler
+     * @param threshold the minimal duration (in milliseconds) of the reported renderings, zero or negative to
+     *                  report all the profiled renderings
+     * @param capacity  the number of profiles kept in the ring buffer
+     */
+    void configure(int sampling, long threshold, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The number of kept profiles must be strictly positive");
+        }
+        synchronized (profiles) {
+            this.capacity = capacity;
+            while (profiles.size() > capacity) {
+                profiles.removeFirst();
+            }
+        }
+        this.threshold = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, threshold));
+        this.sampling = sampling;
+        this.enabled = sampling > 0;
+    }
+
+    /**
+     * @return {@code true} if renderings are profiled.
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Decides whether the rendering starting now is profiled.
+     *
+     * @param template the template name
+     * @return the recorder of the rendering, {@code null} if the rendering is not profiled
+     */
+    RenderRecorder sample(String template) {
+        int rate = sampling;
+        if (rate <= 0 || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0)) {
+            return null;
+        }
+        return new RenderRecorder(this, template);
+    }
+
+    /**
+     * Reports a profiled rendering. It is kept and logged if it lasted at least the threshold.
+     *
+     * @param recorder the recorder
+     * @param duration the duration of the rendering in nanoseconds
+     */
+    void report(RenderRecorder recorder, long duration) {
+        if (duration < threshold) {
+            return;
+        }
+        RenderProfile profile = recorder.toProfile(duration);
+        synchronized (profiles) {
+            if (profiles.size() == capacity) {
+                profiles.removeFirst();
+            }
+            profiles.addLast(profile);
+        }
+        LOGGER.info("{}", profile);
+    }
+
+    /**
+     * @return the last reported profiles, the oldest first.
+     */
+    List<RenderProfile> getProfiles() {
+        synchronized (profiles) {
+            return new ArrayList<>(profiles);
+        }
+    }
+}
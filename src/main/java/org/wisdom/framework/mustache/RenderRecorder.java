@@ -0,0 +1,207 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import org.wisdom.framework.mustache.api.RenderProfile;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the timing breakdown of one profiled rendering. The recorder is attached to the threads executing the
+ * template; sections, partials and values record their execution time in a tree following the template
+ * structure. A recorder is used by a single thread, deferred partials use a {@link #fork(String)}.
+ */
+final class RenderRecorder {
+
+    /**
+     * The recorder of the rendering executed by the current thread.
+     */
+    private static final ThreadLocal<RenderRecorder> CURRENT = new ThreadLocal<>();
+
+    private final RenderProfiler profiler;
+
+    private final String template;
+
+    private final long timestamp;
+
+    private final long start;
+
+    private final Frame root;
+
+    private Frame current;
+
+    /**
+     * Creates a recorder starting now.
+     *
+     * @param profiler the profiler receiving the breakdown
+     * @param template the template name
+     */
+    RenderRecorder(RenderProfiler profiler, String template) {
+        this(profiler, template, new Frame(null, template));
+    }
+
+    private RenderRecorder(RenderProfiler profiler, String template, Frame root) {
+        this.profiler = profiler;
+        this.template = template;
+        this.timestamp = System.currentTimeMillis();
+        this.start = System.nanoTime();
+        this.root = root;
+        this.current = root;
+    }
+
+    /**
+     * @return the recorder attached to the current thread, {@code null} if none.
+     */
+    static RenderRecorder current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Attaches the given recorder to the current thread.
+     *
+     * @param recorder the recorder, may be {@code null}
+     * @return the recorder previously attached, to be given to {@link #restore(RenderRecorder)}
+     */
+    static RenderRecorder attach(RenderRecorder recorder) {
+        RenderRecorder previous = CURRENT.get();
+        if (recorder == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(recorder);
+        }
+        return previous;
+    }
+
+    /**
+     * Restores the recorder attached to the current thread before {@link #attach(RenderRecorder)}.
+     *
+     * @param previous the previous recorder, may be {@code null}
+     */
+    static void restore(RenderRecorder previous) {
+        attach(previous);
+    }
+
+    /**
+     * Creates a recorder for a part of the rendering executed by another thread (a deferred partial). Its
+     * breakdown is recorded under the current node.
+     *
+     * @param name the name of the part
+     * @return the new recorder
+     */
+    RenderRecorder fork(String name) {
+        Frame frame = current.child(name);
+        frame.count++;
+        return new RenderRecorder(profiler, template, frame);
+    }
+
+    /**
+     * Records the entrance in a node.
+     *
+     * @param name the name of the section, partial or value
+     * @return the start time, to be given to {@link #exit(long)}
+     */
+    long enter(String name) {
+        Frame frame = current.child(name);
+        frame.count++;
+        current = frame;
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the exit of the current node.
+     *
+     * @param begin the start time returned by {@link #enter(String)}
+     */
+    void exit(long begin) {
+        current.time += System.nanoTime() - begin;
+        current = current.parent;
+    }
+
+    /**
+     * Completes the recording of a forked part.
+     */
+    void complete() {
+        root.time += System.nanoTime() - start;
+    }
+
+    /**
+     * Completes the recording of the rendering, and gives the breakdown to the profiler.
+     */
+    void finish() {
+        long duration = System.nanoTime() - start;
+        profiler.report(this, duration);
+    }
+
+    /**
+     * Builds the profile of the rendering.
+     *
+     * @param duration the duration of the rendering in nanoseconds
+     * @return the profile
+     */
+    RenderProfile toProfile(long duration) {
+        return new RenderProfile(template, timestamp,
+                new RenderProfile.Node(template, 1, duration, root.snapshotChildren()));
+    }
+
+    /**
+     * A mutable node of the breakdown.
+     */
+    private static final class Frame {
+
+        final Frame parent;
+
+        final String name;
+
+        /**
+         * The child nodes, in their first execution order. Forks add children from the rendering thread while
+         * the forked part records its own subtree, so the access is synchronized.
+         */
+        private final Map<String, Frame> children = new LinkedHashMap<>();
+
+        long count;
+
+        long time;
+
+        Frame(Frame parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        synchronized Frame child(String child) {
+            Frame frame = children.get(child);
+            if (frame == null) {
+                frame = new Frame(this, child);
+                children.put(child, frame);
+            }
+            return frame;
+        }
+
+        synchronized List<RenderProfile.Node> snapshotChildren() {
+            List<RenderProfile.Node> nodes = new ArrayList<>(children.size());
+            for (Frame frame : children.values()) {
+                nodes.add(new RenderProfile.Node(frame.name, frame.count, frame.time, frame.snapshotChildren()));
+            }
+            return nodes;
+        }
+    }
+}
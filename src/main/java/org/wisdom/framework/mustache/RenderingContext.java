@@ -0,0 +1,44 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The root scope of a rendering: the variables, and the state of the rendering (deferred partials, memoization
+ * caches). It is the first scope given to the codes, so they can add state lazily, such as the cache of the
+ * memoizable functions, created on the first memoized call.
+ * <p>
+ * As any {@link HashMap}, it must not be modified while other threads read it. State is only added lazily when the
+ * partials are not rendered concurrently.
+ */
+final class RenderingContext extends HashMap<String, Object> {
+
+    private static final long serialVersionUID = 1L;
+
+    RenderingContext() {
+        super();
+    }
+
+    RenderingContext(Map<String, Object> variables) {
+        super(variables);
+    }
+}
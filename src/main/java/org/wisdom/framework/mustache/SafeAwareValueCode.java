@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.Binding;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.ValueCode;
+import org.wisdom.framework.mustache.api.Memoizable;
+import org.wisdom.framework.mustache.api.SafeContent;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+/**
+ * Code created for values ({@literal {{value}}} and {@literal {{{value}}}}).
+ * {@link org.wisdom.framework.mustache.api.SafeContent} values are written
+ * as-is, without being escaped. The other values are handled as by {@link ValueCode}.
+ * <p>
+ * When the rendering is profiled, the time spent looking up and writing the value is recorded. The results of the
+ * {@link org.wisdom.framework.mustache.api.Memoizable} functions are memoized.
+ */
+class SafeAwareValueCode extends ValueCode {
+
+    private final ExtendedMustacheFactory factory;
+
+    /**
+     * The binding of the rendering-scoped cache of the function results, created on the first function call.
+     */
+    private volatile Binding functionMemoBinding;
+
+    /**
+     * Creates a new code.
+     *
+     * @param tc       the template context
+     * @param factory  the factory
+     * @param variable the variable name
+     * @param encoded  whether or not the value is escaped
+     */
+    SafeAwareValueCode(TemplateContext tc, ExtendedMustacheFactory factory, String variable, boolean encoded) {
+        super(tc, factory, variable, encoded);
+        this.factory = factory;
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+        RenderRecorder recorder = factory.isProfiling() ? RenderRecorder.current() : null;
+        if (recorder == null) {
+            return write(writer, scopes);
+        }
+        long start = recorder.enter(name);
+        try {
+            return write(writer, scopes);
+        } finally {
+            recorder.exit(start);
+        }
+    }
+
+    private Writer write(Writer writer, Object[] scopes) {
+        try {
+            Object object = get(scopes);
+            if (object instanceof SafeContent) {
+                SafeContent content = (SafeContent) object;
+                if (content.isEncoded() && writer instanceof ChunkedWriter) {
+                    // Sent without being decoded.
+                    ((ChunkedWriter) writer).write(content.getBytes(), content.getCharset());
+                } else {
+                    content.writeTo(writer);
+                }
+            } else if (object instanceof Function) {
+                handleFunction(writer, (Function) object, scopes);
+            } else if (object instanceof Callable) {
+                return handleCallable(writer, (Callable) object, scopes);
+            } else if (object != null) {
+                execute(writer, oh.stringify(object));
+            }
+            return appendText(writer);
+        } catch (Exception e) {
+            throw new MustacheException("Failed to get value for " + name, e, tc);
+        }
+    }
+
+    /**
+     * Calls the function, through the memoization cache if the function is memoizable.
+     */
+    @Override
+    protected void handleFunction(Writer writer, Function function, Object[] scopes) throws IOException {
+        Binding binding = functionMemoBinding;
+        if (binding == null && function instanceof Memoizable) {
+            binding = oh.createBinding(FunctionMemo.KEY, tc, this);
+            functionMemoBinding = binding;
+        }
+        super.handleFunction(writer,
+                binding == null ? function : factory.memoize(function, binding.get(scopes), scopes), scopes);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Pre-renders templates to static files. Each export renders a template with fixed variables to a file of the
+ * export directory, and writes a gzipped variant next to it ({@literal .gz}). The exports are rendered in parallel.
+ * <p>
+ * The templates read by each rendering (the template itself, its partials and inherited templates) are recorded,
+ * so when templates change, only the files depending on them are regenerated. Files are written to a temporary
+ * file first and then moved, so readers never see a partial file.
+ */
+final class StaticExporter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StaticExporter.class);
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final Supplier<ByteBuffer> HEAP_BUFFERS = new Supplier<ByteBuffer>() {
+        @Override
+        public ByteBuffer get() {
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * Resolves the deployed templates by name.
+     */
+    private final Function<String, MustacheTemplate> templates;
+
+    /**
+     * The exports, by output path.
+     */
+    private final ConcurrentMap<String, Export> exports = new ConcurrentHashMap<>();
+
+    private File directory;
+
+    private int threads = 1;
+
+    private ExecutorService executor;
+
+    /**
+     * Creates an exporter.
+     *
+     * @param templates resolves the deployed templates by name, returns {@code null} if not deployed
+     */
+    StaticExporter(Function<String, MustacheTemplate> templates) {
+        this.templates = templates;
+    }
+
+    /**
+     * Configures the exporter.
+     *
+     * @param directory the directory receiving the files, {@code null} to disable the export
+     * @param threads   the number of threads rendering the files
+     */
+    synchronized void configure(File directory, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("The number of export threads must be strictly positive");
+        }
+        this.directory = directory;
+        this.threads = threads;
+    }
+
+    /**
+     * Registers an export and renders it.
+     *
+     * @param template  the template name
+     * @param variables the variables
+     * @param path      the path of the file, relative to the export directory
+     * @return a future completed once the file is written
+     */
+    CompletableFuture<Void> add(String template, Map<String, Object> variables, String path) {
+        File root;
+        synchronized (this) {
+            root = directory;
+        }
+        if (root == null) {
+            throw new IllegalStateException("The export directory is not configured");
+        }
+        File file = new File(root, path);
+        try {
+            if (!file.getCanonicalPath().startsWith(root.getCanonicalPath() + File.separator)) {
+                throw new IllegalArgumentException("The export path " + path + " is not in the export directory");
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid export path " + path, e);
+        }
+        Export export = new Export(template, Collections.unmodifiableMap(variables), file);
+        exports.put(path, export);
+        return schedule(Collections.singletonList(export));
+    }
+
+    /**
+     * Renders all the exports again.
+     *
+     * @return a future completed once all the files are written
+     */
+    CompletableFuture<Void> exportAll() {
+        return schedule(new ArrayList<>(exports.values()));
+    }
+
+    /**
+     * Regenerates the files depending on the given templates.
+     *
+     * @param names the names of the changed (added, updated or deleted) templates
+     * @return a future completed once the affected files are written
+     */
+    CompletableFuture<Void> changed(Collection<String> names) {
+        List<Export> affected = new ArrayList<>();
+        for (Export export : exports.values()) {
+            if (!Collections.disjoint(export.dependencies, names)) {
+                affected.add(export);
+            }
+        }
+        if (!affected.isEmpty()) {
+            LOGGER.info("Regenerating {} exported file(s) after the change of {}", affected.size(), names);
+        }
+        return schedule(affected);
+    }
+
+    private CompletableFuture<Void> schedule(Collection<Export> list) {
+        if (list.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        ExecutorService service = getExecutor();
+        List<CompletableFuture<Void>> futures = new ArrayList<>(list.size());
+        for (final Export export : list) {
+            futures.add(CompletableFuture.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    export.write();
+                }
+            }, service));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                    .setNameFormat("mustache-export-%d")
+                    .setDaemon(true)
+                    .build());
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the running exports.
+     */
+    synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * A file rendered from a template.
+     */
+    private final class Export {
+
+        private final String template;
+
+        private final Map<String, Object> variables;
+
+        private final File file;
+
+        /**
+         * The names of the templates read by the last rendering.
+         */
+        private volatile Set<String> dependencies;
+
+        Export(String template, Map<String, Object> variables, File file) {
+            this.template = template;
+            this.variables = variables;
+            this.file = file;
+            this.dependencies = Collections.singleton(template);
+        }
+
+        /**
+         * Renders the file and its gzipped variant. Concurrent regenerations of the same file are serialized.
+         */
+        synchronized void write() {
+            MustacheTemplate target = templates.apply(template);
+            if (target == null) {
+                // Written once the template is deployed.
+                dependencies = Collections.singleton(template);
+                LOGGER.warn("Cannot export {}, the Mustache template {} is not deployed", file.getAbsolutePath(),
+                        template);
+                return;
+            }
+            try {
+                List<ByteBuffer> buffers = target.renderTo(null, variables, HEAP_BUFFERS);
+                dependencies = union(template, target.getPartials());
+
+                File parent = file.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Cannot create the directory " + parent.getAbsolutePath());
+                }
+                File gz = new File(parent, file.getName() + ".gz");
+                write(buffers, file, false);
+                write(buffers, gz, true);
+                LOGGER.debug("Mustache template {} exported to {}", template, file.getAbsolutePath());
+            } catch (IOException | RuntimeException e) {
+                // The previous files are kept. The dependencies are still tracked (on failure the partials read, or
+                // not found, are reported), so the file is regenerated once fixed.
+                dependencies = union(template, target.getPartials());
+                LOGGER.error("Cannot export the Mustache template {} to {}", template, file.getAbsolutePath(), e);
+            }
+        }
+
+        private void write(List<ByteBuffer> buffers, File target, boolean gzip) throws IOException {
+            File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+            try (OutputStream out = gzip ? new GZIPOutputStream(new FileOutputStream(tmp), BUFFER_SIZE)
+                    : new FileOutputStream(tmp)) {
+                for (ByteBuffer buffer : buffers) {
+                    out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                }
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static Set<String> union(String name, Set<String> names) {
+        Set<String> set = new HashSet<>(names);
+        set.add(name);
+        return set;
+    }
+}
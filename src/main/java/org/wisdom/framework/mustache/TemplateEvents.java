@@ -0,0 +1,122 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+/**
+ * Emits monitoring events for the template operations: rendering, compilation, partial resolution and cache
+ * invalidation. When running on a JVM providing Java Flight Recorder ({@literal jdk.jfr}), the events are JFR events
+ * and are recorded when enabled in the recording settings. Otherwise, the methods do nothing.
+ * <p>
+ * The {@literal begin} methods return {@code null} when the event is disabled, and the {@literal end} methods
+ * ignore {@code null} events, so a disabled event costs a check.
+ */
+abstract class TemplateEvents {
+
+    /**
+     * The events implementation used by the engine.
+     */
+    static final TemplateEvents EVENTS = create();
+
+    private static TemplateEvents create() {
+        try {
+            Class.forName("jdk.jfr.Event", false, TemplateEvents.class.getClassLoader());
+            return new JfrTemplateEvents();
+        } catch (Throwable e) { //NOSONAR
+            // JFR is not available.
+            return new TemplateEvents() {
+            };
+        }
+    }
+
+    /**
+     * @return the render event, {@code null} if disabled
+     */
+    Object beginRender() {
+        return null;
+    }
+
+    /**
+     * Ends a render event.
+     *
+     * @param event       the event returned by {@link #beginRender()}
+     * @param template    the template name
+     * @param cached      whether the compiled template (or its precomputed output) was reused
+     * @param outputSize  the number of rendered characters, -1 if unknown (progressive rendering)
+     * @param contextSize the number of entries in the rendering context
+     */
+    void endRender(Object event, String template, boolean cached, long outputSize, int contextSize) {
+        // Disabled.
+    }
+
+    /**
+     * @return the compile event, {@code null} if disabled
+     */
+    Object beginCompile() {
+        return null;
+    }
+
+    /**
+     * Ends a compile event.
+     *
+     * @param event    the event returned by {@link #beginCompile()}
+     * @param template the template name
+     * @param partials the number of templates read during the compilation
+     * @param success  whether or not the compilation succeeded
+     */
+    void endCompile(Object event, String template, int partials, boolean success) {
+        // Disabled.
+    }
+
+    /**
+     * @return the partial resolution event, {@code null} if disabled
+     */
+    Object beginPartialResolution() {
+        return null;
+    }
+
+    /**
+     * Ends a partial resolution event.
+     *
+     * @param event   the event returned by {@link #beginPartialResolution()}
+     * @param partial the partial name
+     * @param found   whether or not the partial has been found
+     */
+    void endPartialResolution(Object event, String partial, boolean found) {
+        // Disabled.
+    }
+
+    /**
+     * @return the invalidation event, {@code null} if disabled
+     */
+    Object beginInvalidation() {
+        return null;
+    }
+
+    /**
+     * Ends an invalidation event.
+     *
+     * @param event     the event returned by {@link #beginInvalidation()}
+     * @param templates the number of invalidated templates
+     * @param fragments the number of removed fragments
+     */
+    void endInvalidation(Object event, int templates, int fragments) {
+        // Disabled.
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.DefaultCode;
+import com.github.mustachejava.codes.ExtendCode;
+import com.github.mustachejava.codes.ExtendNameCode;
+import com.github.mustachejava.codes.WriteCode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimizes the code tree of compiled templates:
+ * <ul>
+ * <li>partials that are not recursive (nor pure) are inlined in the including template. The inlined codes are
+ * wrapped in an {@link org.wisdom.framework.mustache.InlinedPartialCode}, keeping the render budget and profiling
+ * of the partial</li>
+ * <li>inheritance ({@literal {{<base}}}) and blocks ({@literal {{$block}}}) are replaced by the resolved codes</li>
+ * <li>adjacent static text segments are merged into a single write</li>
+ * </ul>
+ * Sections are kept, but their content is optimized the same way. Only the root code list of the optimized
+ * template is replaced: sections are copied with their new codes, so the trees of the partials and inherited
+ * templates are never modified. The optimized tree executes fewer codes, and issues fewer writes than the
+ * original one.
+ * <p>
+ * The text written after a code is not accessible from the Mustache.java API, so it is read reflectively. If this
+ * is not possible, the tree is left unchanged.
+ */
+final class TemplateOptimizer {
+
+    private final ExtendedMustacheFactory factory;
+
+    private final TemplateContext context;
+
+    /**
+     * The code arrays of the partials being inlined, used to detect recursive partials.
+     */
+    private final Set<Code[]> inlining = Collections.newSetFromMap(new IdentityHashMap<Code[], Boolean>());
+
+    /**
+     * The optimized copies of the sections already visited.
+     */
+    private final Map<Code, Code> sections = new IdentityHashMap<>();
+
+    /**
+     * The segment of the current text run when it contains a single segment, reused as is (it is already interned).
+     */
+    private String single;
+
+    /**
+     * Creates an optimizer for one template.
+     *
+     * @param factory the factory
+     * @param name    the template name
+     */
+    TemplateOptimizer(ExtendedMustacheFactory factory, String name) {
+        this.factory = factory;
+        this.context = new TemplateContext("{{", "}}", name, 0, false);
+    }
+
+    /**
+     * Optimizes the given compiled template.
+     *
+     * @param mustache the compiled template, already initialized
+     * @return the given template, with its codes optimized.
+     */
+    Mustache optimize(Mustache mustache) {
+        if (CodeTrees.isTextAccessible() && mustache.getCodes() != null) {
+            mustache.setCodes(flatten(mustache.getCodes()));
+        }
+        return mustache;
+    }
+
+    private Code[] flatten(Code[] codes) {
+        List<Code> result = new ArrayList<>(codes.length);
+        StringBuilder text = new StringBuilder();
+        flatten(codes, result, text);
+        emit(result, text);
+        return result.toArray(new Code[result.size()]);
+    }
+
+    private void flatten(Code[] codes, List<Code> result, StringBuilder text) {
+        for (Code code : codes) {
+            if (CodeTrees.isBudget(code)) {
+                // Kept, the render budget is read from the compiled template.
+                emit(result, text);
+                result.add(code);
+                continue;
+            }
+            if (CodeTrees.isStatic(code)) {
+                appendText(code, text);
+                continue;
+            }
+
+            Code[] inlined = getInlinableCodes(code);
+            if (inlined != null) {
+                inlining.add(inlined);
+                if (code instanceof DeferrablePartialCode) {
+                    // Partials keep a code of their own, executing the budget and profiling hooks.
+                    emit(result, text);
+                    result.add(new InlinedPartialCode(context, factory, code.getName(), flatten(inlined)));
+                } else {
+                    flatten(inlined, result, text);
+                }
+                inlining.remove(inlined);
+                appendText(code, text);
+                continue;
+            }
+
+            emit(result, text);
+            result.add(optimizeSection(code));
+        }
+    }
+
+    /**
+     * Optimizes the content of the given section. The section is not modified, an optimized copy is returned.
+     *
+     * @param code the code
+     * @return the optimized copy of the section, the given code if it is not a section or cannot be copied
+     */
+    private Code optimizeSection(Code code) {
+        if (code.getCodes() == null
+                || !(code instanceof TrackedIterableCode || code instanceof TrackedNotIterableCode)) {
+            return code;
+        }
+        Code copy = sections.get(code);
+        if (copy == null) {
+            Code[] codes = flatten(code.getCodes());
+            copy = code instanceof TrackedIterableCode ? ((TrackedIterableCode) code).copy(codes)
+                    : ((TrackedNotIterableCode) code).copy(codes);
+            sections.put(code, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Gets the codes replacing the given code when inlined.
+     *
+     * @param code the code
+     * @return the codes to inline, {@code null} if the code cannot be inlined.
+     */
+    private Code[] getInlinableCodes(Code code) {
+        if (!(code instanceof DefaultCode)) {
+            return null;
+        }
+        if (code instanceof DeferrablePartialCode && ((DeferrablePartialCode) code).isPure()) {
+            // Pure partials are kept, their output may be memoized.
+            return null;
+        }
+        if (code instanceof DeferrablePartialCode || code instanceof ExtendCode) {
+            Code[] codes = code.getCodes();
+            if (codes == null || inlining.contains(codes)) {
+                // Recursive partial.
+                return null;
+            }
+            return codes;
+        }
+        if (code instanceof ExtendNameCode) {
+            Code[] codes = code.getCodes();
+            return codes == null ? new Code[0] : codes;
+        }
+        return null;
+    }
+
+    private void appendText(Code code, StringBuilder text) {
+        String appended = CodeTrees.getText(code);
+        if (appended != null && !appended.isEmpty()) {
+            single = text.length() == 0 ? appended : null;
+            text.append(appended);
+        }
+    }
+
+    private void emit(List<Code> result, StringBuilder text) {
+        if (text.length() > 0) {
+            String merged = single != null ? single : factory.intern(text.toString());
+            result.add(new WriteCode(context, factory, merged));
+            text.setLength(0);
+            single = null;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiles the templates in background after the startup, the hot templates of the previous run first.
+ * <p>
+ * When the collector stops, the most rendered templates are saved, by render count, to a small file. On the next
+ * startup, the templates listed in this file are compiled first, as soon as they are deployed, so the popular pages
+ * do not pay for the compilation. The other templates are compiled afterwards, at the lowest thread priority.
+ */
+final class TemplatePrecompiler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TemplatePrecompiler.class);
+
+    /**
+     * The default number of hot templates saved.
+     */
+    static final int DEFAULT_SIZE = 100;
+
+    private final File file;
+
+    private final int size;
+
+    /**
+     * The rank of the hot templates of the previous run, by name (0 is the hottest).
+     */
+    private final Map<String, Integer> ranks;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Orders the tasks of the same rank by submission.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Creates a precompiler, and loads the hot templates of the previous run.
+     *
+     * @param file the file listing the hot templates
+     * @param size the maximum number of hot templates saved
+     */
+    TemplatePrecompiler(File file, int size) {
+        this.file = file;
+        this.size = size;
+        this.ranks = load(file);
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                .setNameFormat("mustache-precompile-%d")
+                .setDaemon(true)
+                .build());
+        if (!ranks.isEmpty()) {
+            LOGGER.info("{} hot Mustache template(s) will be compiled first", ranks.size());
+        }
+    }
+
+    private static Map<String, Integer> load(File file) {
+        Map<String, Integer> ranks = new HashMap<>();
+        if (!file.isFile()) {
+            return ranks;
+        }
+        try {
+            for (String line : FileUtils.readLines(file, StandardCharsets.UTF_8)) {
+                String[] segments = line.trim().split("\\s+");
+                if (!segments[0].isEmpty() && !ranks.containsKey(segments[0])) {
+                    ranks.put(segments[0], ranks.size());
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read the hot Mustache templates from {}", file.getAbsolutePath(), e);
+        }
+        return ranks;
+    }
+
+    /**
+     * Schedules the compilation of the given template, according to its rank in the previous run.
+     *
+     * @param template the template
+     */
+    void schedule(MustacheTemplate template) {
+        Integer rank = ranks.get(template.name());
+        executor.execute(new Compilation(template, rank == null ? Integer.MAX_VALUE : rank,
+                sequence.getAndIncrement()));
+    }
+
+    /**
+     * Saves the most rendered templates, unless no template has been rendered (the previous file is kept).
+     *
+     * @param templates the deployed templates
+     */
+    void save(Collection<MustacheTemplate> templates) {
+        List<MustacheTemplate> rendered = new ArrayList<>();
+        for (MustacheTemplate template : templates) {
+            if (template.getRenderCount() > 0) {
+                rendered.add(template);
+            }
+        }
+        if (rendered.isEmpty()) {
+            return;
+        }
+        Collections.sort(rendered, new Comparator<MustacheTemplate>() {
+            @Override
+            public int compare(MustacheTemplate t1, MustacheTemplate t2) {
+                return Long.compare(t2.getRenderCount(), t1.getRenderCount());
+            }
+        });
+        StringBuilder content = new StringBuilder();
+        for (MustacheTemplate template : rendered.subList(0, Math.min(size, rendered.size()))) {
+            content.append(template.name()).append(' ').append(template.getRenderCount()).append('\n');
+        }
+        try {
+            File tmp = new File(file.getAbsolutePath() + ".tmp");
+            FileUtils.writeStringToFile(tmp, content.toString(), StandardCharsets.UTF_8);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot save the hot Mustache templates to {}", file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Stops the pending compilations.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The compilation of a template, ordered by rank, then by submission.
+     */
+    private static final class Compilation implements Runnable, Comparable<Compilation> {
+
+        private final MustacheTemplate template;
+
+        private final int rank;
+
+        private final long sequence;
+
+        Compilation(MustacheTemplate template, int rank, long sequence) {
+            this.template = template;
+            this.rank = rank;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            Thread thread = Thread.currentThread();
+            thread.setPriority(rank == Integer.MAX_VALUE ? Thread.MIN_PRIORITY : Thread.NORM_PRIORITY);
+            template.precompile();
+        }
+
+        @Override
+        public int compareTo(Compilation other) {
+            int result = Integer.compare(rank, other.rank);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
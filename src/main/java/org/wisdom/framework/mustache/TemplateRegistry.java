@@ -0,0 +1,326 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import org.wisdom.api.templates.Template;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the templates managed by the collector, indexed by url and by name, and of the partial
+ * graph between them. Modifications create a new snapshot, published by the collector with a single atomic swap.
+ * Bulk modifications (the templates of a bundle, the partials read by a batch of recompilations) create a single
+ * snapshot, so the indexes are copied once per batch rather than once per template. Threads resolving templates
+ * (including the partial lookups done during the compilation) read the current snapshot without locks.
+ * <p>
+ * The partial graph is given by the compilations: each of them reports the names of the templates it has read,
+ * and a new snapshot is published if they have changed. The graph is indexed from the partial names to the
+ * templates reading them, so the templates affected by a modification are found without scanning all the
+ * templates. The compiled trees themselves are not part of the snapshot: each template swaps its own compiled
+ * version atomically, so renderings read a single volatile field.
+ */
+final class TemplateRegistry {
+
+    /**
+     * The empty registry.
+     */
+    static final TemplateRegistry EMPTY = new TemplateRegistry(
+            Collections.<String, MustacheTemplate>emptyMap(),
+            Collections.<MustacheTemplate, Set<String>>emptyMap(),
+            Collections.<String, Set<MustacheTemplate>>emptyMap());
+
+    /**
+     * The templates, indexed by the external form of their url.
+     */
+    private final Map<String, MustacheTemplate> byURL;
+
+    /**
+     * The templates, indexed by name. When several templates have the same name, the first added one is used.
+     */
+    private final Map<String, MustacheTemplate> byName;
+
+    /**
+     * The names of the templates read by the last compilation of each template. Templates not compiled yet, or
+     * not reading other templates, are not in the map.
+     */
+    private final Map<MustacheTemplate, Set<String>> partials;
+
+    /**
+     * The templates whose last compilation has read a given template, indexed by the name of the read template.
+     */
+    private final Map<String, Set<MustacheTemplate>> dependents;
+
+    private final Collection<Template> templates;
+
+    private TemplateRegistry(Map<String, MustacheTemplate> byURL, Map<MustacheTemplate, Set<String>> partials,
+                             Map<String, Set<MustacheTemplate>> dependents) {
+        this(byURL, indexByName(byURL), partials, dependents);
+    }
+
+    private TemplateRegistry(Map<String, MustacheTemplate> byURL, Map<String, MustacheTemplate> byName,
+                             Map<MustacheTemplate, Set<String>> partials,
+                             Map<String, Set<MustacheTemplate>> dependents) {
+        this.byURL = byURL;
+        this.byName = byName;
+        this.partials = partials;
+        this.dependents = dependents;
+        this.templates = Collections.<Template>unmodifiableCollection(byURL.values());
+    }
+
+    private static Map<String, MustacheTemplate> indexByName(Map<String, MustacheTemplate> byURL) {
+        Map<String, MustacheTemplate> names = new LinkedHashMap<>();
+        for (MustacheTemplate template : byURL.values()) {
+            if (!names.containsKey(template.name())) {
+                names.put(template.name(), template);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the templates, as an unmodifiable collection.
+     */
+    Collection<Template> getTemplates() {
+        return templates;
+    }
+
+    /**
+     * @param url the url
+     * @return the template using the given url as backend, {@code null} if none
+     */
+    MustacheTemplate getByURL(URL url) {
+        return byURL.get(url.toExternalForm());
+    }
+
+    /**
+     * @param name the template name
+     * @return the template having the given name, {@code null} if none
+     */
+    MustacheTemplate getByName(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @param template the template
+     * @return {@code true} if the registry contains the given template
+     */
+    boolean contains(MustacheTemplate template) {
+        return byURL.get(template.getURL().toExternalForm()) == template;
+    }
+
+    /**
+     * @param name the name of a template
+     * @return the templates whose last compilation has read the given template (directly), empty if none
+     */
+    Set<MustacheTemplate> getDependents(String name) {
+        Set<MustacheTemplate> set = dependents.get(name);
+        return set == null ? Collections.<MustacheTemplate>emptySet() : set;
+    }
+
+    /**
+     * Creates a new snapshot containing the given template.
+     *
+     * @param template the template
+     * @return the new snapshot
+     */
+    TemplateRegistry with(MustacheTemplate template) {
+        return withAll(Collections.singleton(template));
+    }
+
+    /**
+     * Creates a new snapshot containing the given templates. The indexes are built once for all the templates.
+     *
+     * @param added the templates
+     * @return the new snapshot
+     */
+    TemplateRegistry withAll(Collection<MustacheTemplate> added) {
+        Map<String, MustacheTemplate> map = new LinkedHashMap<>(byURL);
+        for (MustacheTemplate template : added) {
+            map.put(template.getURL().toExternalForm(), template);
+        }
+        return new TemplateRegistry(Collections.unmodifiableMap(map), partials, dependents);
+    }
+
+    /**
+     * Creates a new snapshot without the given templates. Their edges are removed from the partial graph.
+     *
+     * @param removed the templates to remove
+     * @return the new snapshot
+     */
+    TemplateRegistry without(Collection<MustacheTemplate> removed) {
+        Map<String, MustacheTemplate> map = new LinkedHashMap<>(byURL);
+        Map<MustacheTemplate, Set<String>> newPartials = new IdentityHashMap<>(partials);
+        Map<String, Set<MustacheTemplate>> newDependents = new HashMap<>(dependents);
+        Map<String, Set<MustacheTemplate>> copies = new HashMap<>();
+        for (MustacheTemplate template : removed) {
+            String key = template.getURL().toExternalForm();
+            if (map.get(key) == template) {
+                map.remove(key);
+                unlink(template, newPartials.remove(template), newDependents, copies);
+            }
+        }
+        seal(newDependents, copies);
+        return new TemplateRegistry(Collections.unmodifiableMap(map), newPartials, newDependents);
+    }
+
+    /**
+     * Creates a new snapshot recording the names of the templates read by the last compilation of the given
+     * template.
+     *
+     * @param template the compiled template
+     * @param names    the names of the templates read by the compilation
+     * @return the new snapshot, this snapshot if the template is not in the registry or if the names have not
+     * changed
+     */
+    TemplateRegistry withPartials(MustacheTemplate template, Set<String> names) {
+        return withPartials(Collections.singletonMap(template, names));
+    }
+
+    /**
+     * Creates a new snapshot recording the names of the templates read by the last compilation of the given
+     * templates. The partial graph is copied once for all the templates.
+     *
+     * @param read the names of the templates read by the compilations, indexed by compiled template
+     * @return the new snapshot, this snapshot if none of the templates is in the registry or if the names have not
+     * changed
+     */
+    TemplateRegistry withPartials(Map<MustacheTemplate, Set<String>> read) {
+        Map<MustacheTemplate, Set<String>> newPartials = null;
+        Map<String, Set<MustacheTemplate>> newDependents = null;
+        Map<String, Set<MustacheTemplate>> copies = new HashMap<>();
+        for (Map.Entry<MustacheTemplate, Set<String>> entry : read.entrySet()) {
+            MustacheTemplate template = entry.getKey();
+            Set<String> names = entry.getValue();
+            Set<String> previous = newPartials == null ? partials.get(template) : newPartials.get(template);
+            if (!contains(template)
+                    || (previous == null ? names.isEmpty() : previous.equals(names))) {
+                continue;
+            }
+            if (newPartials == null) {
+                newPartials = new IdentityHashMap<>(partials);
+                newDependents = new HashMap<>(dependents);
+            }
+            unlink(template, previous, newDependents, copies);
+            if (names.isEmpty()) {
+                newPartials.remove(template);
+            } else {
+                Set<String> copy = Collections.unmodifiableSet(new LinkedHashSet<>(names));
+                newPartials.put(template, copy);
+                for (String name : copy) {
+                    copyOf(name, newDependents, copies).add(template);
+                }
+            }
+        }
+        if (newPartials == null) {
+            return this;
+        }
+        seal(newDependents, copies);
+        // The templates have not changed, the index by name is shared.
+        return new TemplateRegistry(byURL, byName, newPartials, newDependents);
+    }
+
+    /**
+     * Removes the edges of the given template from the given reverse index. Only the sets containing the template
+     * are copied, once per snapshot.
+     */
+    private static void unlink(MustacheTemplate template, Set<String> names,
+                               Map<String, Set<MustacheTemplate>> index,
+                               Map<String, Set<MustacheTemplate>> copies) {
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            Set<MustacheTemplate> set = index.get(name);
+            if (set != null && set.contains(template)) {
+                copyOf(name, index, copies).remove(template);
+            }
+        }
+    }
+
+    /**
+     * Gets the modifiable copy of the set of the given name, made for the snapshot being built. The copy is made
+     * on the first call for this name.
+     */
+    private static Set<MustacheTemplate> copyOf(String name, Map<String, Set<MustacheTemplate>> index,
+                                                Map<String, Set<MustacheTemplate>> copies) {
+        Set<MustacheTemplate> copy = copies.get(name);
+        if (copy == null) {
+            copy = Collections.newSetFromMap(new IdentityHashMap<MustacheTemplate, Boolean>());
+            Set<MustacheTemplate> set = index.get(name);
+            if (set != null) {
+                copy.addAll(set);
+            }
+            copies.put(name, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Puts the copies made for the snapshot being built in the given reverse index, removing the empty ones.
+     */
+    private static void seal(Map<String, Set<MustacheTemplate>> index, Map<String, Set<MustacheTemplate>> copies) {
+        for (Map.Entry<String, Set<MustacheTemplate>> entry : copies.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                index.remove(entry.getKey());
+            } else {
+                index.put(entry.getKey(), Collections.unmodifiableSet(entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Computes the templates affected by a modification of the given templates: the templates themselves and the
+     * compiled templates including them, directly or not. Only the edges of the affected templates are visited.
+     *
+     * @param modified the modified templates
+     * @return the affected templates
+     */
+    Set<MustacheTemplate> getAffectedTemplates(Collection<MustacheTemplate> modified) {
+        Set<MustacheTemplate> affected = new LinkedHashSet<>(modified);
+        Set<String> visited = new HashSet<>();
+        Deque<String> names = new ArrayDeque<>();
+        for (MustacheTemplate template : modified) {
+            names.add(template.name());
+        }
+        while (!names.isEmpty()) {
+            String name = names.poll();
+            if (!visited.add(name)) {
+                continue;
+            }
+            for (MustacheTemplate template : getDependents(name)) {
+                if (affected.add(template)) {
+                    names.add(template.name());
+                }
+            }
+        }
+        return affected;
+    }
+}
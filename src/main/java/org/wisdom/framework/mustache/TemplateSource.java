@@ -0,0 +1,218 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The source of a template, read once: its text and the checksum of its bytes.
+ * <p>
+ * Templates from the file system are read into a heap buffer through a {@link java.nio.channels.FileChannel}, other
+ * urls (bundle resources) through their stream. Files are never memory-mapped: the mapping would keep them locked
+ * (on Windows) until collected, preventing the deployer from rewriting them. The charset is detected from the byte
+ * order mark if any, otherwise the configured charset is used. Pure ASCII sources, the common case for UTF-8
+ * templates, are decoded in a single pass without going through a decoder.
+ */
+final class TemplateSource {
+
+    private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    private static final byte[] UTF16BE_BOM = {(byte) 0xFE, (byte) 0xFF};
+
+    private static final byte[] UTF16LE_BOM = {(byte) 0xFF, (byte) 0xFE};
+
+    private final String text;
+
+    private final long checksum;
+
+    private TemplateSource(String text, long checksum) {
+        this.text = text;
+        this.checksum = checksum;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    /**
+     * @return the checksum of the source bytes, as computed by {@link #checksum(ByteBuffer)}.
+     */
+    long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Reads the template at the given url.
+     *
+     * @param url     the url
+     * @param charset the charset used when the source does not start with a byte order mark
+     * @return the source
+     * @throws IOException if the source cannot be read
+     */
+    static TemplateSource read(URL url, Charset charset) throws IOException {
+        ByteBuffer bytes = readBytes(url);
+        long checksum = checksum(bytes.duplicate());
+        return new TemplateSource(decode(bytes, charset), checksum);
+    }
+
+    /**
+     * Computes the checksum of the template at the given url, without decoding it.
+     *
+     * @param url the url
+     * @return the checksum
+     * @throws IOException if the source cannot be read
+     */
+    static long checksum(URL url) throws IOException {
+        return checksum(readBytes(url));
+    }
+
+    /**
+     * Computes the checksum of a template source: the CRC32 of the content combined with its length.
+     *
+     * @param bytes the bytes, consumed
+     * @return the checksum
+     */
+    static long checksum(ByteBuffer bytes) {
+        long length = bytes.remaining();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (length << 32) | crc.getValue();
+    }
+
+    private static ByteBuffer readBytes(URL url) throws IOException {
+        File file = toFile(url);
+        if (file == null) {
+            try (InputStream stream = url.openStream()) {
+                return ByteBuffer.wrap(IOUtils.toByteArray(stream));
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Read until the end of the file.
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static File toFile(URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) { //NOSONAR
+            // Not a plain file url, read it as a stream.
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the given bytes.
+     *
+     * @param bytes   the bytes
+     * @param charset the charset used when the bytes do not start with a byte order mark
+     * @return the text, without the byte order mark
+     */
+    static String decode(ByteBuffer bytes, Charset charset) {
+        Charset actual = charset;
+        if (startsWith(bytes, UTF8_BOM)) {
+            actual = StandardCharsets.UTF_8;
+            bytes.position(bytes.position() + UTF8_BOM.length);
+        } else if (startsWith(bytes, UTF16BE_BOM)) {
+            actual = StandardCharsets.UTF_16BE;
+            bytes.position(bytes.position() + UTF16BE_BOM.length);
+        } else if (startsWith(bytes, UTF16LE_BOM)) {
+            actual = StandardCharsets.UTF_16LE;
+            bytes.position(bytes.position() + UTF16LE_BOM.length);
+        }
+
+        if (isAsciiCompatible(actual)) {
+            String ascii = decodeAscii(bytes);
+            if (ascii != null) {
+                return ascii;
+            }
+        }
+        try {
+            return actual.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .decode(bytes)
+                    .toString();
+        } catch (CharacterCodingException e) {
+            // Cannot happen, malformed and unmappable input are replaced.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer bytes, byte[] prefix) {
+        if (bytes.remaining() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes.get(bytes.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        return StandardCharsets.UTF_8.equals(charset) || StandardCharsets.US_ASCII.equals(charset)
+                || StandardCharsets.ISO_8859_1.equals(charset);
+    }
+
+    /**
+     * Decodes the given bytes if they are all ASCII characters, which is the same in all the ASCII-compatible
+     * charsets.
+     *
+     * @param bytes the bytes, left unchanged
+     * @return the text, {@code null} if the bytes contain a non-ASCII character
+     */
+    private static String decodeAscii(ByteBuffer bytes) {
+        if (!bytes.hasArray()) {
+            return null;
+        }
+        byte[] array = bytes.array();
+        int offset = bytes.arrayOffset() + bytes.position();
+        int end = offset + bytes.remaining();
+        for (int i = offset; i < end; i++) {
+            if (array[i] < 0) {
+                return null;
+            }
+        }
+        return new String(array, offset, end - offset, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -94,39 +94,37 @@ public class TemplateTracker implements BundleTrackerCustomizer<List<MustacheTem
 
     @Override
     public List<MustacheTemplate> addingBundle(Bundle bundle, BundleEvent bundleEvent) {
-        List<MustacheTemplate> list = new ArrayList<>();
         Enumeration<URL> urls = bundle.findEntries(TEMPLATE_DIRECTORY_IN_BUNDLES, "*.mst*", true);
         if (urls == null) {
             // No match, but it may come later, so return an empty list
             // to still be notified of the other events.
-            return list;
+            return new ArrayList<>();
         }
+        List<URL> templates = new ArrayList<>();
         while (urls.hasMoreElements()) {
             URL url = urls.nextElement();
             // Check it's the mustache template.
             if (MustacheTemplate.isMustacheTemplate(url.toExternalForm())) {
-                MustacheTemplate template = engine.addTemplate(url);
-                list.add(template);
+                templates.add(url);
             }
         }
-        return list;
+        // All the templates of the bundle are published at once.
+        return new ArrayList<>(engine.addTemplates(templates));
     }
 
     @Override
     public void modifiedBundle(Bundle bundle, BundleEvent bundleEvent, List<MustacheTemplate> o) {
-        for (MustacheTemplate template : o) {
-            engine.updatedTemplate(template);
-        }
+        engine.updatedTemplates(o);
     }
 
     @Override
     public void removedBundle(Bundle bundle, BundleEvent bundleEvent, List<MustacheTemplate> o) {
         for (MustacheTemplate template : o) {
             LOGGER.info("Mustache template deleted for {} from {}", template.fullName(), bundle.getSymbolicName());
-            // Check whether we still have an engine.
-            if (engine != null) {
-                engine.deleteTemplate(template);
-            }
+        }
+        // Check whether we still have an engine.
+        if (engine != null) {
+            engine.deleteTemplates(o);
         }
     }
 }
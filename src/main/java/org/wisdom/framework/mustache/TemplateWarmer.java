@@ -0,0 +1,235 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms up the templates after their deployment: each template is rendered a configurable number of times with the
+ * sample variables registered for it (or an empty context), on a background pool. Once the warm-up of all the
+ * deployed templates has completed, the rendering code has been compiled by the JIT and the object handler has
+ * learned the accessors, so the first requests do not pay for it.
+ * <p>
+ * The warm-up renderings write to a discarding writer, and do not fire rendering events.
+ */
+final class TemplateWarmer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TemplateWarmer.class);
+
+    /**
+     * The default number of renderings of each template.
+     */
+    static final int DEFAULT_ITERATIONS = 1000;
+
+    /**
+     * The sample variables, per template name.
+     */
+    private final ConcurrentMap<String, List<Map<String, Object>>> samples = new ConcurrentHashMap<>();
+
+    private boolean enabled;
+
+    private int iterations = DEFAULT_ITERATIONS;
+
+    private int threads = 1;
+
+    private ExecutorService executor;
+
+    /**
+     * The number of templates whose warm-up is scheduled or running. Guarded by {@code this}.
+     */
+    private int pending;
+
+    /**
+     * Configures the warm-up. The templates already scheduled are warmed up with the previous settings.
+     *
+     * @param enabled    whether or not the templates are warmed up
+     * @param iterations the number of renderings of each template, with each sample
+     * @param threads    the number of threads warming up the templates
+     */
+    synchronized void configure(boolean enabled, int iterations, int threads) {
+        if (iterations <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("The number of iterations and the number of threads must be strictly "
+                    + "positive");
+        }
+        this.enabled = enabled;
+        this.iterations = iterations;
+        this.threads = threads;
+    }
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Registers sample variables used to warm up the template with the given name.
+     *
+     * @param template  the template name
+     * @param variables the variables
+     */
+    void addSample(String template, Map<String, Object> variables) {
+        List<Map<String, Object>> list = samples.get(template);
+        if (list == null) {
+            List<Map<String, Object>> created = new CopyOnWriteArrayList<>();
+            list = samples.putIfAbsent(template, created);
+            if (list == null) {
+                list = created;
+            }
+        }
+        list.add(Collections.unmodifiableMap(variables));
+    }
+
+    /**
+     * @param template the template name
+     * @return the sample variables registered for the given template, an empty list if none
+     */
+    List<Map<String, Object>> getSamples(String template) {
+        List<Map<String, Object>> list = samples.get(template);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return list;
+    }
+
+    /**
+     * Schedules the warm-up of the given template, if the warm-up is enabled.
+     *
+     * @param template the template
+     */
+    void schedule(final MustacheTemplate template) {
+        final int count;
+        ExecutorService service;
+        synchronized (this) {
+            if (!enabled) {
+                return;
+            }
+            if (executor == null) {
+                executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                        .setNameFormat("mustache-warmup-%d")
+                        .setDaemon(true)
+                        .build());
+            }
+            service = executor;
+            count = iterations;
+            pending++;
+        }
+        try {
+            service.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        warmUp(template, count);
+                    } finally {
+                        done();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) { //NOSONAR
+            // Shut down.
+            done();
+        }
+    }
+
+    /**
+     * Renders the given template the given number of times with each of its samples.
+     *
+     * @param template   the template
+     * @param iterations the number of renderings
+     */
+    private void warmUp(MustacheTemplate template, int iterations) {
+        List<Map<String, Object>> list = getSamples(template.name());
+        if (list.isEmpty()) {
+            list = Collections.singletonList(Collections.<String, Object>emptyMap());
+        }
+        long begin = System.nanoTime();
+        try {
+            for (int i = 0; i < iterations && !Thread.currentThread().isInterrupted(); i++) {
+                for (Map<String, Object> variables : list) {
+                    template.warmUp(variables);
+                }
+            }
+            LOGGER.debug("Mustache template {} warmed up in {} ms", template.fullName(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        } catch (RuntimeException e) {
+            // The template is broken, or a sample does not match, the actual renderings will report it.
+            LOGGER.warn("Cannot warm up the Mustache template {}: {}", template.fullName(), e.getMessage());
+        }
+    }
+
+    private synchronized void done() {
+        // The counter is reset when the warmer is shut down.
+        if (pending > 0 && --pending == 0) {
+            LOGGER.info("Warm-up of the Mustache templates completed");
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return {@code true} if no template is being warmed up.
+     */
+    synchronized boolean isWarm() {
+        return pending == 0;
+    }
+
+    /**
+     * Waits until no template is being warmed up.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of the timeout
+     * @return {@code true} if the warm-up has completed, {@code false} if the timeout has elapsed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (pending > 0) {
+            long remaining = end - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the running warm-ups.
+     */
+    synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        // The dropped warm-ups never complete.
+        pending = 0;
+        notifyAll();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import org.wisdom.framework.mustache.api.TextFootprint;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of the static text segments of the compiled templates. Identical segments (headers, footers, inline
+ * icons...) are shared by all the templates instead of being retained once per compiled tree.
+ * <p>
+ * The pool is content-addressed and weak: a segment stays in the pool as long as a compiled template uses it.
+ * Short segments are not interned, the pool entry would cost more than the segment.
+ */
+final class TextPool {
+
+    /**
+     * The minimal length of the interned segments.
+     */
+    static final int MIN_LENGTH = 32;
+
+    private final Interner<String> interner = Interners.newWeakInterner();
+
+    private final AtomicLong segments = new AtomicLong();
+
+    private final AtomicLong shared = new AtomicLong();
+
+    private final AtomicLong saved = new AtomicLong();
+
+    /**
+     * Gets the canonical instance of the given segment.
+     *
+     * @param text the segment, may be {@code null}
+     * @return the segment from the pool, or the given segment if it is too short to be interned
+     */
+    String intern(String text) {
+        if (text == null || text.length() < MIN_LENGTH) {
+            return text;
+        }
+        String canonical = interner.intern(text);
+        segments.incrementAndGet();
+        if (canonical != text) {
+            shared.incrementAndGet();
+            saved.addAndGet(2L * text.length());
+        }
+        return canonical;
+    }
+
+    /**
+     * @return the footprint of the interned segments since the creation of the pool.
+     */
+    TextFootprint getFootprint() {
+        return new TextFootprint(segments.get(), shared.get(), saved.get());
+    }
+}
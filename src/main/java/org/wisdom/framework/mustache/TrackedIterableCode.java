@@ -0,0 +1,133 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.Binding;
+import com.github.mustachejava.Code;
+import com.github.mustachejava.Iteration;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.DefaultMustache;
+import com.github.mustachejava.codes.IterableCode;
+import org.wisdom.framework.mustache.api.Memoizable;
+
+import java.io.Writer;
+import java.util.function.Function;
+
+/**
+ * Code created for the sections ({@literal {{#items}}}). When the rendering has a budget, the section is recorded
+ * as the running section, and the deadline is checked before executing the section and each of its iterations.
+ * When the rendering is profiled, the execution time of the section is recorded. Without budget nor profiling,
+ * the only overhead is a thread-local lookup. The results of the
+ * {@link org.wisdom.framework.mustache.api.Memoizable} functions wrapping the section are memoized.
+ */
+class TrackedIterableCode extends IterableCode {
+
+    private final ExtendedMustacheFactory factory;
+
+    private final String section;
+
+    /**
+     * The binding of the rendering-scoped cache of the function results, created on the first function call.
+     */
+    private volatile Binding functionMemoBinding;
+
+    /**
+     * Creates a new section code.
+     *
+     * @param tc       the template context
+     * @param factory  the factory
+     * @param mustache the content of the section
+     * @param variable the section name
+     */
+    TrackedIterableCode(TemplateContext tc, ExtendedMustacheFactory factory, Mustache mustache, String variable) {
+        super(tc, factory, mustache, variable);
+        this.factory = factory;
+        this.section = "#" + variable;
+    }
+
+    /**
+     * Creates a copy of this section executing the given codes. The codes of this section are left unchanged, as
+     * they may be shared by other trees.
+     *
+     * @param codes the codes of the copy
+     * @return the copy
+     */
+    TrackedIterableCode copy(Code[] codes) {
+        TrackedIterableCode copy = new TrackedIterableCode(tc, factory,
+                new DefaultMustache(tc, factory, codes, name), name);
+        copy.appended = appended;
+        return copy;
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+        RenderDeadline deadline = RenderDeadline.current();
+        RenderRecorder recorder = factory.isProfiling() ? RenderRecorder.current() : null;
+        if (deadline == null && recorder == null) {
+            return super.execute(writer, scopes);
+        }
+        String previous = deadline == null ? null : deadline.enter(section);
+        long start = recorder == null ? 0L : recorder.enter(section);
+        try {
+            return super.execute(writer, scopes);
+        } finally {
+            if (recorder != null) {
+                recorder.exit(start);
+            }
+            if (deadline != null) {
+                deadline.exit(previous);
+            }
+        }
+    }
+
+    /**
+     * Iterates over the resolved value. When the rendering has a budget, the deadline is checked before each
+     * iteration.
+     */
+    @Override
+    protected Writer execute(Writer writer, Object resolve, Object[] scopes) {
+        final RenderDeadline deadline = RenderDeadline.current();
+        if (deadline == null) {
+            return super.execute(writer, resolve, scopes);
+        }
+        return oh.iterate(new Iteration() {
+            @Override
+            public Writer next(Writer writer, Object next, Object[] scopes) {
+                deadline.check();
+                return TrackedIterableCode.this.next(writer, next, scopes);
+            }
+        }, writer, resolve, scopes);
+    }
+
+    /**
+     * Calls the function, through the memoization cache if the function is memoizable.
+     */
+    @Override
+    protected Writer handleFunction(Writer writer, Function function, Object[] scopes) {
+        Binding binding = functionMemoBinding;
+        if (binding == null && function instanceof Memoizable) {
+            binding = oh.createBinding(FunctionMemo.KEY, tc, this);
+            functionMemoBinding = binding;
+        }
+        return super.handleFunction(writer,
+                binding == null ? function : factory.memoize(function, binding.get(scopes), scopes), scopes);
+    }
+}
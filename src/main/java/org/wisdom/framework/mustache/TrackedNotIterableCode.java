@@ -0,0 +1,89 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.DefaultMustache;
+import com.github.mustachejava.codes.NotIterableCode;
+
+import java.io.Writer;
+
+/**
+ * Code created for the inverted sections ({@literal {{^items}}}). When the rendering has a budget, the section is
+ * recorded as the running section, and the deadline is checked before executing it. When the rendering is
+ * profiled, the execution time of the section is recorded.
+ */
+class TrackedNotIterableCode extends NotIterableCode {
+
+    private final ExtendedMustacheFactory factory;
+
+    private final String section;
+
+    /**
+     * Creates a new inverted section code.
+     *
+     * @param tc       the template context
+     * @param factory  the factory
+     * @param mustache the content of the section
+     * @param variable the section name
+     */
+    TrackedNotIterableCode(TemplateContext tc, ExtendedMustacheFactory factory, Mustache mustache, String variable) {
+        super(tc, factory, mustache, variable);
+        this.factory = factory;
+        this.section = "^" + variable;
+    }
+
+    /**
+     * Creates a copy of this inverted section executing the given codes. The codes of this inverted section are left
+     * unchanged, as they may be shared by other trees.
+     *
+     * @param codes the codes of the copy
+     * @return the copy
+     */
+    TrackedNotIterableCode copy(Code[] codes) {
+        TrackedNotIterableCode copy = new TrackedNotIterableCode(tc, factory,
+                new DefaultMustache(tc, factory, codes, name), name);
+        copy.appended = appended;
+        return copy;
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+        RenderDeadline deadline = RenderDeadline.current();
+        RenderRecorder recorder = factory.isProfiling() ? RenderRecorder.current() : null;
+        if (deadline == null && recorder == null) {
+            return super.execute(writer, scopes);
+        }
+        String previous = deadline == null ? null : deadline.enter(section);
+        long start = recorder == null ? 0L : recorder.enter(section);
+        try {
+            return super.execute(writer, scopes);
+        } finally {
+            if (recorder != null) {
+                recorder.exit(start);
+            }
+            if (deadline != null) {
+                deadline.exit(previous);
+            }
+        }
+    }
+}
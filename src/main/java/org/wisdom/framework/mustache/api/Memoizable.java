@@ -0,0 +1,35 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache.api;
+
+/**
+ * Marks the template functions ({@link java.util.function.Function} and
+ * {@link com.github.mustachejava.TemplateFunction}) whose result only depends on their input. When memoization is
+ * enabled, the result is memoized, keyed on the function instance and the input text, so the function is called
+ * once per distinct input (during a rendering, or globally).
+ * <p>
+ * Lambdas are marked with an intersection cast:
+ * <pre>
+ * Function&lt;String, String&gt; i18n = (Function&lt;String, String&gt; &amp; Memoizable) key -&gt; messages.get(key);
+ * </pre>
+ * As the function instance is part of the key, functions memoized globally should be reused across the renderings.
+ */
+public interface Memoizable {
+}
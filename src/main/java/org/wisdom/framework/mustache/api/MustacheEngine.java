@@ -0,0 +1,105 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache.api;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The management entry points of the Mustache template engine, published as a service. Applications use it to
+ * register warm-up samples and static exports, and to read the statistics of the engine.
+ */
+public interface MustacheEngine {
+
+    /**
+     * Registers sample variables used to warm up the template with the given name, when the warm-up is enabled
+     * ({@literal mustache.warmup}). If the template is already deployed, it is warmed up again.
+     *
+     * @param template  the template name
+     * @param variables the sample variables
+     */
+    void addWarmUpSample(String template, Map<String, Object> variables);
+
+    /**
+     * Checks whether the deployed templates are warmed up. It always returns {@code true} when the warm-up is
+     * disabled.
+     *
+     * @return {@code true} if no template is being warmed up
+     */
+    boolean isWarmedUp();
+
+    /**
+     * Waits until the deployed templates are warmed up.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of the timeout
+     * @return {@code true} if the warm-up has completed, {@code false} if the timeout has elapsed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    boolean awaitWarmUp(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Pre-renders the given template with the given variables to a file of the export directory
+     * ({@literal mustache.export.directory}). The file is regenerated when the template, or one of the templates it
+     * reads, changes.
+     *
+     * @param template  the template name
+     * @param variables the variables
+     * @param path      the path of the file, relative to the export directory
+     * @return a future completed once the file is written
+     * @throws IllegalStateException    if the export directory is not configured
+     * @throws IllegalArgumentException if the path is not in the export directory
+     */
+    CompletableFuture<Void> export(String template, Map<String, Object> variables, String path);
+
+    /**
+     * Pre-renders all the exported files again.
+     *
+     * @return a future completed once all the files are written
+     */
+    CompletableFuture<Void> exportAll();
+
+    /**
+     * @return the inventory of the templates
+     */
+    TemplateInventory getInventory();
+
+    /**
+     * @return the last reported profiles of the renderings, the oldest first
+     */
+    List<RenderProfile> getRenderProfiles();
+
+    /**
+     * @return the hit and miss counts of the memoized functions
+     */
+    MemoStats getFunctionMemoStats();
+
+    /**
+     * @return the number of asynchronous renderings rejected because too many renderings were pending
+     */
+    long getRejectedRenderings();
+
+    /**
+     * @return the footprint of the static text of the compiled templates
+     */
+    TextFootprint getTextFootprint();
+}
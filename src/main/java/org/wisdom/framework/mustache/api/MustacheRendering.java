@@ -0,0 +1,82 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache.api;
+
+import org.wisdom.api.Controller;
+import org.wisdom.api.http.Renderable;
+import org.wisdom.api.templates.Template;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+/**
+ * The rendering methods offered by the Mustache templates on top of {@link Template}. The {@link Template} services
+ * published for Mustache templates implement this interface, so they can be cast to it.
+ */
+public interface MustacheRendering extends Template {
+
+    /**
+     * Renders the template asynchronously, on the executor of the asynchronous renderings. The calling thread (an
+     * I/O thread for instance) is not blocked. When too many renderings are pending, the rendering is rejected and
+     * the returned stage completes with a {@link java.util.concurrent.RejectedExecutionException}.
+     *
+     * @param controller the controller having requested the rendering.
+     * @param variables  the parameters
+     * @return the stage completed with the rendered object
+     */
+    CompletionStage<Renderable<?>> renderAsync(Controller controller, Map<String, Object> variables);
+
+    /**
+     * Renders the template asynchronously without explicit variables.
+     *
+     * @param controller the controller having requested the rendering.
+     * @return the stage completed with the rendered object
+     * @see #renderAsync(org.wisdom.api.Controller, java.util.Map)
+     */
+    CompletionStage<Renderable<?>> renderAsync(Controller controller);
+
+    /**
+     * Renders the template into byte buffers, encoding the output in UTF-8 as it is written. The buffers are
+     * obtained from the given supplier as the previous one is full, so they can be direct or pooled buffers, and
+     * can be handed to the HTTP layer without copy.
+     * <p>
+     * If the rendering fails, the content of the buffers is undefined.
+     *
+     * @param controller the controller having requested the rendering.
+     * @param variables  the parameters
+     * @param buffers    the supplier of the buffers
+     * @return the filled buffers, flipped so they can be read
+     */
+    List<ByteBuffer> renderTo(Controller controller, Map<String, Object> variables, Supplier<ByteBuffer> buffers);
+
+    /**
+     * Renders the template into the given buffer, encoding the output in UTF-8.
+     *
+     * @param controller the controller having requested the rendering.
+     * @param variables  the parameters
+     * @param buffer     the buffer
+     * @return the given buffer, flipped so it can be read
+     * @throws java.nio.BufferOverflowException if the output exceeds the remaining space of the buffer
+     */
+    ByteBuffer renderTo(Controller controller, Map<String, Object> variables, ByteBuffer buffer);
+}
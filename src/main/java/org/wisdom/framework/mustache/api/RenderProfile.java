@@ -0,0 +1,156 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache.api;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timing breakdown of a profiled rendering. The tree follows the structure of the template: sections
+ * ({@literal #items}), inverted sections ({@literal ^items}), partials ({@literal >card}) and values
+ * ({@literal name}). Nodes executed several times at the same place (in a loop for instance) are aggregated, and
+ * record the number of executions and the total time.
+ * <p>
+ * Instances are immutable.
+ */
+public final class RenderProfile {
+
+    private final String template;
+
+    private final long timestamp;
+
+    private final Node root;
+
+    /**
+     * Creates a profile.
+     *
+     * @param template  the template name
+     * @param timestamp the time (in milliseconds) at which the rendering started
+     * @param root      the root of the breakdown, whose time is the duration of the rendering
+     */
+    public RenderProfile(String template, long timestamp, Node root) {
+        this.template = template;
+        this.timestamp = timestamp;
+        this.root = root;
+    }
+
+    /**
+     * @return the template name.
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return the time (in milliseconds since the epoch) at which the rendering started.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the duration of the rendering in milliseconds.
+     */
+    public long getDuration() {
+        return TimeUnit.NANOSECONDS.toMillis(root.getTime());
+    }
+
+    /**
+     * @return the root of the breakdown.
+     */
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the breakdown as a compact indented tree, one line per node.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Rendering of ").append(template).append(" took ").append(getDuration()).append(" ms");
+        for (Node child : root.getChildren()) {
+            append(builder, child, 1);
+        }
+        return builder.toString();
+    }
+
+    private static void append(StringBuilder builder, Node node, int depth) {
+        builder.append('\n');
+        for (int i = 0; i < depth; i++) {
+            builder.append("  ");
+        }
+        builder.append(node.getName()).append(" x").append(node.getCount()).append(' ')
+                .append(String.format(Locale.ENGLISH, "%.3f", node.getTime() / 1000000.0)).append(" ms");
+        for (Node child : node.getChildren()) {
+            append(builder, child, depth + 1);
+        }
+    }
+
+    /**
+     * A node of the breakdown.
+     */
+    public static final class Node {
+
+        private final String name;
+
+        private final long count;
+
+        private final long time;
+
+        private final List<Node> children;
+
+        /**
+         * Creates a node.
+         *
+         * @param name     the name of the section, partial or value
+         * @param count    the number of executions
+         * @param time     the total time of the executions, in nanoseconds
+         * @param children the nodes executed inside this node
+         */
+        public Node(String name, long count, long time, List<Node> children) {
+            this.name = name;
+            this.count = count;
+            this.time = time;
+            this.children = Collections.unmodifiableList(children);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the total time of the executions, in nanoseconds.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public List<Node> getChildren() {
+            return children;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache.api;
+
+import com.github.mustachejava.MustacheException;
+
+/**
+ * Thrown when the rendering of a template exceeds its render budget. The rendering is aborted, and the exception
+ * indicates the template and the section (or partial) that was running when the budget ran out.
+ */
+public class RenderTimeoutException extends MustacheException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String template;
+
+    private final String section;
+
+    private final long budget;
+
+    /**
+     * Creates a new exception.
+     *
+     * @param template the name of the template
+     * @param section  the path of the section running when the budget ran out, {@code null} if the top-level
+     *                 content of the template was running
+     * @param budget   the render budget in milliseconds
+     */
+    public RenderTimeoutException(String template, String section, long budget) {
+        super("The rendering of the template " + template + " has exceeded its budget of " + budget + " ms"
+                + (section == null ? "" : " while executing " + section));
+        this.template = template;
+        this.section = section;
+        this.budget = budget;
+    }
+
+    /**
+     * @return the name of the template.
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return the path of the section running when the budget ran out (for instance {@literal #users/>card}),
+     * {@code null} if the top-level content of the template was running.
+     */
+    public String getSection() {
+        return section;
+    }
+
+    /**
+     * @return the render budget in milliseconds.
+     */
+    public long getBudget() {
+        return budget;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache.api;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * A value already escaped (or trusted), written as-is by the templates: {@literal {{value}}} does not escape it
+ * again. It is useful for fragments rendered upstream (Markdown...) or cached.
+ * <p>
+ * The content is either a character sequence, or bytes already encoded. When a template is rendered progressively
+ * with the same charset, the bytes are sent without being decoded.
+ */
+public final class SafeContent {
+
+    private final CharSequence chars;
+
+    private final byte[] bytes;
+
+    private final Charset charset;
+
+    /**
+     * The decoded content, computed on demand.
+     */
+    private volatile String decoded;
+
+    private SafeContent(CharSequence chars, byte[] bytes, Charset charset) {
+        this.chars = chars;
+        this.bytes = bytes;
+        this.charset = charset;
+    }
+
+    /**
+     * Creates a safe content from a character sequence.
+     *
+     * @param content the content, already escaped or trusted
+     * @return the safe content
+     */
+    public static SafeContent of(CharSequence content) {
+        if (content == null) {
+            throw new IllegalArgumentException("The content must not be null");
+        }
+        return new SafeContent(content, null, null);
+    }
+
+    /**
+     * Creates a safe content from encoded bytes.
+     *
+     * @param content the content, already escaped or trusted, the array is copied
+     * @param charset the charset used to encode the content
+     * @return the safe content
+     */
+    public static SafeContent of(byte[] content, Charset charset) {
+        if (content == null || charset == null) {
+            throw new IllegalArgumentException("The content and the charset must not be null");
+        }
+        return new SafeContent(null, content.clone(), charset);
+    }
+
+    /**
+     * @return whether or not the content is made of encoded bytes.
+     */
+    public boolean isEncoded() {
+        return bytes != null;
+    }
+
+    /**
+     * Gets the encoded content. The returned array is not copied, and must not be modified.
+     *
+     * @return the encoded content, {@code null} if the content is a character sequence
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the charset of the encoded content, {@code null} if the content is a character sequence
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Writes the content as-is.
+     *
+     * @param writer the writer
+     * @throws IOException if the content cannot be written
+     */
+    public void writeTo(Writer writer) throws IOException {
+        if (chars != null && !(chars instanceof String)) {
+            writer.append(chars);
+        } else {
+            writer.write(toString());
+        }
+    }
+
+    /**
+     * @return the content.
+     */
+    @Override
+    public String toString() {
+        if (chars != null) {
+            return chars.toString();
+        }
+        String value = decoded;
+        if (value == null) {
+            value = new String(bytes, charset);
+            decoded = value;
+        }
+        return value;
+    }
+}
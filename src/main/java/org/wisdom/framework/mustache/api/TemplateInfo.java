@@ -0,0 +1,150 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The state of a template at the time of an inventory: its compilation, its estimated memory footprint and its
+ * usage. Instances are immutable snapshots, serializable to JSON (through their getters) and exposed through JMX.
+ */
+public final class TemplateInfo {
+
+    /**
+     * The compilation state of a template.
+     */
+    public enum State {
+        /**
+         * Not compiled yet, the template is compiled by its first rendering.
+         */
+        NOT_COMPILED,
+        /**
+         * Compiled.
+         */
+        COMPILED,
+        /**
+         * Compiled, but being recompiled in background after an update.
+         */
+        STALE,
+        /**
+         * The last compilation has failed.
+         */
+        FAILED
+    }
+
+    private final String name;
+
+    private final String fullName;
+
+    private final String mimetype;
+
+    private final State state;
+
+    private final long estimatedSize;
+
+    private final long renderCount;
+
+    private final long lastRender;
+
+    private final long lastCompile;
+
+    private final List<String> partials;
+
+    /**
+     * Creates a snapshot.
+     *
+     * @param name          the template name
+     * @param fullName      the template full name (its url)
+     * @param mimetype      the mime type
+     * @param state         the compilation state
+     * @param estimatedSize the estimated heap retained by the compiled template, in bytes
+     * @param renderCount   the number of renderings
+     * @param lastRender    the time of the last rendering (epoch milliseconds), {@code -1} if never rendered
+     * @param lastCompile   the time of the last successful compilation (epoch milliseconds), {@code -1} if not
+     *                      compiled
+     * @param partials      the names of the templates read by the compilation (partials, inherited templates)
+     */
+    public TemplateInfo(String name, String fullName, String mimetype, State state, long estimatedSize,
+                        long renderCount, long lastRender, long lastCompile, List<String> partials) {
+        this.name = name;
+        this.fullName = fullName;
+        this.mimetype = mimetype;
+        this.state = state;
+        this.estimatedSize = estimatedSize;
+        this.renderCount = renderCount;
+        this.lastRender = lastRender;
+        this.lastCompile = lastCompile;
+        this.partials = Collections.unmodifiableList(partials);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFullName() {
+        return fullName;
+    }
+
+    public String getMimetype() {
+        return mimetype;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the estimated heap retained by the compiled template (including its partials), in bytes. {@code 0}
+     * if the template is not compiled.
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    public long getRenderCount() {
+        return renderCount;
+    }
+
+    /**
+     * @return the time of the last rendering (epoch milliseconds), {@code -1} if the template has never been
+     * rendered.
+     */
+    public long getLastRender() {
+        return lastRender;
+    }
+
+    /**
+     * @return the time of the last successful compilation (epoch milliseconds), {@code -1} if the template is not
+     * compiled.
+     */
+    public long getLastCompile() {
+        return lastCompile;
+    }
+
+    public List<String> getPartials() {
+        return partials;
+    }
+
+    @Override
+    public String toString() {
+        return name + " [" + state + ", " + estimatedSize + " bytes, " + renderCount + " renderings]";
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An inventory of the templates managed by the Mustache engine, with the totals for the whole engine. Instances
+ * are immutable snapshots, serializable to JSON through their getters (for instance with
+ * {@code ok(collector.getInventory()).json()}).
+ */
+public final class TemplateInventory {
+
+    private final long timestamp;
+
+    private final List<TemplateInfo> templates;
+
+    private final long estimatedSize;
+
+    private final int mustacheCacheSize;
+
+    private final int fragmentCacheSize;
+
+    /**
+     * Creates a snapshot.
+     *
+     * @param timestamp         the time of the inventory (epoch milliseconds)
+     * @param templates         the templates
+     * @param estimatedSize     the estimated heap retained by all the compiled templates, the shared partials being
+     *                          counted once
+     * @param mustacheCacheSize the number of compiled trees cached by the factory (templates and partials)
+     * @param fragmentCacheSize the number of compiled fragments (lambdas) cached by the factory
+     */
+    public TemplateInventory(long timestamp, List<TemplateInfo> templates, long estimatedSize, int mustacheCacheSize,
+                             int fragmentCacheSize) {
+        this.timestamp = timestamp;
+        this.templates = Collections.unmodifiableList(templates);
+        this.estimatedSize = estimatedSize;
+        this.mustacheCacheSize = mustacheCacheSize;
+        this.fragmentCacheSize = fragmentCacheSize;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public List<TemplateInfo> getTemplates() {
+        return templates;
+    }
+
+    public int getTemplateCount() {
+        return templates.size();
+    }
+
+    /**
+     * @return the number of compiled templates (including the stale ones).
+     */
+    public int getCompiledCount() {
+        int count = 0;
+        for (TemplateInfo template : templates) {
+            if (template.getState() == TemplateInfo.State.COMPILED || template.getState() == TemplateInfo.State.STALE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getFailedCount() {
+        int count = 0;
+        for (TemplateInfo template : templates) {
+            if (template.getState() == TemplateInfo.State.FAILED) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the estimated heap retained by all the compiled templates, in bytes. Partials shared by several
+     * templates are counted once.
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    public int getMustacheCacheSize() {
+        return mustacheCacheSize;
+    }
+
+    public int getFragmentCacheSize() {
+        return fragmentCacheSize;
+    }
+
+    /**
+     * @return the names of the templates never rendered (they may still be used as partials).
+     */
+    public List<String> getUnusedTemplates() {
+        List<String> names = new ArrayList<>();
+        for (TemplateInfo template : templates) {
+            if (template.getRenderCount() == 0) {
+                names.add(template.getName());
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public String toString() {
+        return getTemplateCount() + " templates (" + getCompiledCount() + " compiled, " + getFailedCount()
+                + " failed), " + estimatedSize + " bytes";
+    }
+}
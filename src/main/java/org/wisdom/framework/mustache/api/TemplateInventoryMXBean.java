@@ -0,0 +1,54 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache.api;
+
+import java.util.List;
+
+/**
+ * The JMX view of the inventory of the Mustache templates, registered as
+ * {@literal org.wisdom.framework.mustache:type=TemplateInventory,instance=<n>} when {@literal mustache.jmx} is
+ * enabled. The instance key distinguishes the template engines of the same JVM. Each attribute is computed when
+ * read.
+ *
+ * @see TemplateInventory
+ */
+public interface TemplateInventoryMXBean {
+
+    /**
+     * The name of the registered beans, without the instance key.
+     */
+    String OBJECT_NAME = "org.wisdom.framework.mustache:type=TemplateInventory";
+
+    int getTemplateCount();
+
+    int getCompiledCount();
+
+    int getFailedCount();
+
+    long getEstimatedSize();
+
+    int getMustacheCacheSize();
+
+    int getFragmentCacheSize();
+
+    List<TemplateInfo> getTemplates();
+
+    List<String> getUnusedTemplates();
+}
@@ -0,0 +1,66 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache.api;
+
+/**
+ * The footprint of the static text of the compiled templates: how many segments have been interned, and how much
+ * memory is saved by sharing the identical ones. Instances are immutable snapshots.
+ */
+public final class TextFootprint {
+
+    private final long segments;
+
+    private final long sharedSegments;
+
+    private final long savedBytes;
+
+    /**
+     * Creates a snapshot.
+     *
+     * @param segments       the number of static text segments interned
+     * @param sharedSegments the number of segments replaced by an identical one already in the pool
+     * @param savedBytes     the size of the characters of the replaced segments
+     */
+    public TextFootprint(long segments, long sharedSegments, long savedBytes) {
+        this.segments = segments;
+        this.sharedSegments = sharedSegments;
+        this.savedBytes = savedBytes;
+    }
+
+    public long getSegments() {
+        return segments;
+    }
+
+    public long getSharedSegments() {
+        return sharedSegments;
+    }
+
+    /**
+     * @return an estimate of the bytes not retained thanks to the sharing (two bytes per character).
+     */
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "segments=" + segments + ", shared=" + sharedSegments + ", saved=" + savedBytes + " bytes";
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.wisdom.framework.mustache.api.RenderTimeoutException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Checks the behavior of the chunked writer.
+ */
+public class ChunkedWriterTest {
+
+    @Test
+    public void testChunksAreEmittedOnFlush() throws IOException {
+        ChunkedWriter writer = new ChunkedWriter(1024, StandardCharsets.UTF_8);
+        InputStream stream = writer.getInputStream();
+        writer.write("hello");
+        assertThat(stream.available()).isEqualTo(0);
+        writer.flush();
+
+        byte[] buffer = new byte[16];
+        assertThat(stream.read(buffer)).isEqualTo(5);
+        assertThat(new String(buffer, 0, 5, StandardCharsets.UTF_8)).isEqualTo("hello");
+
+        writer.write(" world");
+        writer.close();
+        assertThat(IOUtils.toString(stream, "UTF-8")).isEqualTo(" world");
+    }
+
+    @Test
+    public void testEncodedContentIsEmittedAsAChunk() throws IOException {
+        ChunkedWriter writer = new ChunkedWriter(1024, StandardCharsets.UTF_8);
+        InputStream stream = writer.getInputStream();
+        byte[] content = "<p>caf\u00e9</p>".getBytes(StandardCharsets.UTF_8);
+        writer.write("a");
+        writer.write(content, StandardCharsets.UTF_8);
+        writer.write(content, StandardCharsets.ISO_8859_1);
+        writer.close();
+
+        // The buffered text and the encoded content are two chunks.
+        byte[] buffer = new byte[64];
+        assertThat(stream.read(buffer)).isEqualTo(1);
+        assertThat(stream.read(buffer)).isEqualTo(content.length);
+        assertThat(new String(buffer, 0, content.length, StandardCharsets.UTF_8)).isEqualTo("<p>caf\u00e9</p>");
+        // Content encoded with another charset is decoded.
+        assertThat(IOUtils.toString(stream, "UTF-8")).isEqualTo(new String(content, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void testChunksAreEmittedWhenReachingTheThreshold() throws IOException {
+        ChunkedWriter writer = new ChunkedWriter(4, StandardCharsets.UTF_8);
+        InputStream stream = writer.getInputStream();
+        writer.write("abcdef");
+
+        byte[] buffer = new byte[16];
+        assertThat(stream.read(buffer)).isEqualTo(6);
+    }
+
+    @Test
+    public void testChunkIsEmittedAfterTheHead() throws IOException {
+        ChunkedWriter writer = new ChunkedWriter(1024, StandardCharsets.UTF_8);
+        InputStream stream = writer.getInputStream();
+        writer.write("<html><head><title>t</title></he");
+        writer.write("ad><body>");
+
+        byte[] buffer = new byte[64];
+        int read = stream.read(buffer);
+        assertThat(new String(buffer, 0, read, StandardCharsets.UTF_8)).endsWith("</head><body>");
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailureIsPropagatedToTheReader() throws IOException {
+        ChunkedWriter writer = new ChunkedWriter(1024, StandardCharsets.UTF_8);
+        writer.write("partial content");
+        writer.fail(new IllegalStateException("boom"));
+        IOUtils.toString(writer.getInputStream(), "UTF-8");
+    }
+
+    @Test(expected = IOException.class)
+    public void testWritingAfterTheReaderIsClosed() throws IOException {
+        ChunkedWriter writer = new ChunkedWriter(1024, StandardCharsets.UTF_8);
+        writer.getInputStream().close();
+        writer.write("too late");
+    }
+
+    @Test
+    public void testWriterWaitsForASlowReader() throws Exception {
+        final ChunkedWriter writer = new ChunkedWriter(1, StandardCharsets.UTF_8);
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread rendering = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 10 * ChunkedWriter.MAX_PENDING_CHUNKS; i++) {
+                        writer.write("x");
+                        written.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        rendering.start();
+
+        // The rendering thread blocks once the queue is full.
+        rendering.join(500);
+        assertThat(rendering.isAlive()).isTrue();
+        assertThat(written.get()).isEqualTo(ChunkedWriter.MAX_PENDING_CHUNKS);
+
+        // Reading a chunk lets it write another one.
+        assertThat(writer.getInputStream().read()).isEqualTo('x');
+        long end = System.currentTimeMillis() + 5000;
+        while (written.get() == ChunkedWriter.MAX_PENDING_CHUNKS && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertThat(written.get()).isEqualTo(ChunkedWriter.MAX_PENDING_CHUNKS + 1);
+
+        // Closing the stream cancels the rendering.
+        writer.getInputStream().close();
+        rendering.join(5000);
+        assertThat(rendering.isAlive()).isFalse();
+        assertThat(failure.get()).isNotNull();
+        assertThat(writer.isCancelled()).isTrue();
+    }
+
+    @Test
+    public void testReaderGivesUpWhenTheDeadlineIsExceeded() throws IOException {
+        ChunkedWriter writer = new ChunkedWriter(1024, StandardCharsets.UTF_8);
+        writer.watch(new RenderDeadline("page", 10), null);
+        try {
+            IOUtils.toString(writer.getInputStream(), "UTF-8");
+            fail("The reader should have given up");
+        } catch (IOException e) {
+            assertThat(e.getCause()).isInstanceOf(RenderTimeoutException.class);
+            assertThat(e.getMessage()).contains("page");
+        }
+        try {
+            writer.write("too late");
+            fail("The writer should have been closed");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
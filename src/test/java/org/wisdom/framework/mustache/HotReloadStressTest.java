@@ -0,0 +1,256 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.DefaultController;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Renders templates from several threads while the templates are updated, deleted and re-created by the deployer
+ * and a simulated bundle tracker. Checks that renders never fail nor see a half-invalidated state, and reports the
+ * throughput and latency of renders during the reloads.
+ * <p>
+ * The duration of the test can be set (in milliseconds) with the {@code mustache.stress.duration} system property.
+ * The test is excluded from the default build, run it with the {@code stress} profile ({@code mvn test -Pstress}).
+ */
+public class HotReloadStressTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HotReloadStressTest.class);
+
+    private static final int RENDERERS = 4;
+
+    private static final Pattern PAGE = Pattern.compile("<h1>Wisdom</h1><p>page-[12]</p><p>item-[12]</p>\\s*");
+
+    private static final Pattern BUNDLE_PAGE = Pattern.compile("<p>bundle Wisdom</p>\\s*");
+
+    private final File directory = new File("target/stress/templates");
+
+    private final File bundleDirectory = new File("target/stress/bundle");
+
+    private final long duration = Long.getLong("mustache.stress.duration", 2000);
+
+    private MustacheTemplateCollector collector;
+
+    private File page;
+
+    private File item;
+
+    @Before
+    public void setUp() throws IOException {
+        FileUtils.deleteQuietly(directory.getParentFile());
+        page = new File(directory, "page.mst.html");
+        item = new File(directory, "partial/item.mst.html");
+        write(page, 1);
+        write(item, 1);
+        FileUtils.write(new File(bundleDirectory, "bundle.mst.html"), "<p>bundle {{name}}</p>");
+
+        collector = MustacheTemplateCollectorTest.newCollector();
+    }
+
+    @After
+    public void tearDown() {
+        collector.stop();
+        FileUtils.deleteQuietly(directory.getParentFile());
+    }
+
+    @Test
+    public void renderWhileReloading() throws Exception {
+        final TemplateDeployer deployer = new TemplateDeployer();
+        deployer.engine = collector;
+        deployer.onFileCreate(item);
+        deployer.onFileCreate(page);
+        final MustacheTemplate template = collector.addTemplate(page.toURI().toURL());
+
+        final TemplateTracker tracker = new TemplateTracker();
+        tracker.engine = collector;
+        final Bundle bundle = mock(Bundle.class);
+        final URL bundleTemplate = new File(bundleDirectory, "bundle.mst.html").toURI().toURL();
+        when(bundle.findEntries(anyString(), anyString(), anyBoolean())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return new Vector<>(Collections.singletonList(bundleTemplate)).elements();
+            }
+        });
+        final AtomicReference<List<MustacheTemplate>> fromBundle = new AtomicReference<>(
+                tracker.addingBundle(bundle, null));
+
+        final long deadline = System.currentTimeMillis() + duration;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(RENDERERS + 2);
+        final List<long[]> latencies = Collections.synchronizedList(new ArrayList<long[]>());
+        final Map<String, Object> variables = ImmutableMap.<String, Object>of("name", "Wisdom");
+
+        for (int i = 0; i < RENDERERS; i++) {
+            start("renderer-" + i, done, failure, new Step() {
+                private long[] times = new long[1024];
+                private int count;
+
+                @Override
+                public boolean run() {
+                    if (System.currentTimeMillis() > deadline) {
+                        latencies.add(Arrays.copyOf(times, count));
+                        return false;
+                    }
+                    long begin = System.nanoTime();
+                    String result = (String) template.render(new DefaultController() {
+                    }, variables).content();
+                    List<MustacheTemplate> bundled = fromBundle.get();
+                    String fromBundle = (String) bundled.get(0).render(new DefaultController() {
+                    }, variables).content();
+                    if (count == times.length) {
+                        times = Arrays.copyOf(times, count * 2);
+                    }
+                    times[count++] = System.nanoTime() - begin;
+                    assertThat(result).matches(PAGE);
+                    assertThat(fromBundle).matches(BUNDLE_PAGE);
+                    return true;
+                }
+            });
+        }
+
+        start("deployer", done, failure, new Step() {
+            private int version;
+            private final File scratch = new File(directory, "scratch.mst.html");
+
+            @Override
+            public boolean run() throws IOException {
+                version = version % 2 + 1;
+                write(page, version);
+                deployer.onFileChange(page);
+                write(item, version);
+                deployer.onFileChange(item);
+                // A template appearing and disappearing.
+                write(scratch, version);
+                deployer.onFileCreate(scratch);
+                deployer.onFileDelete(scratch);
+                return System.currentTimeMillis() < deadline;
+            }
+        });
+
+        start("tracker", done, failure, new Step() {
+            @Override
+            public boolean run() {
+                List<MustacheTemplate> list = fromBundle.get();
+                tracker.modifiedBundle(bundle, null, list);
+                tracker.removedBundle(bundle, null, list);
+                fromBundle.set(tracker.addingBundle(bundle, null));
+                return System.currentTimeMillis() < deadline;
+            }
+        });
+
+        assertThat(done.await(duration + 30000, TimeUnit.MILLISECONDS)).isTrue();
+        if (failure.get() != null) {
+            throw new AssertionError("Render failed during reload: " + failure.get());
+        }
+        report(latencies);
+    }
+
+    private void report(List<long[]> latencies) {
+        int total = 0;
+        for (long[] times : latencies) {
+            total += times.length;
+        }
+        long[] all = new long[total];
+        int index = 0;
+        for (long[] times : latencies) {
+            System.arraycopy(times, 0, all, index, times.length);
+            index += times.length;
+        }
+        Arrays.sort(all);
+        assertThat(all.length).isGreaterThan(0);
+        LOGGER.info("{} renders in {} ms ({} renders/s) - latency (us) p50: {}, p99: {}, p99.9: {}, max: {}",
+                all.length, duration, all.length * 1000L / duration,
+                percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999), all[all.length - 1] / 1000);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(sorted.length * percentile))] / 1000;
+    }
+
+    /**
+     * Writes a version of the given template, atomically, as a deployment would do.
+     */
+    private static void write(File file, int version) throws IOException {
+        String content;
+        if (file.getName().startsWith("page")) {
+            content = "<h1>{{name}}</h1><p>page-" + version + "</p>{{> partial/item}}";
+        } else {
+            content = "<p>" + file.getName().substring(0, file.getName().indexOf('.')) + "-" + version + "</p>";
+        }
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileUtils.write(tmp, content);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void start(String name, final CountDownLatch done, final AtomicReference<Throwable> failure,
+                              final Step step) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (failure.get() == null && step.run()) {
+                        // Loop until the deadline or the first failure.
+                    }
+                } catch (Throwable e) { //NOSONAR
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private interface Step {
+        boolean run() throws Exception;
+    }
+}
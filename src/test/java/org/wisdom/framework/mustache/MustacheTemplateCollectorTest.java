@@ -19,23 +19,78 @@
  */
 package org.wisdom.framework.mustache;
 
+import com.github.mustachejava.DeferringMustacheFactory;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.codes.PartialCode;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
+import org.wisdom.api.DefaultController;
+import org.wisdom.api.http.Renderable;
+import org.wisdom.api.configuration.ApplicationConfiguration;
 import org.wisdom.api.templates.Template;
+import org.wisdom.framework.mustache.api.RenderProfile;
+import org.wisdom.framework.mustache.api.RenderTimeoutException;
+import org.wisdom.framework.mustache.api.TemplateInfo;
+import org.wisdom.framework.mustache.api.TemplateInventory;
+import org.wisdom.framework.mustache.api.TemplateInventoryMXBean;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
 import java.util.Dictionary;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.Matchers.any;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static org.wisdom.framework.mustache.ServiceMatchers.anyProperties;
+import static org.wisdom.framework.mustache.ServiceMatchers.anyTemplateClass;
+import static org.wisdom.framework.mustache.ServiceMatchers.registration;
 
 /**
  * Test the collector behavior.
  */
 public class MustacheTemplateCollectorTest {
+
+    /**
+     * Creates a collector whose bundle context registers the template services, returning mock registrations.
+     *
+     * @return the collector
+     */
+    static MustacheTemplateCollector newCollector() {
+        BundleContext ctxt = mock(BundleContext.class);
+        when(ctxt.registerService(anyTemplateClass(), any(Template.class), anyProperties())).thenReturn(registration());
+        return new MustacheTemplateCollector(ctxt);
+    }
+
     @Test
     public void testName() throws Exception {
         BundleContext ctxt = mock(BundleContext.class);
@@ -70,4 +125,869 @@ public class MustacheTemplateCollectorTest {
 
         collector.stop();
     }
+
+    @Test
+    public void deferredPartialsAreStreamed() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        MustacheTemplate page = collector.addTemplate(
+                new File("src/test/resources/templates/deferred/page.mst.html").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/deferred/partial/slow.mst.html").toURI().toURL());
+
+        Renderable<?> renderable = page.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of(
+                "title", "Deferred",
+                "message", "hello",
+                "partial/slow", DeferringMustacheFactory.DEFERRED));
+        assertThat(page.isProgressive()).isTrue();
+        assertThat(renderable.mustBeChunked()).isTrue();
+
+        String content = IOUtils.toString((InputStream) renderable.content(), "UTF-8");
+        assertThat(content)
+                .contains("<div id=\"mustache-deferred-1\"></div>")
+                .contains("document.getElementById(\"mustache-deferred-1\").outerHTML=")
+                .contains("<p class=\\\"slow\\\">hello<\\/p>");
+        assertThat(content.indexOf("<footer>")).isLessThan(content.indexOf("<script>"));
+
+        // Without the DEFERRED marker, the partial is rendered inline.
+        renderable = page.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("title", "Inline", "message", "hello"));
+        content = IOUtils.toString((InputStream) renderable.content(), "UTF-8");
+        assertThat(content)
+                .contains("<p class=\"slow\">hello</p>")
+                .doesNotContain("<script>");
+
+        collector.stop();
+    }
+
+    @Test
+    public void deferredPartialsAreReplacedByTheFallbackWhenTheBudgetRunsOut() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        collector.getMustacheFactory().setRenderTimeout(200);
+        collector.getMustacheFactory().setRenderFallback("<p>unavailable</p>");
+        MustacheTemplate page = collector.addTemplate(
+                new File("src/test/resources/templates/deferred/page.mst.html").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/deferred/partial/slow.mst.html").toURI().toURL());
+
+        Object slow = new Object() {
+            @Override
+            public String toString() {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "too late";
+            }
+        };
+        long begin = System.currentTimeMillis();
+        Renderable<?> renderable = page.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of(
+                "title", "Deferred",
+                "message", slow,
+                "partial/slow", DeferringMustacheFactory.DEFERRED));
+
+        String content = IOUtils.toString((InputStream) renderable.content(), "UTF-8");
+        assertThat(System.currentTimeMillis() - begin).isLessThan(5000);
+        assertThat(content)
+                .contains("<footer>footer</footer>")
+                .contains("document.getElementById(\"mustache-deferred-1\").outerHTML=\"<p>unavailable<\\/p>\"")
+                .contains("</html>")
+                .doesNotContain("too late");
+
+        collector.stop();
+    }
+
+    @Test
+    public void partialsBeyondTheMaximumAreRenderedInPlace() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        collector.getMustacheFactory().setMaxDeferred(0);
+        MustacheTemplate page = collector.addTemplate(
+                new File("src/test/resources/templates/deferred/page.mst.html").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/deferred/partial/slow.mst.html").toURI().toURL());
+
+        String content = IOUtils.toString((InputStream) page.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of(
+                "title", "Deferred",
+                "message", "hello",
+                "partial/slow", DeferringMustacheFactory.DEFERRED)).content(), "UTF-8");
+        assertThat(content)
+                .contains("<p class=\"slow\">hello</p>")
+                .doesNotContain("mustache-deferred-1")
+                .doesNotContain("<script>");
+
+        collector.stop();
+    }
+
+    @Test
+    public void deferredContentCannotEscapeTheScript() {
+        assertThat(DeferredPartials.escape("<!-- <script></script> -->"))
+                .isEqualTo("<\\x21-- <script><\\/script> -->");
+    }
+
+    @Test
+    public void renderingsAreInlinedWhenTheRenderExecutorIsSaturated() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        collector.getMustacheFactory().setProgressiveRendering(1, 0);
+        MustacheTemplate page = collector.addTemplate(
+                new File("src/test/resources/templates/deferred/page.mst.html").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/deferred/partial/slow.mst.html").toURI().toURL());
+        Map<String, Object> variables = ImmutableMap.<String, Object>of(
+                "title", "Deferred",
+                "message", "hello",
+                "partial/slow", DeferringMustacheFactory.DEFERRED);
+
+        // The page holds the only thread, so the deferred partial is rendered in place.
+        String content = IOUtils.toString((InputStream) page.render(new DefaultController() {
+        }, variables).content(), "UTF-8");
+        assertThat(content)
+                .contains("<p class=\"slow\">hello</p>")
+                .doesNotContain("mustache-deferred-1");
+        assertThat(content.indexOf("<p class=\"slow\">")).isLessThan(content.indexOf("<footer>"));
+
+        // Once the thread is busy, the page itself is rendered on the calling thread.
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        while (true) {
+            try {
+                // Rejected until the thread has finished the previous rendering.
+                collector.getMustacheFactory().getRenderExecutor().submit(blocking);
+                break;
+            } catch (RejectedExecutionException e) {
+                Thread.sleep(10);
+            }
+        }
+        try {
+            content = IOUtils.toString((InputStream) page.render(new DefaultController() {
+            }, variables).content(), "UTF-8");
+            assertThat(content)
+                    .contains("<h1>Deferred</h1>")
+                    .contains("<p class=\"slow\">hello</p>")
+                    .contains("</html>");
+        } finally {
+            release.countDown();
+        }
+
+        collector.stop();
+    }
+
+    @Test
+    public void partialsAndInheritance() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        MustacheTemplate base = collector.addTemplate(
+                new File("src/test/resources/templates/mustache/base.mst.html").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/mustache/partial/user.mst.html").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/inheritance/base.mst.html").toURI().toURL());
+        MustacheTemplate welcome = collector.addTemplate(
+                new File("src/test/resources/templates/inheritance/home/welcome.mst.html").toURI().toURL());
+
+        Renderable<?> renderable = base.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("names", ImmutableList.of(
+                ImmutableMap.of("name", "romeo"),
+                ImmutableMap.of("name", "tom"))));
+        assertThat((String) renderable.content())
+                .contains("<strong>romeo</strong>")
+                .contains("<strong>tom</strong>");
+
+        renderable = welcome.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("name", "you"));
+        assertThat((String) renderable.content())
+                .contains("<title>Welcome page</title>")
+                .contains("<p>Content from base</p>")
+                .contains("Hello you,");
+
+        collector.stop();
+    }
+
+    @Test
+    public void partialsAreInlined() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        MustacheTemplate base = collector.addTemplate(
+                new File("src/test/resources/templates/mustache/base.mst.html").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/mustache/partial/user.mst.html").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/inheritance/base.mst.html").toURI().toURL());
+        MustacheTemplate welcome = collector.addTemplate(
+                new File("src/test/resources/templates/inheritance/home/welcome.mst.html").toURI().toURL());
+        MustacheTemplate tree = collector.addTemplate(
+                new File("src/test/resources/templates/recursive/tree.mst.html").toURI().toURL());
+
+        ImmutableMap<String, Object> names = ImmutableMap.<String, Object>of("names", ImmutableList.of(
+                ImmutableMap.of("name", "romeo"),
+                ImmutableMap.of("name", "tom")));
+        ImmutableMap<String, Object> you = ImmutableMap.<String, Object>of("name", "you");
+        ImmutableMap<String, Object> nodes = ImmutableMap.<String, Object>of("name", "root",
+                "children", ImmutableList.of(
+                        ImmutableMap.of("name", "a", "children", ImmutableList.of(
+                                ImmutableMap.of("name", "b", "children", ImmutableList.of())))));
+
+        String optimizedBase = (String) base.render(new DefaultController() {
+        }, names).content();
+        String optimizedWelcome = (String) welcome.render(new DefaultController() {
+        }, you).content();
+        String optimizedTree = (String) tree.render(new DefaultController() {
+        }, nodes).content();
+
+        // The partials and blocks have been inlined, but not the recursive partial.
+        assertThat(CodeTrees.contains(base.getMustache(), PartialCode.class)).isFalse();
+        assertThat(CodeTrees.contains(welcome.getMustache(), PartialCode.class)).isFalse();
+        // The inlined partials keep a code of their own, for the render budget and the profiler.
+        assertThat(CodeTrees.contains(base.getMustache(), InlinedPartialCode.class)).isTrue();
+        assertThat(CodeTrees.contains(tree.getMustache(), PartialCode.class)).isTrue();
+        assertThat(optimizedTree).isEqualTo("<li>root<ul><li>a<ul><li>b</li>\n</ul></li>\n</ul></li>\n");
+
+        // Compare with the non-optimized output.
+        collector.stop();
+        collector = newCollector();
+        collector.configuration = mock(ApplicationConfiguration.class);
+        when(collector.configuration.getIntegerWithDefault(anyString(), anyInt())).thenReturn(1024);
+        when(collector.configuration.getBooleanWithDefault(anyString(), anyBoolean())).thenReturn(false);
+        when(collector.configuration.getWithDefault(anyString(), anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return (String) invocation.getArguments()[1];
+            }
+        });
+        collector.start();
+        base = collector.addTemplate(
+                new File("src/test/resources/templates/mustache/base.mst.html").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/mustache/partial/user.mst.html").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/inheritance/base.mst.html").toURI().toURL());
+        welcome = collector.addTemplate(
+                new File("src/test/resources/templates/inheritance/home/welcome.mst.html").toURI().toURL());
+
+        assertThat((String) base.render(new DefaultController() {
+        }, names).content()).isEqualTo(optimizedBase);
+        assertThat((String) welcome.render(new DefaultController() {
+        }, you).content()).isEqualTo(optimizedWelcome);
+        assertThat(CodeTrees.contains(base.getMustache(), PartialCode.class)).isTrue();
+
+        collector.stop();
+    }
+
+    @Test
+    public void inlinedPartialsAreProfiled() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        collector.configuration = mock(ApplicationConfiguration.class);
+        Answer<Object> defaultValue = new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return invocation.getArguments()[1];
+            }
+        };
+        // The optimizer is left enabled, as by default.
+        when(collector.configuration.getIntegerWithDefault(anyString(), anyInt())).thenAnswer(defaultValue);
+        when(collector.configuration.getBooleanWithDefault(anyString(), anyBoolean())).thenAnswer(defaultValue);
+        when(collector.configuration.getWithDefault(anyString(), anyString())).thenAnswer(defaultValue);
+        when(collector.configuration.getIntegerWithDefault(eq(MustacheTemplateCollector.PROFILE_SAMPLING), anyInt()))
+                .thenReturn(1);
+        collector.start();
+        assertThat(collector.getMustacheFactory().isOptimize()).isTrue();
+
+        MustacheTemplate base = collector.addTemplate(
+                new File("src/test/resources/templates/mustache/base.mst.html").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/mustache/partial/user.mst.html").toURI().toURL());
+        base.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("names", ImmutableList.of(
+                ImmutableMap.of("name", "romeo"),
+                ImmutableMap.of("name", "tom"))));
+        assertThat(CodeTrees.contains(base.getMustache(), PartialCode.class)).isFalse();
+
+        List<RenderProfile> profiles = collector.getRenderProfiles();
+        assertThat(profiles).hasSize(1);
+        RenderProfile.Node names = profiles.get(0).getRoot().getChildren().get(0);
+        assertThat(names.getName()).isEqualTo("#names");
+        assertThat(names.getChildren()).hasSize(1);
+        RenderProfile.Node partial = names.getChildren().get(0);
+        assertThat(partial.getName()).isEqualTo(">partial/user");
+        assertThat(partial.getCount()).isEqualTo(2);
+        assertThat(partial.getChildren()).hasSize(1);
+        assertThat(partial.getChildren().get(0).getName()).isEqualTo("name");
+        assertThat(partial.getChildren().get(0).getCount()).isEqualTo(2);
+        assertThat(profiles.get(0).toString()).contains(">partial/user x2");
+
+        collector.stop();
+    }
+
+    @Test
+    public void budgetReportsTheInlinedPartial() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        collector.configuration = mock(ApplicationConfiguration.class);
+        Answer<Object> defaultValue = new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return invocation.getArguments()[1];
+            }
+        };
+        when(collector.configuration.getIntegerWithDefault(anyString(), anyInt())).thenAnswer(defaultValue);
+        when(collector.configuration.getBooleanWithDefault(anyString(), anyBoolean())).thenAnswer(defaultValue);
+        when(collector.configuration.getLongWithDefault(anyString(), anyLong())).thenAnswer(defaultValue);
+        when(collector.configuration.getWithDefault(anyString(), anyString())).thenAnswer(defaultValue);
+        when(collector.configuration.getLongWithDefault(eq(MustacheTemplateCollector.RENDER_TIMEOUT), anyLong()))
+                .thenReturn(100L);
+        collector.start();
+
+        MustacheTemplate base = collector.addTemplate(
+                new File("src/test/resources/templates/mustache/base.mst.html").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/mustache/partial/user.mst.html").toURI().toURL());
+        try {
+            base.render(new DefaultController() {
+            }, ImmutableMap.<String, Object>of("names", ImmutableList.of(new SlowUser())));
+            fail("The rendering should have been aborted");
+        } catch (RenderTimeoutException e) {
+            assertThat(CodeTrees.contains(base.getMustache(), PartialCode.class)).isFalse();
+            assertThat(e.getSection()).isEqualTo("#names/>partial/user");
+        } finally {
+            collector.stop();
+        }
+    }
+
+    /**
+     * A user whose name takes a long time to compute.
+     */
+    public static class SlowUser {
+        public String getName() throws InterruptedException {
+            Thread.sleep(5000);
+            return "slow";
+        }
+    }
+
+    @Test
+    public void batchedRegistration() throws Exception {
+        BundleContext ctxt = mock(BundleContext.class);
+        ServiceRegistration<Template> registration = registration();
+        when(ctxt.registerService(anyTemplateClass(), any(Template.class), anyProperties())).thenReturn(registration);
+        MustacheTemplateCollector collector = new MustacheTemplateCollector(ctxt);
+        collector.configuration = mock(ApplicationConfiguration.class);
+        when(collector.configuration.getIntegerWithDefault(anyString(), anyInt())).thenReturn(1024);
+        when(collector.configuration.getBooleanWithDefault(anyString(), anyBoolean())).thenReturn(false);
+        when(collector.configuration.getWithDefault(anyString(), anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return (String) invocation.getArguments()[1];
+            }
+        });
+        when(collector.configuration.getBooleanWithDefault(eq(MustacheTemplateCollector.BATCHED_REGISTRATION),
+                anyBoolean())).thenReturn(true);
+        collector.start();
+
+        MustacheTemplate kitten1 = collector.addTemplate(
+                new File("src/test/resources/templates/kitten1.mst").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/kitten2.mst.json").toURI().toURL());
+        // Available immediately, registered in background.
+        assertThat(collector.getTemplates()).hasSize(2);
+        verify(ctxt, timeout(5000).times(2)).registerService(anyTemplateClass(), any(Template.class),
+                anyProperties());
+
+        collector.deleteTemplate(kitten1);
+        assertThat(collector.getTemplates()).hasSize(1);
+        verify(registration).unregister();
+
+        collector.stop();
+        assertThat(collector.getTemplates()).isEmpty();
+    }
+
+    @Test
+    public void unchangedTemplatesAreNotInvalidated() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+
+        File file = new File("target/checksum/templates/hello.mst");
+        FileUtils.write(file, "Hello {{name}}");
+        MustacheTemplate template = collector.addTemplate(file.toURI().toURL());
+        assertThat((String) template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("name", "wisdom")).content()).isEqualTo("Hello wisdom");
+
+        // Rewritten with the same content
+        FileUtils.write(file, "Hello {{name}}");
+        collector.updatedTemplate(file);
+        assertThat(collector.getSkippedInvalidationCount()).isEqualTo(1);
+        assertThat(collector.getInvalidationCount()).isEqualTo(0);
+
+        FileUtils.write(file, "Bonjour {{name}}");
+        collector.updatedTemplate(file);
+        assertThat(collector.getSkippedInvalidationCount()).isEqualTo(1);
+        assertThat(collector.getInvalidationCount()).isEqualTo(1);
+
+        collector.stop();
+        FileUtils.deleteQuietly(new File("target/checksum"));
+    }
+
+    @Test
+    public void templatesAreAddedInASingleSnapshot() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        URL base = new File("src/test/resources/templates/mustache/base.mst.html").toURI().toURL();
+        URL user = new File("src/test/resources/templates/mustache/partial/user.mst.html").toURI().toURL();
+        MustacheTemplate existing = collector.addTemplate(base);
+
+        List<MustacheTemplate> added = collector.addTemplates(ImmutableList.of(base, user, user));
+        assertThat(added).hasSize(3);
+        assertThat(added.get(0)).isSameAs(existing);
+        assertThat(added.get(1)).isSameAs(added.get(2));
+        assertThat(collector.getTemplates()).hasSize(2);
+        assertThat(collector.getRegistry().getByName("mustache/partial/user")).isSameAs(added.get(1));
+        // Nothing to add, the snapshot is kept.
+        TemplateRegistry snapshot = collector.getRegistry();
+        assertThat(collector.addTemplates(ImmutableList.of(base, user))).containsExactly(existing, added.get(1));
+        assertThat(collector.getRegistry()).isSameAs(snapshot);
+
+        collector.stop();
+    }
+
+    @Test
+    public void templatesIncludingAnUpdatedPartialAreRecompiled() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+
+        File page = new File("target/registry/templates/page.mst");
+        File partial = new File("target/registry/templates/partial/name.mst");
+        File other = new File("target/registry/templates/other.mst");
+        FileUtils.write(page, "Hello {{> partial/name}}");
+        FileUtils.write(partial, "{{name}}");
+        FileUtils.write(other, "Other");
+        MustacheTemplate template = collector.addTemplate(page.toURI().toURL());
+        collector.addTemplate(partial.toURI().toURL());
+        MustacheTemplate unrelated = collector.addTemplate(other.toURI().toURL());
+        assertThat((String) template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("name", "wisdom")).content()).isEqualTo("Hello wisdom");
+        unrelated.render(new DefaultController() {
+        });
+        assertThat(template.getPartials()).containsExactly("partial/name");
+        Mustache before = unrelated.getMustache();
+        // The registry indexes the templates reading each partial.
+        assertThat(collector.getRegistry().getDependents("partial/name")).containsExactly(template);
+        assertThat(collector.getRegistry().getDependents("other")).isEmpty();
+        TemplateRegistry snapshot = collector.getRegistry();
+
+        // The including template is recompiled by the update, not by the next rendering.
+        FileUtils.write(partial, "<b>{{name}}</b>");
+        collector.updatedTemplate(partial);
+        // The partial graph has not changed, so no new snapshot is published.
+        assertThat(collector.getRegistry()).isSameAs(snapshot);
+        assertThat(template.getMustache()).isNotNull();
+        assertThat(unrelated.getMustache()).isSameAs(before);
+        assertThat((String) template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("name", "wisdom")).content()).isEqualTo("Hello <b>wisdom</b>");
+
+        // Deleting the partial breaks the including template.
+        collector.deleteTemplate(partial);
+        assertThat(collector.getTemplates()).hasSize(2);
+        assertThat(template.getMustache()).isNull();
+        assertThat(collector.getRegistry().getDependents("partial/name")).containsExactly(template);
+
+        // Once the page does not include the partial anymore, the edge is removed.
+        FileUtils.write(page, "Hello {{name}}");
+        collector.updatedTemplate(template);
+        template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("name", "wisdom"));
+        assertThat(collector.getRegistry().getDependents("partial/name")).isEmpty();
+
+        collector.stop();
+        FileUtils.deleteQuietly(new File("target/registry"));
+    }
+
+    @Test
+    public void failedCompilationsAreCachedUntilTheMissingPartialIsAdded() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+
+        File page = new File("target/negative/templates/page.mst");
+        File partial = new File("target/negative/templates/partial/missing.mst");
+        FileUtils.write(page, "Hello {{> partial/missing}}");
+        MustacheTemplate template = collector.addTemplate(page.toURI().toURL());
+
+        Exception first = null;
+        try {
+            template.render(new DefaultController() {
+            });
+        } catch (MustacheException e) {
+            first = e;
+        }
+        assertThat(first).isNotNull();
+        assertThat(template.isFailed()).isTrue();
+        assertThat(template.getPartials()).contains("partial/missing");
+
+        // The next renderings fail fast with the same error.
+        try {
+            template.render(new DefaultController() {
+            });
+            fail("The rendering should fail");
+        } catch (MustacheException e) {
+            assertThat(e).isSameAs(first);
+        }
+
+        // Adding the missing partial clears the failure.
+        FileUtils.write(partial, "{{name}}");
+        collector.addTemplate(partial.toURI().toURL());
+        assertThat(template.isFailed()).isFalse();
+        assertThat((String) template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("name", "wisdom")).content()).isEqualTo("Hello wisdom");
+
+        // A syntax error is cached until the template is updated.
+        FileUtils.write(page, "Hello {{name");
+        collector.updatedTemplate(page);
+        assertThat(template.isFailed()).isTrue();
+        FileUtils.write(page, "Bye {{name}}");
+        collector.updatedTemplate(page);
+        assertThat(template.isFailed()).isFalse();
+        assertThat((String) template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("name", "wisdom")).content()).isEqualTo("Bye wisdom");
+
+        collector.stop();
+        FileUtils.deleteQuietly(new File("target/negative"));
+    }
+
+    @Test
+    public void staleTemplatesAreServedWhileRecompiledInBackground() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        collector.configuration = mock(ApplicationConfiguration.class);
+        when(collector.configuration.getIntegerWithDefault(anyString(), anyInt())).thenReturn(1024);
+        when(collector.configuration.getBooleanWithDefault(anyString(), anyBoolean())).thenReturn(false);
+        when(collector.configuration.getWithDefault(anyString(), anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return (String) invocation.getArguments()[1];
+            }
+        });
+        when(collector.configuration.getBooleanWithDefault(eq(MustacheTemplateCollector.BACKGROUND_RELOAD),
+                anyBoolean())).thenReturn(true);
+        when(collector.configuration.getLongWithDefault(eq(MustacheTemplateCollector.MAX_STALENESS),
+                anyLong())).thenReturn(-1L);
+        collector.start();
+
+        File page = new File("target/stale/templates/page.mst");
+        File partial = new File("target/stale/templates/partial/name.mst");
+        FileUtils.write(page, "Hello {{> partial/name}}");
+        FileUtils.write(partial, "{{name}}");
+        MustacheTemplate template = collector.addTemplate(page.toURI().toURL());
+        collector.addTemplate(partial.toURI().toURL());
+        ImmutableMap<String, Object> variables = ImmutableMap.<String, Object>of("name", "wisdom");
+        assertThat((String) template.render(new DefaultController() {
+        }, variables).content()).isEqualTo("Hello wisdom");
+
+        // The new version does not compile, the previous one stays in service.
+        FileUtils.write(partial, "{{#name}}");
+        collector.updatedTemplate(partial);
+        waitUntilFresh(template);
+        assertThat((String) template.render(new DefaultController() {
+        }, variables).content()).isEqualTo("Hello wisdom");
+
+        FileUtils.write(partial, "<b>{{name}}</b>");
+        collector.updatedTemplate(partial);
+        waitUntilFresh(template);
+        assertThat((String) template.render(new DefaultController() {
+        }, variables).content()).isEqualTo("Hello <b>wisdom</b>");
+
+        collector.stop();
+        FileUtils.deleteQuietly(new File("target/stale"));
+    }
+
+    @Test
+    public void templatesAreWarmedUpWithTheRegisteredSamples() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        collector.configuration = mock(ApplicationConfiguration.class);
+        when(collector.configuration.getIntegerWithDefault(anyString(), anyInt())).thenReturn(1024);
+        when(collector.configuration.getBooleanWithDefault(anyString(), anyBoolean())).thenReturn(false);
+        when(collector.configuration.getWithDefault(anyString(), anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return (String) invocation.getArguments()[1];
+            }
+        });
+        when(collector.configuration.getBooleanWithDefault(eq(MustacheTemplateCollector.WARMUP),
+                anyBoolean())).thenReturn(true);
+        when(collector.configuration.getIntegerWithDefault(eq(MustacheTemplateCollector.WARMUP_ITERATIONS),
+                anyInt())).thenReturn(50);
+        when(collector.configuration.getIntegerWithDefault(eq(MustacheTemplateCollector.WARMUP_THREADS),
+                anyInt())).thenReturn(2);
+        collector.start();
+
+        final AtomicInteger calls = new AtomicInteger();
+        Object item = new Object() {
+            @SuppressWarnings("unused")
+            public String getName() {
+                calls.incrementAndGet();
+                return "wisdom";
+            }
+        };
+        collector.addWarmUpSample("page", ImmutableMap.<String, Object>of("items", ImmutableList.of(item, item)));
+
+        File page = new File("target/warmup/templates/page.mst");
+        FileUtils.write(page, "{{#items}}{{name}} {{/items}}");
+        MustacheTemplate template = collector.addTemplate(page.toURI().toURL());
+        assertThat(collector.awaitWarmUp(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(collector.isWarmedUp()).isTrue();
+        // 50 renderings of 2 items.
+        assertThat(calls.get()).isEqualTo(100);
+
+        // Warm-up renderings are not visible to the actual ones.
+        assertThat((String) template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("items", ImmutableList.of(item))).content()).isEqualTo("wisdom ");
+
+        collector.stop();
+        FileUtils.deleteQuietly(new File("target/warmup"));
+    }
+
+    @Test
+    public void exportedFilesAreRegeneratedWhenTheirDependenciesChange() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        collector.configuration = mock(ApplicationConfiguration.class);
+        when(collector.configuration.getIntegerWithDefault(anyString(), anyInt())).thenReturn(1024);
+        when(collector.configuration.getBooleanWithDefault(anyString(), anyBoolean())).thenReturn(false);
+        when(collector.configuration.getWithDefault(anyString(), anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return (String) invocation.getArguments()[1];
+            }
+        });
+        File export = new File("target/export/site");
+        when(collector.configuration.getFileWithDefault(eq(MustacheTemplateCollector.EXPORT_DIRECTORY),
+                any(File.class))).thenReturn(export);
+        // A single thread, so the exports complete in order.
+        when(collector.configuration.getIntegerWithDefault(eq(MustacheTemplateCollector.EXPORT_THREADS),
+                anyInt())).thenReturn(1);
+        collector.start();
+
+        File page = new File("target/export/templates/page.mst");
+        File partial = new File("target/export/templates/partial/name.mst");
+        File other = new File("target/export/templates/other.mst");
+        FileUtils.write(page, "Hello {{> partial/name}}");
+        FileUtils.write(partial, "{{name}}");
+        FileUtils.write(other, "Other {{name}}");
+        collector.addTemplate(page.toURI().toURL());
+        collector.addTemplate(partial.toURI().toURL());
+        collector.addTemplate(other.toURI().toURL());
+
+        collector.export("page", ImmutableMap.<String, Object>of("name", "wisdom"), "index.html")
+                .get(10, TimeUnit.SECONDS);
+        collector.export("other", ImmutableMap.<String, Object>of("name", "wisdom"), "other/index.html")
+                .get(10, TimeUnit.SECONDS);
+        File index = new File(export, "index.html");
+        File otherIndex = new File(export, "other/index.html");
+        assertThat(FileUtils.readFileToString(index)).isEqualTo("Hello wisdom");
+        assertThat(FileUtils.readFileToString(otherIndex)).isEqualTo("Other wisdom");
+        try (InputStream stream = new GZIPInputStream(new FileInputStream(new File(export, "index.html.gz")))) {
+            assertThat(IOUtils.toString(stream)).isEqualTo("Hello wisdom");
+        }
+
+        // Only the files depending on the updated partial are regenerated.
+        FileUtils.deleteQuietly(otherIndex);
+        FileUtils.write(partial, "<b>{{name}}</b>");
+        collector.updatedTemplate(partial);
+        collector.export("other", ImmutableMap.<String, Object>of("name", "marker"), "marker.html")
+                .get(10, TimeUnit.SECONDS);
+        assertThat(FileUtils.readFileToString(index)).isEqualTo("Hello <b>wisdom</b>");
+        assertThat(otherIndex).doesNotExist();
+
+        try {
+            collector.export("page", ImmutableMap.<String, Object>of(), "../outside.html");
+            fail("The path should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+
+        collector.stop();
+        FileUtils.deleteQuietly(new File("target/export"));
+    }
+
+    @Test
+    public void inventory() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        collector.configuration = mock(ApplicationConfiguration.class);
+        when(collector.configuration.getIntegerWithDefault(anyString(), anyInt())).thenReturn(1024);
+        when(collector.configuration.getBooleanWithDefault(anyString(), anyBoolean())).thenReturn(false);
+        when(collector.configuration.getWithDefault(anyString(), anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return (String) invocation.getArguments()[1];
+            }
+        });
+        when(collector.configuration.getBooleanWithDefault(eq(MustacheTemplateCollector.JMX), anyBoolean()))
+                .thenReturn(true);
+        collector.start();
+
+        File page = new File("target/inventory/templates/page.mst");
+        File partial = new File("target/inventory/templates/partial/name.mst");
+        File broken = new File("target/inventory/templates/broken.mst");
+        FileUtils.write(page, "Hello {{> partial/name}}");
+        FileUtils.write(partial, "{{name}}");
+        FileUtils.write(broken, "{{#name}}");
+        MustacheTemplate template = collector.addTemplate(page.toURI().toURL());
+        collector.addTemplate(partial.toURI().toURL());
+        MustacheTemplate failing = collector.addTemplate(broken.toURI().toURL());
+        template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("name", "wisdom"));
+        try {
+            failing.render(new DefaultController() {
+            });
+            fail("The template should not compile");
+        } catch (MustacheException e) {
+            // Expected.
+        }
+
+        TemplateInventory inventory = collector.getInventory();
+        assertThat(inventory.getTemplateCount()).isEqualTo(3);
+        assertThat(inventory.getCompiledCount()).isEqualTo(1);
+        assertThat(inventory.getFailedCount()).isEqualTo(1);
+        assertThat(inventory.getUnusedTemplates()).containsOnly("partial/name");
+        TemplateInfo info = null;
+        for (TemplateInfo candidate : inventory.getTemplates()) {
+            if (candidate.getName().equals("page")) {
+                info = candidate;
+            }
+        }
+        assertThat(info).isNotNull();
+        assertThat(info.getState()).isEqualTo(TemplateInfo.State.COMPILED);
+        assertThat(info.getRenderCount()).isEqualTo(1);
+        assertThat(info.getLastRender()).isGreaterThan(0);
+        assertThat(info.getLastCompile()).isGreaterThan(0);
+        assertThat(info.getPartials()).containsExactly("partial/name");
+        assertThat(info.getEstimatedSize()).isGreaterThan(0);
+        assertThat(inventory.getEstimatedSize()).isEqualTo(info.getEstimatedSize());
+
+        // JSON
+        JsonNode json = new ObjectMapper().valueToTree(inventory);
+        assertThat(json.get("templateCount").asInt()).isEqualTo(3);
+        assertThat(json.get("templates").size()).isEqualTo(3);
+
+        // JMX
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Set<ObjectName> names = server.queryNames(new ObjectName(TemplateInventoryMXBean.OBJECT_NAME + ",*"), null);
+        assertThat(names).hasSize(1);
+        ObjectName name = names.iterator().next();
+        assertThat(server.getAttribute(name, "TemplateCount")).isEqualTo(3);
+        assertThat((CompositeData[]) server.getAttribute(name, "Templates")).hasSize(3);
+
+        // Another engine of the same JVM registers its own bean.
+        MustacheTemplateCollector other = newCollector();
+        other.configuration = collector.configuration;
+        other.start();
+        assertThat(server.queryNames(new ObjectName(TemplateInventoryMXBean.OBJECT_NAME + ",*"), null)).hasSize(2);
+        other.stop();
+
+        collector.stop();
+        assertThat(server.isRegistered(name)).isFalse();
+        FileUtils.deleteQuietly(new File("target/inventory"));
+    }
+
+    @Test
+    public void templatesArePrecompiledAndTheHotOnesAreSaved() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        collector.configuration = mock(ApplicationConfiguration.class);
+        when(collector.configuration.getIntegerWithDefault(anyString(), anyInt())).thenReturn(1024);
+        when(collector.configuration.getBooleanWithDefault(anyString(), anyBoolean())).thenReturn(false);
+        when(collector.configuration.getWithDefault(anyString(), anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return (String) invocation.getArguments()[1];
+            }
+        });
+        File hot = new File("target/precompile/hot-templates.txt");
+        FileUtils.write(hot, "page 10\n");
+        when(collector.configuration.getBooleanWithDefault(eq(MustacheTemplateCollector.PRECOMPILE), anyBoolean()))
+                .thenReturn(true);
+        when(collector.configuration.getFileWithDefault(eq(MustacheTemplateCollector.PRECOMPILE_FILE),
+                anyString())).thenReturn(hot);
+        collector.start();
+
+        File page = new File("target/precompile/templates/page.mst");
+        File other = new File("target/precompile/templates/other.mst");
+        FileUtils.write(page, "Hello {{name}}");
+        FileUtils.write(other, "Other {{name}}");
+        MustacheTemplate first = collector.addTemplate(page.toURI().toURL());
+        MustacheTemplate second = collector.addTemplate(other.toURI().toURL());
+
+        // Both are compiled in background, without being rendered.
+        long end = System.currentTimeMillis() + 10000;
+        while ((first.getMustache() == null || second.getMustache() == null) && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertThat(first.getMustache()).isNotNull();
+        assertThat(second.getMustache()).isNotNull();
+
+        for (int i = 0; i < 3; i++) {
+            second.render(new DefaultController() {
+            }, ImmutableMap.<String, Object>of("name", "wisdom"));
+        }
+        first.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("name", "wisdom"));
+
+        // The hot templates of this run are saved, the most rendered first.
+        collector.stop();
+        assertThat(FileUtils.readLines(hot)).containsExactly("other 3", "page 1");
+        FileUtils.deleteQuietly(new File("target/precompile"));
+    }
+
+    @Test
+    public void purePartialsAreMemoized() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        collector.getMustacheFactory().setMemoization("global", 10, 60000);
+        MustacheTemplate page = collector.addTemplate(
+                new File("src/test/resources/templates/memo/page.mst.html").toURI().toURL());
+        collector.addTemplate(new File("src/test/resources/templates/memo/partial/card.mst.html").toURI().toURL());
+
+        Renderable<?> renderable = page.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("users", ImmutableList.of(
+                ImmutableMap.of("name", "romeo"),
+                ImmutableMap.of("name", "tom"),
+                ImmutableMap.of("name", "romeo"))));
+        assertThat((String) renderable.content())
+                .isEqualTo("<ul><li>romeo</li><li>tom</li><li>romeo</li></ul>\n");
+        // The pure partial is not inlined, and its output is memoized for each name.
+        assertThat(CodeTrees.containsPurePartial(page.getMustache())).isTrue();
+        assertThat(collector.getMustacheFactory().getGlobalMemo().size()).isEqualTo(2);
+
+        collector.stop();
+    }
+
+    @Test
+    public void memoizedOutputsAreInvalidatedWithThePartial() throws Exception {
+        MustacheTemplateCollector collector = newCollector();
+        collector.getMustacheFactory().setMemoization("global", 10, 60000);
+        File page = new File("target/memo/templates/page.mst");
+        File card = new File("target/memo/templates/partial/card.mst");
+        FileUtils.write(page, "{{#users}}{{> partial/card}}{{/users}}");
+        FileUtils.write(card, "{{! pure}}<li>{{name}}</li>");
+        MustacheTemplate template = collector.addTemplate(page.toURI().toURL());
+        collector.addTemplate(card.toURI().toURL());
+        PartialMemo memo = collector.getMustacheFactory().getGlobalMemo();
+
+        Map<String, Object> users = ImmutableMap.<String, Object>of("users", ImmutableList.of(
+                ImmutableMap.of("name", "romeo"), ImmutableMap.of("name", "tom")));
+        assertThat((String) template.render(new DefaultController() {
+        }, users).content()).isEqualTo("<li>romeo</li><li>tom</li>");
+        assertThat(memo.size()).isEqualTo(2);
+
+        FileUtils.write(card, "{{! pure}}<li><b>{{name}}</b></li>");
+        collector.updatedTemplate(card);
+        assertThat(memo.size()).isEqualTo(0);
+        assertThat((String) template.render(new DefaultController() {
+        }, users).content()).isEqualTo("<li><b>romeo</b></li><li><b>tom</b></li>");
+        assertThat(memo.size()).isEqualTo(2);
+
+        // Outputs computed from mutable objects are not kept globally.
+        assertThat((String) template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("users", ImmutableList.of(
+                ImmutableMap.of("name", new StringBuilder("juliet"))))).content())
+                .isEqualTo("<li><b>juliet</b></li>");
+        assertThat(memo.size()).isEqualTo(2);
+
+        collector.deleteTemplate(card);
+        assertThat(memo.size()).isEqualTo(0);
+
+        collector.stop();
+        FileUtils.deleteQuietly(new File("target/memo"));
+    }
+
+    private static void waitUntilFresh(MustacheTemplate template) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (template.isStale() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(template.isStale()).isFalse();
+    }
 }
@@ -19,23 +19,55 @@
  */
 package org.wisdom.framework.mustache;
 
+import com.github.mustachejava.Mustache;
 import com.github.mustachejava.MustacheException;
 import com.github.mustachejava.TemplateFunction;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 import org.wisdom.api.Controller;
 import org.wisdom.api.DefaultController;
+import org.wisdom.api.bodies.RenderableString;
+import org.wisdom.api.http.HeaderNames;
 import org.wisdom.api.http.MimeTypes;
 import org.wisdom.api.http.Renderable;
 import org.wisdom.api.http.Result;
+import org.wisdom.framework.mustache.api.Memoizable;
+import org.wisdom.framework.mustache.api.RenderProfile;
+import org.wisdom.framework.mustache.api.RenderTimeoutException;
+import org.wisdom.framework.mustache.api.SafeContent;
+import org.wisdom.framework.mustache.api.TextFootprint;
 import org.wisdom.test.parents.Action;
 import org.wisdom.test.parents.FakeContext;
 import org.wisdom.test.parents.Invocation;
 
 import javax.annotation.Nullable;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.net.MalformedURLException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
@@ -156,6 +188,33 @@ public class MustacheTemplateTest {
         assertThat((String) renderable.content()).contains("<b>").contains("Wisdom is awesome.").contains("</b>");
     }
 
+    @Test
+    public void testClearRemovesTheFragmentsOfTheTemplate() throws MalformedURLException {
+        InspectableFactory factory = new InspectableFactory();
+        File file = new File("src/test/resources/templates/function/function.mst.plain");
+        MustacheTemplate template = new MustacheTemplate(factory, file.toURI().toURL());
+        MustacheTemplate other = new MustacheTemplate(factory,
+                new File("src/test/resources/templates/var.mst.html").toURI().toURL());
+
+        template.render(new DefaultController() {
+        }, ImmutableMap.of(
+                "name", "Wisdom",
+                "wrapped", new TemplateFunction() {
+                    @Nullable
+                    @Override
+                    public String apply(String input) {
+                        return "<b>" + input + "</b>";
+                    }
+                }
+        ));
+        assertThat(factory.getFragmentCount()).isEqualTo(1);
+
+        factory.clear(ImmutableList.of(other));
+        assertThat(factory.getFragmentCount()).isEqualTo(1);
+        factory.clear(ImmutableList.of(template, other));
+        assertThat(factory.getFragmentCount()).isEqualTo(0);
+    }
+
     @Test
     public void testEscaping() throws MalformedURLException {
         File file = new File("src/test/resources/templates/mustache/escape.mst");
@@ -176,6 +235,23 @@ public class MustacheTemplateTest {
                 .contains("<b>None</b>");
     }
 
+    @Test
+    public void testSafeContentIsNotEscaped() throws MalformedURLException {
+        File file = new File("src/test/resources/templates/mustache/escape.mst");
+        final MustacheTemplate template = new MustacheTemplate(factory, file.toURI().toURL());
+
+        Renderable renderable = template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of(
+                "name", SafeContent.of(new StringBuilder("<i>Clement</i>")),
+                "company", SafeContent.of("<b>None</b>".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8)
+        ));
+
+        assertThat((String) renderable.content())
+                .contains("<i>Clement</i>")
+                .contains("<b>None</b>")
+                .doesNotContain("&lt;");
+    }
+
     @Test
     public void testNotShown() throws MalformedURLException {
         File file = new File("src/test/resources/templates/mustache/shown.mst");
@@ -320,5 +396,622 @@ public class MustacheTemplateTest {
         assertThat((String)renderable.content()).doesNotContain("{{name}}");
     }
 
+    @Test
+    public void testProgressiveRendering() throws IOException {
+        File file = new File("src/test/resources/templates/progressive/page.mst.html");
+        assertThat(file).isFile();
+
+        MustacheTemplate template = new MustacheTemplate(factory, file.toURI().toURL());
+        Renderable renderable = template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("title", "Cats", "items", Cat.cats()));
+
+        assertThat(template.isProgressive()).isTrue();
+        assertThat(renderable.mustBeChunked()).isTrue();
+        assertThat(renderable.mimetype()).isEqualTo(MimeTypes.HTML);
+
+        InputStream stream = (InputStream) renderable.content();
+        String content = IOUtils.toString(stream, "UTF-8");
+        assertThat(content)
+                .contains("<title>Cats</title>")
+                .contains("<h1>Cats</h1>")
+                .contains("<li>romeo</li>")
+                .contains("<li>tom</li>")
+                .doesNotContain("flush");
+        assertThat(content.indexOf("<h1>Cats</h1>")).isLessThan(content.indexOf("<ul>"));
+    }
+
+    @Test
+    public void testVariableNamedDeferredIsWritten() throws IOException {
+        File file = new File("src/test/resources/templates/deferred/variable.mst.html");
+        MustacheTemplate template = new MustacheTemplate(factory, file.toURI().toURL());
+        Renderable renderable = template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("deferred", "<b>later</b>"));
+
+        // The template may write deferred partials, so it is rendered progressively.
+        assertThat(renderable.mustBeChunked()).isTrue();
+        String content = IOUtils.toString((InputStream) renderable.content(), "UTF-8");
+        assertThat(content).isEqualTo("Status: &lt;b&gt;later&lt;/b&gt; / <b>later</b>\n");
+    }
+
+    @Test
+    public void testRegularTemplatesAreNotProgressive() throws MalformedURLException {
+        File file = new File("src/test/resources/templates/kitten3.mst.html");
+        MustacheTemplate template = new MustacheTemplate(factory, file.toURI().toURL());
+        Renderable renderable = template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("items", Cat.cats()));
+        assertThat(template.isProgressive()).isFalse();
+        assertThat(renderable.mustBeChunked()).isFalse();
+    }
+
+    @Test
+    public void testConstantTemplate() throws IOException {
+        File file = new File("src/test/resources/templates/constant/legal.mst.html");
+        assertThat(file).isFile();
+
+        MustacheTemplate template = new MustacheTemplate(factory, file.toURI().toURL());
+        Renderable renderable = template.render(new DefaultController() {
+        }, ImmutableMap.<String, Object>of("ignored", "value"));
+
+        assertThat(template.isConstant()).isTrue();
+        assertThat(renderable.mimetype()).isEqualTo(MimeTypes.HTML);
+        assertThat((String) renderable.content())
+                .contains("<p>All rights reserved.</p>")
+                .doesNotContain("Legal notice");
+        // The output is computed once.
+        assertThat(template.render(controller).content()).isSameAs(renderable.content());
+
+        file = new File("src/test/resources/templates/kitten3.mst.html");
+        template = new MustacheTemplate(factory, file.toURI().toURL());
+        template.render(controller, ImmutableMap.<String, Object>of("items", Cat.cats()));
+        assertThat(template.isConstant()).isFalse();
+    }
+
+    @Test
+    public void testGzippedConstantTemplate() throws Exception {
+        ExtendedMustacheFactory gzipFactory = new ExtendedMustacheFactory(null);
+        gzipFactory.setGzipConstants(true);
+        File file = new File("src/test/resources/templates/constant/legal.mst.html");
+        final MustacheTemplate template = new MustacheTemplate(gzipFactory, file.toURI().toURL());
+
+        Action.ActionResult result = action(new Invocation() {
+            @Override
+            public Result invoke() throws Throwable {
+                return ok(template.render(controller));
+            }
+        }).with(new FakeContext().setHeader(HeaderNames.ACCEPT_ENCODING, "gzip, deflate")).invoke();
+
+        Renderable<?> renderable = result.getResult().getRenderable();
+        assertThat(((ConstantRenderable) renderable).isGzipped()).isTrue();
+        Result http = new Result(200);
+        InputStream stream = renderable.render(null, http);
+        assertThat(http.getHeaders().get(HeaderNames.CONTENT_ENCODING)).isEqualTo("gzip");
+        assertThat(IOUtils.toString(new GZIPInputStream(stream), "UTF-8")).contains("<p>All rights reserved.</p>");
+
+        assertThat(http.getHeaders().get(HeaderNames.VARY)).isEqualTo(HeaderNames.ACCEPT_ENCODING);
+
+        // Without the header, the identity form is used, and varies too.
+        renderable = template.render(controller);
+        assertThat(((ConstantRenderable) renderable).isGzipped()).isFalse();
+        http = new Result(200);
+        stream = renderable.render(null, http);
+        assertThat(http.getHeaders()).doesNotContainKey(HeaderNames.CONTENT_ENCODING);
+        assertThat(http.getHeaders().get(HeaderNames.VARY)).isEqualTo(HeaderNames.ACCEPT_ENCODING);
+        assertThat(renderable.length()).isEqualTo(IOUtils.toByteArray(stream).length);
+        assertThat(ConstantRenderable.acceptsGzip("deflate, gzip;q=0")).isFalse();
+        assertThat(ConstantRenderable.acceptsGzip("gzip;q=0.8")).isTrue();
+    }
+
+    @Test
+    public void testConstantTemplateLengthWithAnotherCharset() throws Exception {
+        ExtendedMustacheFactory gzipFactory = new ExtendedMustacheFactory(null);
+        gzipFactory.setGzipConstants(true);
+        File file = new File("src/test/resources/templates/constant/legal.mst.html");
+        MustacheTemplate template = new MustacheTemplate(gzipFactory, file.toURI().toURL());
+
+        Renderable<?> renderable = template.render(controller);
+        Result http = new Result(200).with(StandardCharsets.UTF_16);
+        byte[] content = IOUtils.toByteArray(renderable.render(null, http));
+        assertThat(new String(content, StandardCharsets.UTF_16)).contains("<p>All rights reserved.</p>");
+        assertThat(renderable.length()).isEqualTo(content.length);
+        // Another rendering is not affected.
+        assertThat(template.render(controller).length()).isLessThan(content.length);
+    }
+
+    @Test
+    public void testRenderingIsAbortedWhenTheBudgetRunsOut() throws MalformedURLException {
+        File file = new File("src/test/resources/templates/budget/slow.mst.html");
+        MustacheTemplate template = new MustacheTemplate(factory, file.toURI().toURL());
+
+        long begin = System.currentTimeMillis();
+        try {
+            template.render(controller, ImmutableMap.<String, Object>of("items", new BlockingIterable()));
+            fail("The rendering should have been aborted");
+        } catch (RenderTimeoutException e) {
+            assertThat(e.getTemplate()).isEqualTo("budget/slow");
+            assertThat(e.getSection()).isEqualTo("#items");
+            assertThat(e.getBudget()).isEqualTo(100);
+            assertThat(e.getMessage()).contains("budget/slow").contains("#items");
+        }
+        assertThat(System.currentTimeMillis() - begin).isLessThan(5000);
+
+        // Within the budget, the rendering completes.
+        Renderable renderable = template.render(controller, ImmutableMap.<String, Object>of("items", Cat.cats()));
+        assertThat((String) renderable.content()).contains("<li>romeo</li>").doesNotContain("timeout");
+    }
+
+    @Test
+    public void testGlobalRenderBudget() throws MalformedURLException {
+        ExtendedMustacheFactory budgetFactory = new ExtendedMustacheFactory(null);
+        budgetFactory.setRenderTimeout(100);
+        File file = new File("src/test/resources/templates/kitten3.mst.html");
+        MustacheTemplate template = new MustacheTemplate(budgetFactory, file.toURI().toURL());
+
+        ThreadRecordingIterable items = new ThreadRecordingIterable();
+        Renderable renderable = template.render(controller, ImmutableMap.<String, Object>of("items", items));
+        assertThat((String) renderable.content()).contains("name: romeo - age: 2");
+        // The global budget is checked on the calling thread.
+        assertThat(items.threads).containsExactly(Thread.currentThread().getName());
+
+        try {
+            template.render(controller, ImmutableMap.<String, Object>of("items", new BlockingIterable()));
+            fail("The rendering should have been aborted");
+        } catch (RenderTimeoutException e) {
+            assertThat(e.getTemplate()).isEqualTo("kitten3");
+            assertThat(e.getSection()).isEqualTo("#items");
+        } finally {
+            budgetFactory.shutdown();
+        }
+    }
+
+    @Test
+    public void testBudgetThreadsAreBounded() throws MalformedURLException {
+        ExtendedMustacheFactory budgetFactory = new ExtendedMustacheFactory(null);
+        budgetFactory.setBudgetThreads(1);
+        File file = new File("src/test/resources/templates/budget/slow.mst.html");
+        MustacheTemplate template = new MustacheTemplate(budgetFactory, file.toURI().toURL());
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                try {
+                    template.render(controller, ImmutableMap.<String, Object>of("items",
+                            new UninterruptibleIterable()));
+                    fail("The rendering should have been aborted");
+                } catch (RenderTimeoutException e) {
+                    assertThat(e.getTemplate()).isEqualTo("budget/slow");
+                }
+            }
+            // The thread blocked in the data method is not replaced, the other renderings have waited for it, and
+            // have left the queue once cancelled.
+            assertThat(budgetFactory.getBudgetExecutor().getLargestPoolSize()).isEqualTo(1);
+            assertThat(budgetFactory.getBudgetExecutor().getQueue()).isEmpty();
+        } finally {
+            budgetFactory.shutdown();
+        }
+    }
+
+    @Test
+    public void testBudgetedRenderingsAreInlinedWhenTheExecutorIsSaturated() throws MalformedURLException {
+        ExtendedMustacheFactory budgetFactory = new ExtendedMustacheFactory(null);
+        budgetFactory.setBudgetThreads(1);
+        File file = new File("src/test/resources/templates/budget/slow.mst.html");
+        MustacheTemplate template = new MustacheTemplate(budgetFactory, file.toURI().toURL());
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                Uninterruptibles.awaitUninterruptibly(release);
+            }
+        };
+        try {
+            // One running, one waiting: the executor is saturated.
+            budgetFactory.getBudgetExecutor().execute(blocking);
+            budgetFactory.getBudgetExecutor().execute(blocking);
+
+            ThreadRecordingIterable items = new ThreadRecordingIterable();
+            Renderable renderable = template.render(controller, ImmutableMap.<String, Object>of("items", items));
+            assertThat((String) renderable.content()).contains("<li>romeo</li>");
+            assertThat(items.threads).containsExactly(Thread.currentThread().getName());
+
+            // The budget still applies.
+            try {
+                template.render(controller, ImmutableMap.<String, Object>of("items", new UninterruptibleIterable()));
+                fail("The rendering should have been aborted");
+            } catch (RenderTimeoutException e) {
+                assertThat(e.getTemplate()).isEqualTo("budget/slow");
+                assertThat(e.getSection()).isEqualTo("#items");
+            }
+        } finally {
+            release.countDown();
+            budgetFactory.shutdown();
+        }
+    }
+
+    @Test
+    public void testStaleTemplatesAreRevalidatedByASingleThread() throws Exception {
+        final AtomicInteger compilations = new AtomicInteger();
+        ExtendedMustacheFactory slowFactory = new ExtendedMustacheFactory(null) {
+            @Override
+            Mustache compile(Reader reader, String name, Set<String> partials) {
+                compilations.incrementAndGet();
+                Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+                return super.compile(reader, name, partials);
+            }
+        };
+        File file = new File("src/test/resources/templates/kitten3.mst.html");
+        final MustacheTemplate template = new MustacheTemplate(slowFactory, file.toURI().toURL());
+        template.render(controller, ImmutableMap.<String, Object>of("items", Cat.cats()));
+        assertThat(compilations.get()).isEqualTo(1);
+
+        // The stale version has exceeded the maximum staleness, the next renderings revalidate it.
+        slowFactory.setMaxStaleness(0);
+        template.markStale();
+        Thread.sleep(10);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<String> outputs = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Uninterruptibles.awaitUninterruptibly(start);
+                    outputs.add((String) template.render(controller,
+                            ImmutableMap.<String, Object>of("items", Cat.cats())).content());
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+
+        // One thread has recompiled the template, the others have rendered the stale version meanwhile.
+        assertThat(compilations.get()).isEqualTo(2);
+        assertThat(outputs).hasSize(8);
+        for (String output : outputs) {
+            assertThat(output).contains("name: romeo - age: 2");
+        }
+        assertThat(template.isStale()).isFalse();
+    }
+
+    @Test
+    public void testSampledRenderingsAreProfiled() throws MalformedURLException {
+        ExtendedMustacheFactory profiledFactory = new ExtendedMustacheFactory(null);
+        profiledFactory.setProfiling(1, 0, 10);
+        File file = new File("src/test/resources/templates/kitten3.mst.html");
+        MustacheTemplate template = new MustacheTemplate(profiledFactory, file.toURI().toURL());
+
+        template.render(controller, ImmutableMap.<String, Object>of("items", Cat.cats()));
+
+        List<RenderProfile> profiles = profiledFactory.getRenderProfiles();
+        assertThat(profiles).hasSize(1);
+        RenderProfile profile = profiles.get(0);
+        assertThat(profile.getTemplate()).isEqualTo("kitten3");
+        assertThat(profile.getRoot().getChildren()).hasSize(1);
+        RenderProfile.Node items = profile.getRoot().getChildren().get(0);
+        assertThat(items.getName()).isEqualTo("#items");
+        assertThat(items.getCount()).isEqualTo(1);
+        assertThat(items.getChildren()).hasSize(2);
+        assertThat(items.getChildren().get(0).getName()).isEqualTo("name");
+        assertThat(items.getChildren().get(0).getCount()).isEqualTo(3);
+        assertThat(items.getTime()).isGreaterThanOrEqualTo(items.getChildren().get(0).getTime());
+        assertThat(profile.toString()).contains("Rendering of kitten3").contains("#items x1").contains("name x3");
+
+        // Fast renderings are not reported when a threshold is set.
+        profiledFactory.setProfiling(1, 10000, 10);
+        template.render(controller, ImmutableMap.<String, Object>of("items", Cat.cats()));
+        assertThat(profiledFactory.getRenderProfiles()).hasSize(1);
+
+        // Disabled.
+        profiledFactory.setProfiling(0, 0, 10);
+        template.render(controller, ImmutableMap.<String, Object>of("items", Cat.cats()));
+        assertThat(profiledFactory.getRenderProfiles()).hasSize(1);
+    }
+
+    @Test
+    public void testMemoizableFunctionsAreCalledOncePerInput() throws MalformedURLException {
+        ExtendedMustacheFactory memoFactory = new ExtendedMustacheFactory(null);
+        File file = new File("src/test/resources/templates/function/memoized.mst.plain");
+        MustacheTemplate template = new MustacheTemplate(memoFactory, file.toURI().toURL());
+
+        MessageFunction memoized = new MemoizableMessageFunction();
+        Renderable renderable = template.render(controller,
+                ImmutableMap.<String, Object>of("items", Cat.cats(), "i18n", memoized));
+        assertThat((String) renderable.content()).contains("romeo: Cat").contains("tom: Cat");
+        assertThat(memoized.calls.get()).isEqualTo(1);
+        assertThat(memoFactory.getFunctionMemoStats().getHits()).isEqualTo(2);
+        assertThat(memoFactory.getFunctionMemoStats().getMisses()).isEqualTo(1);
+
+        // Memoized during a rendering only.
+        template.render(controller, ImmutableMap.<String, Object>of("items", Cat.cats(), "i18n", memoized));
+        assertThat(memoized.calls.get()).isEqualTo(2);
+
+        // Functions not marked as memoizable are called every time.
+        MessageFunction regular = new MessageFunction();
+        template.render(controller, ImmutableMap.<String, Object>of("items", Cat.cats(), "i18n", regular));
+        assertThat(regular.calls.get()).isEqualTo(3);
+
+        // Memoized globally.
+        memoFactory.setFunctionMemoization("global", 10, 60000);
+        memoized = new MemoizableMessageFunction();
+        template.render(controller, ImmutableMap.<String, Object>of("items", Cat.cats(), "i18n", memoized));
+        renderable = template.render(controller,
+                ImmutableMap.<String, Object>of("items", Cat.cats(), "i18n", memoized));
+        assertThat((String) renderable.content()).contains("romeo: Cat");
+        assertThat(memoized.calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFunctionMemoIsCreatedOnFirstUse() throws MalformedURLException {
+        File file = new File("src/test/resources/templates/function/lazy.mst.plain");
+        MustacheTemplate template = new MustacheTemplate(factory, file.toURI().toURL());
+
+        // Without memoizable function, the rendering has no cache.
+        Renderable renderable = template.render(controller,
+                ImmutableMap.<String, Object>of("i18n", new MessageFunction()));
+        assertThat((String) renderable.content()).isEqualTo("Cat\n");
+
+        renderable = template.render(controller,
+                ImmutableMap.<String, Object>of("i18n", new MemoizableMessageFunction()));
+        assertThat((String) renderable.content()).isEqualTo("Cat (memoized)\n");
+    }
+
+    private static class MessageFunction implements Function<String, String> {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public String apply(String key) {
+            calls.incrementAndGet();
+            return "cat.label".equals(key) ? "Cat" : key;
+        }
+    }
+
+    private static class MemoizableMessageFunction extends MessageFunction implements Memoizable {
+    }
+
+    /**
+     * An iterable whose iterator blocks, like a lazily loaded collection waiting for a slow backend.
+     */
+    @Test
+    public void testAsyncRendering() throws Exception {
+        ExtendedMustacheFactory asyncFactory = new ExtendedMustacheFactory(null);
+        asyncFactory.setAsyncRendering(2, 4, false);
+        File file = new File("src/test/resources/templates/kitten3.mst.html");
+        MustacheTemplate template = new MustacheTemplate(asyncFactory, file.toURI().toURL());
+        try {
+            Renderable renderable = template.renderAsync(controller,
+                    ImmutableMap.<String, Object>of("items", Cat.cats()))
+                    .toCompletableFuture().get(10, TimeUnit.SECONDS);
+            assertThat((String) renderable.content()).contains("name: romeo - age: 2");
+            assertThat(asyncFactory.getRejectedRenderings()).isEqualTo(0);
+        } finally {
+            asyncFactory.shutdown();
+        }
+    }
+
+    @Test
+    public void testProgressiveTemplatesAreRenderedEntirelyAsynchronously() throws Exception {
+        ExtendedMustacheFactory asyncFactory = new ExtendedMustacheFactory(null);
+        asyncFactory.setAsyncRendering(1, 0, false);
+        File file = new File("src/test/resources/templates/progressive/page.mst.html");
+        MustacheTemplate template = new MustacheTemplate(asyncFactory, file.toURI().toURL());
+        final List<String> threads = new ArrayList<>();
+        Iterable<Object> items = new Iterable<Object>() {
+            @Override
+            public Iterator<Object> iterator() {
+                threads.add(Thread.currentThread().getName());
+                return Collections.<Object>singletonList(Cat.cats().get(0)).iterator();
+            }
+        };
+        try {
+            Renderable<?> renderable = template.renderAsync(controller,
+                    ImmutableMap.<String, Object>of("title", "Cats", "items", items))
+                    .toCompletableFuture().get(10, TimeUnit.SECONDS);
+            // The body has been rendered on the asynchronous executor, not later by the reader.
+            assertThat(threads).hasSize(1);
+            assertThat(threads.get(0)).startsWith("mustache-async-");
+            assertThat(renderable.mustBeChunked()).isFalse();
+            assertThat((String) renderable.content()).contains("<h1>Cats</h1>").contains("<li>romeo</li>");
+        } finally {
+            asyncFactory.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncRenderingsAreRejectedWhenTheQueueIsFull() throws Exception {
+        ExtendedMustacheFactory asyncFactory = new ExtendedMustacheFactory(null);
+        asyncFactory.setAsyncRendering(1, 0, false);
+        File file = new File("src/test/resources/templates/kitten3.mst.html");
+        MustacheTemplate template = new MustacheTemplate(asyncFactory, file.toURI().toURL());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Iterable<Object> blocking = new Iterable<Object>() {
+            @Override
+            public Iterator<Object> iterator() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Collections.emptyIterator();
+            }
+        };
+        try {
+            CompletableFuture<Renderable<?>> first = template.renderAsync(controller,
+                    ImmutableMap.<String, Object>of("items", blocking)).toCompletableFuture();
+            assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+            CompletableFuture<Renderable<?>> second = template.renderAsync(controller,
+                    ImmutableMap.<String, Object>of("items", Cat.cats())).toCompletableFuture();
+            try {
+                second.get(10, TimeUnit.SECONDS);
+                fail("The rendering should have been rejected");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause()).isInstanceOf(RejectedExecutionException.class);
+            }
+            assertThat(asyncFactory.getRejectedRenderings()).isEqualTo(1);
+
+            release.countDown();
+            first.get(10, TimeUnit.SECONDS);
+
+            // The permit has been released, so new renderings are accepted.
+            Renderable renderable = template.renderAsync(controller,
+                    ImmutableMap.<String, Object>of("items", Cat.cats()))
+                    .toCompletableFuture().get(10, TimeUnit.SECONDS);
+            assertThat((String) renderable.content()).contains("name: romeo - age: 2");
+        } finally {
+            release.countDown();
+            asyncFactory.shutdown();
+        }
+    }
+
+    @Test
+    public void testPendingAsyncRenderingsCompleteOnShutdown() throws Exception {
+        AsyncRenderer renderer = new AsyncRenderer(1, 10, false);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        List<CompletableFuture<Renderable<?>>> stages = new ArrayList<>();
+        stages.add(renderer.submit(new Callable<Renderable<?>>() {
+            @Override
+            public Renderable<?> call() throws Exception {
+                started.countDown();
+                release.await();
+                return new RenderableString("done");
+            }
+        }).toCompletableFuture());
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        for (int i = 0; i < 5; i++) {
+            stages.add(renderer.submit(new Callable<Renderable<?>>() {
+                @Override
+                public Renderable<?> call() {
+                    return new RenderableString("queued");
+                }
+            }).toCompletableFuture());
+        }
+
+        renderer.shutdown();
+        for (CompletableFuture<Renderable<?>> stage : stages) {
+            try {
+                stage.get(10, TimeUnit.SECONDS);
+                fail("The rendering should not have completed normally");
+            } catch (ExecutionException | CancellationException e) {
+                // Expected: interrupted, or never executed.
+            }
+        }
+    }
+
+    @Test
+    public void testIdenticalStaticTextIsShared() throws MalformedURLException {
+        ExtendedMustacheFactory internFactory = new ExtendedMustacheFactory(null);
+        MustacheTemplate first = new MustacheTemplate(internFactory,
+                new File("src/test/resources/templates/interning/first.mst.html").toURI().toURL());
+        MustacheTemplate second = new MustacheTemplate(internFactory,
+                new File("src/test/resources/templates/interning/second.mst.html").toURI().toURL());
+
+        assertThat((String) first.render(controller, ImmutableMap.<String, Object>of("title", "one")).content())
+                .contains("<p>one</p>");
+        assertThat(internFactory.getTextFootprint().getSharedSegments()).isEqualTo(0);
+        assertThat((String) second.render(controller, ImmutableMap.<String, Object>of("subtitle", "two")).content())
+                .contains("<p>two</p>").contains("<footer>The shared footer of all the pages</footer>");
+
+        TextFootprint footprint = internFactory.getTextFootprint();
+        assertThat(footprint.getSharedSegments()).isEqualTo(1);
+        assertThat(footprint.getSavedBytes())
+                .isEqualTo(2 * "</p>\n<footer>The shared footer of all the pages</footer>\n".length());
+    }
 
-}
\ No newline at end of file
+    @Test
+    public void testRenderingIntoChainedByteBuffers() throws MalformedURLException {
+        File file = new File("src/test/resources/templates/var.mst.html");
+        MustacheTemplate template = new MustacheTemplate(factory, file.toURI().toURL());
+        // Multi-bytes characters and surrogate pairs, split across the buffers.
+        ImmutableMap<String, Object> variables = ImmutableMap.<String, Object>of("key", "d\u00e9j\u00e0 vu \u20ac",
+                "key2", "\ud83d\ude00\ud83d\ude01");
+        String expected = (String) template.render(controller, variables).content();
+
+        final List<ByteBuffer> allocated = new ArrayList<>();
+        List<ByteBuffer> buffers = template.renderTo(controller, variables, new Supplier<ByteBuffer>() {
+            @Override
+            public ByteBuffer get() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(7);
+                allocated.add(buffer);
+                return buffer;
+            }
+        });
+
+        assertThat(buffers).isEqualTo(allocated);
+        ByteBuffer content = ByteBuffer.allocate(expected.length() * 4);
+        for (ByteBuffer buffer : buffers) {
+            content.put(buffer);
+        }
+        content.flip();
+        assertThat(StandardCharsets.UTF_8.decode(content).toString()).isEqualTo(expected);
+    }
+
+    @Test
+    public void testRenderingIntoASingleByteBuffer() throws MalformedURLException {
+        File file = new File("src/test/resources/templates/constant/legal.mst.html");
+        MustacheTemplate template = new MustacheTemplate(factory, file.toURI().toURL());
+        ByteBuffer buffer = template.renderTo(controller, Collections.<String, Object>emptyMap(),
+                ByteBuffer.allocate(4096));
+        assertThat(StandardCharsets.UTF_8.decode(buffer).toString())
+                .isEqualTo(template.render(controller).content());
+
+        file = new File("src/test/resources/templates/kitten3.mst.html");
+        template = new MustacheTemplate(factory, file.toURI().toURL());
+        try {
+            template.renderTo(controller, ImmutableMap.<String, Object>of("items", Cat.cats()),
+                    ByteBuffer.allocate(16));
+            fail("The output should not fit in the buffer");
+        } catch (BufferOverflowException e) {
+            // Expected.
+        }
+    }
+
+    private static class BlockingIterable implements Iterable<Object> {
+
+        @Override
+        public Iterator<Object> iterator() {
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Collections.emptyIterator();
+        }
+    }
+
+    private static class ThreadRecordingIterable implements Iterable<Object> {
+
+        final List<String> threads = new ArrayList<>();
+
+        @Override
+        public Iterator<Object> iterator() {
+            threads.add(Thread.currentThread().getName());
+            return Collections.<Object>singletonList(Cat.cats().get(0)).iterator();
+        }
+    }
+
+    private static class UninterruptibleIterable implements Iterable<Object> {
+
+        @Override
+        public Iterator<Object> iterator() {
+            Uninterruptibles.sleepUninterruptibly(1, TimeUnit.SECONDS);
+            return Collections.emptyIterator();
+        }
+    }
+
+    private static class InspectableFactory extends ExtendedMustacheFactory {
+
+        InspectableFactory() {
+            super(null);
+        }
+
+        int getFragmentCount() {
+            return templateCache.size();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import org.osgi.framework.ServiceRegistration;
+import org.wisdom.api.templates.Template;
+
+import java.util.Dictionary;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Typed Mockito matchers and mocks for the registration of the {@link Template} services, so stubbing
+ * {@link org.osgi.framework.BundleContext#registerService(Class, Object, Dictionary)} does not use raw types.
+ */
+final class ServiceMatchers {
+
+    private ServiceMatchers() {
+        // Avoid direct instantiation.
+    }
+
+    /**
+     * @return a matcher accepting any service interface.
+     */
+    static Class<Template> anyTemplateClass() {
+        return any();
+    }
+
+    /**
+     * @return a matcher accepting any service properties.
+     */
+    static Dictionary<String, ?> anyProperties() {
+        return any();
+    }
+
+    /**
+     * @return a mock registration of a template service.
+     */
+    @SuppressWarnings("unchecked")
+    static ServiceRegistration<Template> registration() {
+        return mock(ServiceRegistration.class);
+    }
+}
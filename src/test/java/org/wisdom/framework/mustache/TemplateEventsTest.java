@@ -0,0 +1,80 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.google.common.collect.ImmutableMap;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import org.wisdom.api.DefaultController;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the flight recorder events emitted by the templates.
+ */
+public class TemplateEventsTest {
+
+    @Test
+    public void testRenderAndCompileEventsAreRecorded() throws Exception {
+        assertThat(TemplateEvents.EVENTS).isInstanceOf(JfrTemplateEvents.class);
+
+        ExtendedMustacheFactory factory = new ExtendedMustacheFactory(null);
+        MustacheTemplate template = new MustacheTemplate(factory,
+                new File("src/test/resources/templates/mustache/escape.mst").toURI().toURL());
+
+        Path file = new File("target/events.jfr").toPath();
+        try (Recording recording = new Recording()) {
+            recording.enable("org.wisdom.mustache.Render");
+            recording.enable("org.wisdom.mustache.Compile");
+            recording.start();
+            template.render(new DefaultController() {
+            }, ImmutableMap.<String, Object>of("name", "wisdom"));
+            template.render(new DefaultController() {
+            }, ImmutableMap.<String, Object>of("name", "wisdom"));
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> renders = new ArrayList<>();
+        List<RecordedEvent> compilations = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if (event.getEventType().getName().equals("org.wisdom.mustache.Render")) {
+                renders.add(event);
+            } else if (event.getEventType().getName().equals("org.wisdom.mustache.Compile")) {
+                compilations.add(event);
+            }
+        }
+        assertThat(compilations).hasSize(1);
+        assertThat(compilations.get(0).getString("template")).isEqualTo("mustache/escape");
+        assertThat(compilations.get(0).getBoolean("success")).isTrue();
+        assertThat(renders).hasSize(2);
+        assertThat(renders.get(0).getBoolean("cached")).isFalse();
+        assertThat(renders.get(1).getBoolean("cached")).isTrue();
+        assertThat(renders.get(1).getLong("outputSize")).isGreaterThan(0);
+        assertThat(renders.get(1).getInt("contextSize")).isEqualTo(1);
+    }
+}
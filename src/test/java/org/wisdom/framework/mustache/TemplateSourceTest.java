@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.framework.mustache;
+
+import com.google.common.base.Strings;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the reading and decoding of the template sources.
+ */
+public class TemplateSourceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAsciiSource() {
+        byte[] bytes = "Hello {{name}}".getBytes(StandardCharsets.US_ASCII);
+        assertThat(TemplateSource.decode(ByteBuffer.wrap(bytes), StandardCharsets.UTF_8))
+                .isEqualTo("Hello {{name}}");
+        assertThat(TemplateSource.decode(ByteBuffer.wrap(bytes), StandardCharsets.UTF_16BE))
+                .isNotEqualTo("Hello {{name}}");
+    }
+
+    @Test
+    public void testConfiguredCharset() {
+        byte[] bytes = "Déjà {{name}}".getBytes(StandardCharsets.ISO_8859_1);
+        assertThat(TemplateSource.decode(ByteBuffer.wrap(bytes), StandardCharsets.ISO_8859_1))
+                .isEqualTo("Déjà {{name}}");
+        assertThat(TemplateSource.decode(ByteBuffer.wrap(bytes), StandardCharsets.UTF_8))
+                .isEqualTo("D�j� {{name}}");
+    }
+
+    @Test
+    public void testByteOrderMarks() {
+        byte[] utf8 = concat(new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF},
+                "Déjà vu".getBytes(StandardCharsets.UTF_8));
+        assertThat(TemplateSource.decode(ByteBuffer.wrap(utf8), StandardCharsets.ISO_8859_1)).isEqualTo("Déjà vu");
+
+        byte[] ascii = concat(new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF},
+                "plain".getBytes(StandardCharsets.UTF_8));
+        assertThat(TemplateSource.decode(ByteBuffer.wrap(ascii), StandardCharsets.UTF_8)).isEqualTo("plain");
+
+        byte[] utf16 = concat(new byte[]{(byte) 0xFF, (byte) 0xFE}, "Déjà vu".getBytes(StandardCharsets.UTF_16LE));
+        assertThat(TemplateSource.decode(ByteBuffer.wrap(utf16), StandardCharsets.UTF_8)).isEqualTo("Déjà vu");
+
+        utf16 = concat(new byte[]{(byte) 0xFE, (byte) 0xFF}, "Déjà vu".getBytes(StandardCharsets.UTF_16BE));
+        assertThat(TemplateSource.decode(ByteBuffer.wrap(utf16), StandardCharsets.UTF_8)).isEqualTo("Déjà vu");
+    }
+
+    @Test
+    public void testReadFile() throws IOException {
+        File file = folder.newFile("small.mst.html");
+        byte[] bytes = "Grüße {{name}}".getBytes(StandardCharsets.UTF_8);
+        FileUtils.writeByteArrayToFile(file, bytes);
+
+        TemplateSource source = TemplateSource.read(file.toURI().toURL(), StandardCharsets.UTF_8);
+        assertThat(source.getText()).isEqualTo("Grüße {{name}}");
+        assertThat(source.getChecksum()).isEqualTo(TemplateSource.checksum(ByteBuffer.wrap(bytes)));
+        assertThat(TemplateSource.checksum(file.toURI().toURL())).isEqualTo(source.getChecksum());
+    }
+
+    @Test
+    public void testReadLargeFile() throws IOException {
+        File file = folder.newFile("large.mst.html");
+        String text = Strings.repeat("<p>{{name}}</p>\n", 16 * 1024) + "Ende – ♥";
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        FileUtils.writeByteArrayToFile(file, bytes);
+
+        TemplateSource source = TemplateSource.read(file.toURI().toURL(), StandardCharsets.UTF_8);
+        assertThat(source.getText()).isEqualTo(text);
+        assertThat(source.getChecksum()).isEqualTo(TemplateSource.checksum(ByteBuffer.wrap(bytes)));
+        // The file is not mapped, so it can be rewritten (or deleted) right away.
+        assertThat(file.delete()).isTrue();
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
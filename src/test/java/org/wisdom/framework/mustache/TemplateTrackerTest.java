@@ -27,6 +27,7 @@ import org.osgi.framework.BundleEvent;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
 
@@ -67,18 +68,21 @@ public class TemplateTrackerTest {
         Vector<URL> v = new Vector<URL>();
         v.add(file.toURI().toURL());
         when(bundle.findEntries(anyString(), anyString(), anyBoolean())).thenReturn(v.elements());
+        when(tracker.engine.addTemplates(anyCollectionOf(URL.class)))
+                .thenReturn(Collections.singletonList(mock(MustacheTemplate.class)));
 
         List<MustacheTemplate> list = tracker.addingBundle(bundle, new BundleEvent(BundleEvent.STARTED, bundle));
         assertThat(list).isNotNull();
         assertThat(list).hasSize(1);
-        verify(tracker.engine, times(1)).addTemplate(file.toURI().toURL());
+        // The templates of the bundle are added at once.
+        verify(tracker.engine, times(1)).addTemplates(Collections.singletonList(file.toURI().toURL()));
 
         tracker.modifiedBundle(bundle, null, list);
-        verify(tracker.engine, times(1)).updatedTemplate(any(MustacheTemplate.class));
+        verify(tracker.engine, times(1)).updatedTemplates(list);
 
         list.clear();
         list.add(mock(MustacheTemplate.class));
         tracker.removedBundle(bundle, null, list);
-        verify(tracker.engine, times(1)).deleteTemplate(any(MustacheTemplate.class));
+        verify(tracker.engine, times(1)).deleteTemplates(list);
     }
 }